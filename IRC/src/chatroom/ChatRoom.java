@@ -1,24 +1,43 @@
 package chatroom;
 import java.io.*;
-import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/***********************************************************************************************
+ A chat room of the version1 server. Every room keeps its own members, with the writer of each
+ member's socket, so a message is only written to the clients in the room it was sent to.
+***********************************************************************************************/
 public class ChatRoom
 { 
     public String name;
     
-    public static HashSet<String> clients = new HashSet<String>(); // Hashset to keep a record of all unique clients so that duplicate clients are not created
-       
-    public static HashSet<PrintWriter> writers = new HashSet<PrintWriter>(); // Hashset to keep a record of all writers for unique clients for easy broadcast in chatroom.
+    private final Map<String, PrintWriter> members = new ConcurrentHashMap<String, PrintWriter>(); // members of the room by client name, with the writer of their socket
     
-    public void addParticipant(String clientName) 
+    public void addParticipant(String clientName, PrintWriter writer) 
     {
-        synchronized (clients) {
-            if (!clients.contains(clientName))
+        members.put(clientName, writer);
+    }
+    
+    public void removeParticipant(String clientName) 
+    {
+        members.remove(clientName);
+    }
+    
+    public boolean isEmpty()
+    {
+        return members.isEmpty();
+    }
+    
+    // Writes the line to every member of the room except the given client (null to include everyone)
+    public void broadcast(String line, String except)
+    {
+        for (Map.Entry<String, PrintWriter> member : members.entrySet())
+        {
+            if (!member.getKey().equals(except))
             {
-                clients.add(clientName);
-            } 
+                member.getValue().println(line);
+            }
         }
-
     }
   
     public void setName(String chatRoomName)
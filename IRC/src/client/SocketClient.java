@@ -6,6 +6,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
 import javax.swing.*;
+import configurationFiles.Config;
 
 public class SocketClient {
     
@@ -75,7 +76,7 @@ public class SocketClient {
         // CLient side socket
         String serverAddress = getServerAddress();
         @SuppressWarnings("resource")
-		Socket socket = new Socket(serverAddress, 8080);
+		Socket socket = new Socket(serverAddress, Config.getInt("irc.port", 8080));
         input1 = new BufferedReader(new InputStreamReader(
                                                       socket.getInputStream()));
         output1 = new PrintWriter(socket.getOutputStream(), true);
@@ -114,6 +115,7 @@ public class SocketClient {
     }
     
     public static void main(String[] args)  {
+    	Config.load(args);
     	
     	try
     	{
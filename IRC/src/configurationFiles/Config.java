@@ -1,5 +1,260 @@
 package configurationFiles;
 
-public class Config {
-   
-}
\ No newline at end of file
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import logging.Log;
+
+
+/******************************************************************************************************************
+ * Settings of the servers and clients, looked up by key. The keys are the irc.* names used for the system
+ * properties, and a value is taken from the first of these which has it:
+ * 1) the command line, as --key=value
+ * 2) a Java system property, -Dkey=value
+ * 3) an environment variable named after the key in upper case, with dots as underscores (IRC_SERVER_THREADS)
+ * 4) the configuration file: irc.properties in the working directory, or the file named by --config=<file>
+ *    (or the irc.config property, or the IRC_CONFIG variable)
+ * 5) the default given by the caller
+ *
+ * The file is checked for changes every irc.config.pollSeconds seconds (2 by default, 0 to disable) and can be
+ * reloaded on demand with reload(). Components which can apply a new value while running register a listener with
+ * watch(); a changed key that nobody watches is logged as taking effect at the next start.
+ * Lookups read immutable maps published through volatile fields, so they never block.
+ ******************************************************************************************************************/
+public final class Config {
+
+  private static final String DEFAULT_FILE = "irc.properties";
+
+  /* A listener registered for one key */
+  private static final class Watch {
+    final String key;
+    final Runnable listener;
+
+    Watch(String key, Runnable listener) {
+      this.key = key;
+      this.listener = listener;
+    }
+  }
+
+  /*****************************************************************************************************
+   * Data Members
+   * arguments:- the --key=value pairs of the command line
+   * fileValues:- the pairs of the configuration file, as last read
+   * file / fileModified / fileLength:- the configuration file, and its state when it was last read
+   * watches:- the listeners told when the value of their key changes
+   * poller:- daemon thread checking the file for changes, started by load()
+   *****************************************************************************************************/
+  private static volatile Map<String, String> arguments = Collections.emptyMap();
+  private static volatile Map<String, String> fileValues = Collections.emptyMap();
+  private static volatile File file = new File(DEFAULT_FILE);
+  private static long fileModified;
+  private static long fileLength;
+  private static final List<Watch> watches = new CopyOnWriteArrayList<>();
+  private static Thread poller;
+
+  private Config() {}
+
+
+  /*****************************************************************************************************
+   * Reads the command line and the configuration file, and starts checking the file for changes.
+   * Arguments which are not --key=value pairs are ignored. Called once, at the start of main.
+   * @param args the command line
+   *****************************************************************************************************/
+  public static synchronized void load(String[] args) {
+    Map<String, String> parsed = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals <= 2) continue;
+      parsed.put(arg.substring(2, equals).trim(), arg.substring(equals + 1).trim());
+    }
+    arguments = Collections.unmodifiableMap(parsed);
+    String name = parsed.get("config");
+    if (name == null) name = get("irc.config", DEFAULT_FILE);
+    file = new File(name);
+    readFile();
+    if (fileValues.isEmpty() && !file.isFile() && !name.equals(DEFAULT_FILE))
+      Log.warn("Configuration file " + file + " not found.");
+    else if (!fileValues.isEmpty())
+      Log.info("Configuration read from " + file + " (" + fileValues.size() + " settings).");
+    long pollSeconds = getLong("irc.config.pollSeconds", 2);
+    if (poller == null && pollSeconds > 0) {
+      poller = new Thread(() -> pollLoop(pollSeconds * 1000), "config-watcher");
+      poller.setDaemon(true);
+      poller.start();
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * @param key the name of the setting, for example irc.server.threads
+   * @param fallback returned when no source has the setting
+   * @return the value of the setting, without surrounding white space
+   *****************************************************************************************************/
+  public static String get(String key, String fallback) {
+    String value = arguments.get(key);
+    if (value == null) value = System.getProperty(key);
+    if (value == null) value = System.getenv(environmentName(key));
+    if (value == null) value = fileValues.get(key);
+    return value == null ? fallback : value.trim();
+  }
+
+  public static int getInt(String key, int fallback) {
+    String value = get(key, null);
+    if (value == null) return fallback;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      Log.warn("Configuration: " + key + "=" + value + " is not a whole number, using " + fallback + ".");
+      return fallback;
+    }
+  }
+
+  public static long getLong(String key, long fallback) {
+    String value = get(key, null);
+    if (value == null) return fallback;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      Log.warn("Configuration: " + key + "=" + value + " is not a whole number, using " + fallback + ".");
+      return fallback;
+    }
+  }
+
+  public static double getDouble(String key, double fallback) {
+    String value = get(key, null);
+    if (value == null) return fallback;
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      Log.warn("Configuration: " + key + "=" + value + " is not a number, using " + fallback + ".");
+      return fallback;
+    }
+  }
+
+  public static boolean getBoolean(String key, boolean fallback) {
+    String value = get(key, null);
+    if (value == null) return fallback;
+    if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equals("1")) return true;
+    if (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")) return false;
+    Log.warn("Configuration: " + key + "=" + value + " is not true or false, using " + fallback + ".");
+    return fallback;
+  }
+
+  /* @return the comma separated items of the setting, trimmed, without empty ones */
+  public static List<String> getList(String key, String fallback) {
+    List<String> items = new ArrayList<>();
+    for (String item : get(key, fallback).split(",")) if (!item.isBlank()) items.add(item.trim());
+    return items;
+  }
+
+
+  /*****************************************************************************************************
+   * Registers a listener run when the value of the key changes, on the thread which reloaded the file.
+   * The listener reads the new value with the getters. Registering a key is what makes it live: a
+   * changed key without listeners only takes effect at the next start.
+   * @param key the name of the setting
+   * @param listener applies the new value, must not block
+   *****************************************************************************************************/
+  public static void watch(String key, Runnable listener) {
+    watches.add(new Watch(key, listener));
+  }
+
+
+  /*****************************************************************************************************
+   * Reads the configuration file again and applies what changed: the listeners of every changed key
+   * are run, once each. A key still set by the command line, a system property or the environment is
+   * not changed by the file.
+   * @return one line per changed key, saying whether it was applied
+   *****************************************************************************************************/
+  public static synchronized List<String> reload() {
+    Map<String, String> before = fileValues;
+    readFile();
+    Map<String, String> after = fileValues;
+    Set<String> keys = new TreeSet<>(before.keySet());
+    keys.addAll(after.keySet());
+    List<String> report = new ArrayList<>();
+    for (String key : keys) {
+      String value = after.get(key);
+      if (Objects.equals(before.get(key), value)) continue;
+      String change = key + (value == null ? " removed" : "=" + value.trim());
+      if (overridden(key)) {
+        report.add(change + " (overridden by the command line or the environment)");
+        continue;
+      }
+      boolean applied = false;
+      for (Watch watch : watches) {
+        if (!watch.key.equals(key)) continue;
+        try {
+          watch.listener.run();
+          applied = true;
+        } catch (RuntimeException e) {
+          Log.error("Unable to apply the new value of " + key + ".", e);
+        }
+      }
+      report.add(change + (applied ? " (applied)" : " (takes effect at the next start)"));
+    }
+    for (String line : report) Log.info("Configuration: " + line);
+    return report;
+  }
+
+  /* @return the file the settings are read from */
+  public static File file() {
+    return file;
+  }
+
+
+  private static boolean overridden(String key) {
+    return arguments.containsKey(key) || System.getProperty(key) != null || System.getenv(environmentName(key)) != null;
+  }
+
+  private static String environmentName(String key) {
+    return key.toUpperCase(Locale.ROOT).replace('.', '_');
+  }
+
+  /* Replaces fileValues with the content of the file, keeping the previous values if it cannot be read */
+  private static void readFile() {
+    File current = file;
+    fileModified = current.lastModified();
+    fileLength = current.length();
+    if (!current.isFile()) {
+      fileValues = Collections.emptyMap();
+      return;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(current)) {
+      properties.load(in);
+    } catch (IOException e) {
+      Log.warn("Unable to read the configuration file " + current + ": " + e.getMessage());
+      return;
+    }
+    Map<String, String> values = new HashMap<>();
+    for (String key : properties.stringPropertyNames()) values.put(key, properties.getProperty(key));
+    fileValues = Collections.unmodifiableMap(values);
+  }
+
+  private static void pollLoop(long intervalMillis) {
+    while (true) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      File current = file;
+      synchronized (Config.class) {
+        if (current.lastModified() != fileModified || current.length() != fileLength) reload();
+      }
+    }
+  }
+}
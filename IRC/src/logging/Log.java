@@ -0,0 +1,315 @@
+package logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/******************************************************************************************************************
+ * Asynchronous, leveled logger shared by the server and the client.
+ * Calling threads only copy the event into a lock-free RingBuffer; a single background thread formats the events
+ * and writes them to a rotating log file (and to the console, unless disabled). If the buffer is full the event is
+ * dropped and counted, so logging never blocks a thread that is handling packets.
+ *
+ * Per-packet logging uses the TRACE level, which is off by default. Call sites guard it with isTraceEnabled(),
+ * so when it is disabled the only cost is one volatile read and no message is ever built.
+ *
+ * System properties:
+ * irc.log.level:- minimum level that is recorded (TRACE, DEBUG, INFO, WARN, ERROR, OFF), INFO by default
+ * irc.log.console:- whether events are echoed to the console, true by default
+ * irc.log.dir:- directory of the log files, "logs" by default
+ * irc.log.maxBytes / irc.log.maxFiles:- size at which the file is rotated and number of rotated files kept
+ ******************************************************************************************************************/
+public final class Log {
+
+  public enum Level {
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF
+  }
+
+  /*****************************************************************************************************
+   * Data Members
+   * threshold:- ordinal of the minimum level recorded, volatile so that it can be changed at runtime
+   * buffer:- events waiting for the writer thread
+   * idle:- set while the writer thread is parked with nothing to write, so the thread publishing the
+   *   next event unparks it
+   * dropped:- events lost because the buffer was full
+   * file:- the current log file, null until configure() is called (console only)
+   *****************************************************************************************************/
+  private static volatile int threshold = parseLevel(System.getProperty("irc.log.level"), Level.INFO).ordinal();
+  private static volatile boolean console = !"false".equalsIgnoreCase(System.getProperty("irc.log.console"));
+  private static final RingBuffer buffer = new RingBuffer(8192);
+  private static final LongAdder dropped = new LongAdder();
+  private static volatile boolean idle;
+  private static final Object fileLock = new Object();
+  private static RollingFile file;
+  private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+  private static final StringBuilder line = new StringBuilder(256);
+  private static final Thread writer = new Thread(Log::writeLoop, "log-writer");
+
+  static {
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+  }
+
+  private Log() {}
+
+
+  /*****************************************************************************************************
+   * Starts writing the log to logs/name.log (rotated to name.log.1, name.log.2...).
+   * Events logged before this call are written to the file as well, as long as the buffer did not fill.
+   * @param name base name of the log file, for example "server"
+   *****************************************************************************************************/
+  public static void configure(String name) {
+    File dir = new File(System.getProperty("irc.log.dir", "logs"));
+    long maxBytes = Long.getLong("irc.log.maxBytes", 10L * 1024 * 1024);
+    int maxFiles = Integer.getInteger("irc.log.maxFiles", 5);
+    synchronized (fileLock) {
+      if (file != null) file.close();
+      file = new RollingFile(new File(dir, name + ".log"), maxBytes, maxFiles);
+    }
+  }
+
+  public static void setLevel(Level level) {
+    threshold = level.ordinal();
+  }
+
+  public static Level getLevel() {
+    return Level.values()[threshold];
+  }
+
+  public static void setConsole(boolean enabled) {
+    console = enabled;
+  }
+
+  /**
+   * @param value the name of a level, case insensitive
+   * @param fallback returned when value is null or not a level
+   */
+  public static Level parseLevel(String value, Level fallback) {
+    if (value == null) return fallback;
+    try {
+      return Level.valueOf(value.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      return fallback;
+    }
+  }
+
+  public static boolean isEnabled(Level level) {
+    return level.ordinal() >= threshold;
+  }
+
+  public static boolean isTraceEnabled() {
+    return threshold == 0;
+  }
+
+  public static boolean isDebugEnabled() {
+    return threshold <= Level.DEBUG.ordinal();
+  }
+
+  public static long droppedEvents() {
+    return dropped.sum();
+  }
+
+  public static void trace(String message) {
+    log(Level.TRACE, message, null);
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message, null);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message, null);
+  }
+
+  public static void warn(String message) {
+    log(Level.WARN, message, null);
+  }
+
+  public static void warn(String message, Throwable throwable) {
+    log(Level.WARN, message, throwable);
+  }
+
+  public static void error(String message) {
+    log(Level.ERROR, message, null);
+  }
+
+  public static void error(String message, Throwable throwable) {
+    log(Level.ERROR, message, throwable);
+  }
+
+  /*****************************************************************************************************
+   * Records an event if its level is enabled. Never blocks.
+   *****************************************************************************************************/
+  public static void log(Level level, String message, Throwable throwable) {
+    if (level.ordinal() < threshold) return;
+    if (!buffer.publish(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, throwable))
+      dropped.increment();
+    else if (idle) LockSupport.unpark(writer);
+  }
+
+
+  /*****************************************************************************************************
+   * Writes out everything that is currently buffered. Called by a shutdown hook when the JVM exits.
+   *****************************************************************************************************/
+  public static void flush() {
+    synchronized (fileLock) {
+      while (buffer.drain(Log::write, Integer.MAX_VALUE) > 0);
+      if (file != null) file.flush();
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Body of the writer thread: drains the buffer in batches, and flushes the file and parks until the
+   * next event is published whenever the buffer runs empty.
+   *****************************************************************************************************/
+  private static void writeLoop() {
+    long reportedDrops = 0;
+    while (true) {
+      int drained;
+      synchronized (fileLock) {
+        drained = buffer.drain(Log::write, 1024);
+        if (drained == 0 && file != null) file.flush();
+      }
+      long drops = dropped.sum();
+      if (drops != reportedDrops) {
+        log(Level.WARN, (drops - reportedDrops) + " log events dropped, the log buffer was full.", null);
+        reportedDrops = drops;
+      }
+      if (drained == 0) awaitEvents();
+    }
+  }
+
+  /*****************************************************************************************************
+   * Parks the writer thread until a publisher unparks it. idle is set before the buffer is checked a
+   * last time, and publishers read it after publishing, so an event is either seen here or followed by
+   * an unpark; the timeout is only a safety net.
+   *****************************************************************************************************/
+  private static void awaitEvents() {
+    idle = true;
+    boolean empty;
+    synchronized (fileLock) {
+      empty = buffer.isEmpty();
+    }
+    if (empty) LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+    idle = false;
+  }
+
+  /* Formats one event. Only called by the thread holding fileLock. */
+  private static void write(RingBuffer.Event event) {
+    line.setLength(0);
+    line.append(dateFormat.format(new Date(event.millis)));
+    line.append(' ').append(event.level);
+    line.append(" [").append(event.thread).append("] ");
+    line.append(event.message);
+    if (event.throwable != null) {
+      StringWriter trace = new StringWriter();
+      event.throwable.printStackTrace(new PrintWriter(trace));
+      line.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+    }
+    String text = line.toString();
+    if (file != null) file.write(text);
+    if (console) {
+      if (event.level.ordinal() >= Level.WARN.ordinal()) System.err.println(text);
+      else System.out.println(text);
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Log file which is rotated once it grows past maxBytes: name.log becomes name.log.1, name.log.1
+   * becomes name.log.2 and so on, keeping at most maxFiles rotated files.
+   *****************************************************************************************************/
+  private static final class RollingFile {
+    private final File path;
+    private final long maxBytes;
+    private final int maxFiles;
+    private Writer out;
+    private long size;
+    private boolean failed;
+
+    RollingFile(File path, long maxBytes, int maxFiles) {
+      this.path = path;
+      this.maxBytes = maxBytes;
+      this.maxFiles = maxFiles;
+      open();
+    }
+
+    private void open() {
+      try {
+        File dir = path.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        size = path.length();
+        out =
+            new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), 64 * 1024);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void write(String text) {
+      if (failed) return;
+      try {
+        out.write(text);
+        out.write(System.lineSeparator());
+        size += text.length() + 1;
+        if (size >= maxBytes) rotate();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private void rotate() throws IOException {
+      out.close();
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        File from = new File(path.getPath() + "." + i);
+        if (from.exists()) from.renameTo(new File(path.getPath() + "." + (i + 1)));
+      }
+      if (maxFiles > 0) path.renameTo(new File(path.getPath() + ".1"));
+      else path.delete();
+      open();
+    }
+
+    void flush() {
+      if (failed) return;
+      try {
+        out.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void close() {
+      if (failed) return;
+      try {
+        out.close();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private void fail(IOException e) {
+      failed = true;
+      System.err.println("Unable to write log file " + path + ": " + e.getMessage());
+    }
+  }
+}
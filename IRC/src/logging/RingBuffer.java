@@ -0,0 +1,117 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*******************************************************************************************************************
+ * Bounded, lock-free, multi-producer single-consumer ring buffer of log events.
+ * The slots are allocated once and reused: a producer claims a position with a single CAS on the tail, fills the
+ * slot in place and publishes it by bumping the slot's sequence number. The consumer (the log writer thread) reads
+ * the slot and hands it back by moving its sequence one lap ahead. When the buffer is full, publish() fails
+ * immediately instead of blocking the calling thread.
+ ******************************************************************************************************************/
+final class RingBuffer {
+
+  /*************************************************************************
+   * A reusable slot of the ring buffer. Only ever touched by the producer
+   * which claimed it, then by the consumer once it is published.
+   *************************************************************************/
+  static final class Event {
+    long millis;
+    Log.Level level;
+    String thread;
+    String message;
+    Throwable throwable;
+
+    private void clear() {
+      thread = null;
+      message = null;
+      throwable = null;
+    }
+  }
+
+  private final int mask;
+  private final Event[] slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private long head;
+
+
+  /******************************************************************************
+   * @param capacity number of slots, rounded up to the next power of two
+   ******************************************************************************/
+  RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    slots = new Event[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Event();
+      sequences.set(i, i);
+    }
+  }
+
+
+  /******************************************************************************
+   * Copies an event into the next free slot. Safe to call from any thread.
+   * @return false if the buffer is full and the event was not recorded
+   ******************************************************************************/
+  boolean publish(long millis, Log.Level level, String thread, String message, Throwable throwable) {
+    long position;
+    int index;
+    while (true) {
+      position = tail.get();
+      index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) break;
+      } else if (difference < 0) {
+        return false;
+      }
+    }
+    Event event = slots[index];
+    event.millis = millis;
+    event.level = level;
+    event.thread = thread;
+    event.message = message;
+    event.throwable = throwable;
+    sequences.set(index, position + 1);
+    return true;
+  }
+
+
+  /******************************************************************************
+   * Hands every published event, in order, to the given sink.
+   * Must only be called from the single consumer thread.
+   * @param sink receives the events, which must not be kept after the call
+   * @param limit the maximum number of events to drain
+   * @return the number of events drained
+   ******************************************************************************/
+  int drain(Sink sink, int limit) {
+    int drained = 0;
+    while (drained < limit) {
+      int index = (int) (head & mask);
+      if (sequences.get(index) != head + 1) break;
+      Event event = slots[index];
+      sink.accept(event);
+      event.clear();
+      sequences.set(index, head + slots.length);
+      ++head;
+      ++drained;
+    }
+    return drained;
+  }
+
+  /******************************************************************************
+   * @return true if the event at the head is not published yet (nothing to
+   *     drain). Must only be called from the consumer.
+   ******************************************************************************/
+  boolean isEmpty() {
+    return sequences.get((int) (head & mask)) != head + 1;
+  }
+
+  interface Sink {
+    void accept(Event event);
+  }
+}
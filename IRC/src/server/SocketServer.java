@@ -1,6 +1,7 @@
 package server;
 
 import chatroom.*;
+import configurationFiles.Config;
 
 import java.awt.*;
 import java.awt.FlowLayout;
@@ -10,6 +11,7 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.*;
  
   
@@ -27,7 +29,7 @@ public class SocketServer extends JFrame implements ActionListener{
 	 *****************************************************************************************/
 	private static final long serialVersionUID = 1L;
 
-	// The server will listen on port number 8080 , This also needs to be made configurable along with IP address
+	// The server will listen on the port typed by the user, or on the irc.port setting (8080 by default)
 	//Also create error codes for the errors so that proper message can be displayed whenever something goes wrong in the exit window
     
 	public static String PORT = "";
@@ -44,14 +46,14 @@ public class SocketServer extends JFrame implements ActionListener{
     
     
     /************************************************************************************************************************
-     * These HashSets are present for the following reasons
-     * client_names:- HashSet maintains record of all unique names of clients within a chat room.This eliminated duplicates.
-     * writers:- For easy broadcast of messages, hashSet is used to maintain a record for all writers of all clients.
-     * chatRooms:- HashSet to maintain a record for all the available chat rooms
+     * These registries are present for the following reasons
+     * client_names:- Concurrent set of the unique names of the connected clients. This eliminates duplicates.
+     * chatRooms:- The available chat rooms by name, so a room is found by hashing instead of scanning every room.
+     *   Each room holds the writers of its own members, so messages are only written to the clients of that room.
+     *   A room is removed once its last member has left.
      ************************************************************************************************************************/
-    private static HashSet<String> client_names = new HashSet<String>(); 
-    private static HashSet<PrintWriter> writers = new HashSet<PrintWriter>(); 
-    private static HashSet<ChatRoom> chatRooms = new HashSet<ChatRoom>(); 
+    private static Set<String> client_names = ConcurrentHashMap.newKeySet(); 
+    private static ConcurrentHashMap<String, ChatRoom> chatRooms = new ConcurrentHashMap<String, ChatRoom>(); 
     
     
     
@@ -63,6 +65,7 @@ public class SocketServer extends JFrame implements ActionListener{
      **********************************************/
     @SuppressWarnings("deprecation")
 	public static void main(String[] args) throws Exception {
+    	Config.load(args);
     	
     	/****************************************************************************
     	 * The First step is to get the port number from the user
@@ -77,7 +80,7 @@ public class SocketServer extends JFrame implements ActionListener{
         b = new JButton("submit");
         SocketServer te = new SocketServer();
         b.addActionListener(te);
-        t = new JTextField(" ", 16);
+        t = new JTextField(String.valueOf(Config.getInt("irc.port", 8080)), 16);
         JPanel p = new JPanel();
         p.add(t);
         p.add(b);
@@ -95,7 +98,7 @@ public class SocketServer extends JFrame implements ActionListener{
     /*********************************************************
      * Server is listening for clients sockets requests
      *********************************************************/
-    int port = Integer.parseInt(PORT);
+    int port = PORT.isEmpty() ? Config.getInt("irc.port", 8080) : Integer.parseInt(PORT);
    	ServerSocket listener = new ServerSocket(port);
    
     
@@ -156,7 +159,6 @@ public class SocketServer extends JFrame implements ActionListener{
     private static class Handler extends Thread
     {
         private String name;
-        @SuppressWarnings("unused")
 		private String chatRoomName;
         private Socket socket;
         private BufferedReader input1;
@@ -167,49 +169,50 @@ public class SocketServer extends JFrame implements ActionListener{
             this.socket = socket;
         }
         
-       @SuppressWarnings({ "unused", "unlikely-arg-type" })
+       @SuppressWarnings("unused")
 	public int checkIfRoomExists(String roomName)
         {
-            
-            Iterator<ChatRoom> iterator = chatRooms.iterator(); // new iterator to pass through the data record
-            
-            while (iterator.hasNext()){ 
-               if(iterator.next().equals(roomName))
-               {
-                   return 1;
-               }
-            }
-            return 0;
+            return chatRooms.containsKey(roomName) ? 1 : 0;
         }
         
-        // Gets the chat room object based on input room name
+        // Gets the chat room object based on input room name, or null if there is no such room
        public ChatRoom getChatRoom(String roomName)
         {
-            Iterator<ChatRoom> iterator = chatRooms.iterator();
-            
-            while (iterator.hasNext()){
-                output1.println("check_chatroom");
-                ChatRoom room = (ChatRoom)iterator.next();
-                if(room.name.equals(roomName))
-                {
-                    return room;
-                }
-            }
-            return null;
+            return chatRooms.get(roomName);
         }
         
         // gets the list of chat rooms
         public String getChatRoomsList()
         { 
-            String chatRooomsList = "";   
-            Iterator<ChatRoom> iterator = chatRooms.iterator();
-            
-            while (iterator.hasNext())
+            StringBuilder chatRooomsList = new StringBuilder();
+            for (String roomName : chatRooms.keySet())
             {
-                ChatRoom room = (ChatRoom)iterator.next();
-                chatRooomsList += room.name + ",";
+                chatRooomsList.append(roomName).append(',');
             }
-            return chatRooomsList;
+            return chatRooomsList.toString();
+        }
+        
+        // Adds the client to the room, creating the room if needed. Atomic with the removal of an emptied room.
+        private void joinChatRoom(String roomName)
+        {
+            chatRooms.compute(roomName, (key, room) -> {
+                if (room == null)
+                {
+                    room = new ChatRoom();
+                    room.setName(key);
+                }
+                room.addParticipant(name, output1);
+                return room;
+            });
+        }
+        
+        // Removes the client from its room, and the room once it is empty
+        private void leaveChatRoom(String roomName)
+        {
+            chatRooms.computeIfPresent(roomName, (key, room) -> {
+                room.removeParticipant(name);
+                return room.isEmpty() ? null : room;
+            });
         }
 
         public void run()
@@ -219,50 +222,34 @@ public class SocketServer extends JFrame implements ActionListener{
                 input1 = new BufferedReader(new InputStreamReader(socket.getInputStream())); //input stream for the socket
                 output1 = new PrintWriter(socket.getOutputStream(), true); // output stream for the socket
                 
-                // Client's names are checked if they are unique
+                // Client's names are checked if they are unique: the client is asked again until it is
                 while (true) 
                 {
                     output1.println("PROVIDEANAME");
-                    name = input1.readLine();
-                    if (name == null) 
+                    String nameInput = input1.readLine();
+                    if (nameInput == null) 
                     {
                         return;
                     }
-                    synchronized (client_names) 
+                    if (client_names.add(nameInput)) 
                     {
-                        if (!client_names.contains(name)) 
-                        {
-                            client_names.add(name);
-                        }
-                        else
-                        {
-                        	output1.println("PROVIDEANAME");	
-                        }
-                    }
-                    
-                    output1.println("PROVIDEACHATROOMNAME");
-                    
-                    String  chatRoomNameInput = input1.readLine();
-                    if (chatRoomNameInput == null) 
-                    {
-                        return;
-                    }
-                    synchronized (chatRooms) 
-                    {    
-                        ChatRoom room = getChatRoom(chatRoomNameInput);
-                        if(room == null)
-                         {
-                              room = new ChatRoom();
-                              room.setName(chatRoomNameInput);
-                             chatRooms.add(room);
-                         }
-                        ChatRoom.writers.add(output1);
+                        name = nameInput;
                         break;
                     }
                 }
+                    
+                output1.println("PROVIDEACHATROOMNAME");
+                
+                String chatRoomNameInput = input1.readLine();
+                if (chatRoomNameInput == null) 
+                {
+                    return;
+                }
+                chatRoomName = chatRoomNameInput;
+                joinChatRoom(chatRoomName);
                 output1.println("UNIQUE_NAME");
                 
-		// broadcast of messages by a client in a chat room behind
+		// messages by a client are only written to the members of its chat room
                 while (true) 
                 {
                     String input = input1.readLine();
@@ -271,25 +258,27 @@ public class SocketServer extends JFrame implements ActionListener{
                         return;
                     }
                     
-                    String chatRoomName = input.split(":")[0];
-                    
-                    String messageInput = input.split(":")[1];
-                    
-                    @SuppressWarnings("unused")
-					ChatRoom room = getChatRoom(chatRoomName);
+                    // single pass: "<room name>:<message>", where the room must be the client's own room
+                    // and the message may itself contain ':'
+                    int colon = chatRoomName.length();
+                    if (input.length() <= colon || input.charAt(colon) != ':' || !input.startsWith(chatRoomName))
+                    {
+                        continue;
+                    }
+                    String messageInput = input.substring(colon + 1);
                     
-                        for (PrintWriter writer :ChatRoom.writers)
-                        {
-                            if(messageInput.startsWith("LISTOFCHATROOMS"))
-                            {
-                                writer.println("LISTOFCHATROOMS:" + name + ":" +chatRoomName+":"+ getChatRoomsList());
-                            }
-                            else
-                            {
-                              writer.println("MESSAGE:" + name + ":" +chatRoomName+":"+ messageInput);
-                            }
-                        }
+                    if (messageInput.startsWith("LISTOFCHATROOMS"))
+                    {
+                        // only the client asking for the list displays it
+                        output1.println("LISTOFCHATROOMS:" + name + ":" + chatRoomName + ":" + getChatRoomsList());
+                        continue;
+                    }
                     
+                    ChatRoom room = getChatRoom(chatRoomName);
+                    if (room != null)
+                    {
+                        room.broadcast("MESSAGE:" + name + ":" + room.name + ":" + messageInput, name);
+                    }
                 }
             }
             catch (IOException e)
@@ -300,11 +289,11 @@ public class SocketServer extends JFrame implements ActionListener{
             }
             finally
             {
-                  if (name != null) {
-                   client_names.remove(name); // remove the client name when leaves
+                if (name != null && chatRoomName != null) {
+                    leaveChatRoom(chatRoomName); // remove the client and its print writer from its room
                 }
-                if (output1 != null) {
-                    writers.remove(output1); // remove the client print writer
+                if (name != null) {
+                   client_names.remove(name); // remove the client name when leaves
                 }
                 try {
                     socket.close(); // close the socket
@@ -0,0 +1,498 @@
+package version2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Headless client of the version2 protocol, for the Swing Client as well as bots, tools and tests.
+ * Every command is asynchronous and returns a CompletableFuture. Commands carry a request id, which the server
+ * echoes in its ack (or error) reply, so the future completes when the server has carried out the command, or
+ * fails with a RequestFailedException holding the server's error message.
+ * Outbound packets go through a PacketWriter, so no method blocks on the socket. Inbound packets other than
+ * replies are handed to the Listener on the reader thread.
+ * Room messages are handed over in the order of their sequence numbers. When one arrives before a message it
+ * follows, it is held back and the missing ones are asked for again (resendRoom); those the server no longer
+ * has are skipped.
+ * A ChatClient is used for one connection; reconnecting means creating a new one, which can show the resume token of
+ * the previous join to take the user-name over from the old session. While connected it pings the server every
+ * pingMillis, so the server can tell a quiet client from a dead connection.
+ ******************************************************************************************************************/
+final class ChatClient {
+
+  /**************************************************************************
+   * Receives the inbound events, on the reader thread of the client.
+   **************************************************************************/
+  interface Listener {
+    /* Any packet from the server except the ack and error replies */
+    void packetReceived(Packet packet);
+
+    /* The connection is closed. @param cause the error, or null if it was closed normally */
+    void disconnected(IOException cause);
+  }
+
+  /* The server refused a command. The message is the server's explanation. */
+  static final class RequestFailedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    RequestFailedException(String message) {
+      super(message);
+    }
+  }
+
+  private static final ScheduledExecutorService pinger =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "chat-client-ping");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static final ExecutorService connector =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread thread = new Thread(r, "chat-client-connect");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /************************************************************************************************
+   * Data Members
+   * listener:- receives the inbound packets and the disconnection
+   * sendQueueCapacity / sendBatchSize:- settings of the PacketWriter
+   * pingMillis / pings:- interval of the pings (0 for none), and their scheduled task
+   * requestTimeoutSeconds:- how long a command waits for the server's reply
+   * requestids / requests:- the last request id handed out, and the futures waiting for a reply
+   * closed:- completes once the connection is closed
+   * userid:- the user id given by the server, -1 until joined
+   * resumeToken:- the token given by the server with the user id, null until joined
+   * reader / readerTasks:- the reader thread, and work for it queued by other threads
+   * sequences:- the ordering state of each room with messages, used on the reader thread only
+   ************************************************************************************************/
+  private final Listener listener;
+  private final int sendQueueCapacity;
+  private final int sendBatchSize;
+  private final long pingMillis;
+  private volatile ScheduledFuture<?> pings;
+  private final long requestTimeoutSeconds = 30;
+  private final AtomicInteger requestids = new AtomicInteger();
+  private final Map<Integer, CompletableFuture<Packet>> requests = new ConcurrentHashMap<>();
+  private final CompletableFuture<Void> closed = new CompletableFuture<>();
+  private final AtomicBoolean closing = new AtomicBoolean();
+  private volatile Socket socket;
+  private volatile PacketWriter writer;
+  private volatile int userid = -1;
+  private volatile String resumeToken;
+  private volatile Thread reader;
+  private final ConcurrentLinkedQueue<Runnable> readerTasks = new ConcurrentLinkedQueue<>();
+  private final Map<Integer, RoomSequence> sequences = new HashMap<>();
+
+  /* The room messages of one room: the last one handed to the listener, and those held back */
+  private static final class RoomSequence {
+    long delivered;
+    final TreeMap<Long, Packet> held = new TreeMap<>();
+    boolean resending;
+  }
+
+  ChatClient(Listener listener) {
+    this(listener, 256, 64, 30_000);
+  }
+
+  ChatClient(Listener listener, int sendQueueCapacity, int sendBatchSize, long pingMillis) {
+    this.listener = listener;
+    this.sendQueueCapacity = sendQueueCapacity;
+    this.sendBatchSize = sendBatchSize;
+    this.pingMillis = pingMillis;
+  }
+
+
+  /*****************************************************************************************
+   * Opens the connection on a background thread.
+   * @return completes once the object streams are set up
+   *****************************************************************************************/
+  CompletableFuture<Void> connect(String host, int port) {
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            open(host, port);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        },
+        connector);
+  }
+
+
+  /*****************************************************************************************
+   * Opens the connection on the calling thread, and starts the reader and writer threads.
+   * @throws IOException if the server cannot be reached
+   *****************************************************************************************/
+  void open(String host, int port) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), 5000);
+      socket.setTcpNoDelay(true);
+      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+      out.flush();
+      ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+      this.socket = socket;
+      writer =
+          new PacketWriter(
+              "chat-client-writer", out, sendQueueCapacity, sendBatchSize, (lost, cause) -> shutdown(cause));
+      Thread reader = new Thread(() -> readLoop(in), "chat-client-reader");
+      reader.setDaemon(true);
+      this.reader = reader;
+      reader.start();
+      if (pingMillis > 0)
+        pings = pinger.scheduleWithFixedDelay(this::ping, pingMillis, pingMillis, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Joins the server under the given user-name.
+   * @return completes with the user id given by the server
+   *****************************************************************************************/
+  CompletableFuture<Integer> join(String username) {
+    return join(username, List.of());
+  }
+
+
+  /*****************************************************************************************
+   * Joins the server, then sends the given packets in the same batch (nothing can be sent
+   * in between). Used to flush the packets typed while disconnected.
+   * @return completes with the user id given by the server
+   *****************************************************************************************/
+  CompletableFuture<Integer> join(String username, List<Packet> thenSend) {
+    return join(username, null, thenSend);
+  }
+
+
+  /*****************************************************************************************
+   * Joins the server again after a lost connection. With the resume token of the previous
+   * join, the user-name is taken over from the old session if the server still has it.
+   * @param resumeToken the resumeToken() of the previous ChatClient, or null
+   * @return completes with the user id given by the server
+   *****************************************************************************************/
+  CompletableFuture<Integer> join(String username, String resumeToken, List<Packet> thenSend) {
+    Packet packet = new Packet();
+    packet.joinServer(username);
+    packet.targetname = resumeToken;
+    List<Packet> batch = new ArrayList<>(thenSend.size() + 1);
+    batch.add(packet);
+    batch.addAll(thenSend);
+    CompletableFuture<Packet> reply = register(packet);
+    PacketWriter writer = this.writer;
+    if (writer == null || writer.sendAll(batch) < batch.size()) refuse(packet);
+    return reply.thenApply(joined -> joined.targetid);
+  }
+
+  CompletableFuture<Void> sendToAll(String message) {
+    Packet packet = new Packet();
+    packet.sendMessageAll(message);
+    return request(packet).thenApply(reply -> null);
+  }
+
+  CompletableFuture<Void> sendToUser(int targetid, String message) {
+    Packet packet = new Packet();
+    packet.sendMessageUser(targetid, message);
+    return request(packet).thenApply(reply -> null);
+  }
+
+  /* Addresses the user by user-name, compared ignoring case by the server */
+  CompletableFuture<Void> sendToUser(String username, String message) {
+    Packet packet = new Packet();
+    packet.sendMessageUser(username, message);
+    return request(packet).thenApply(reply -> null);
+  }
+
+  CompletableFuture<Void> sendToRoom(int roomid, String message) {
+    Packet packet = new Packet();
+    packet.sendMessageRoom(roomid, message);
+    return request(packet).thenApply(reply -> null);
+  }
+
+  /*****************************************************************************************
+   * Asks for a page of the rooms, in the order of their names.
+   * @param cursor the cursor of the previous page (its targetname), null for the first one
+   * @param limit the most rooms wanted, 0 for the server's page size
+   * @param prefix only the rooms whose name starts with it (ignoring case), null for all
+   * @return completes with the roomPage: ids, names, counts, and targetname the next cursor
+   *****************************************************************************************/
+  CompletableFuture<Packet> listRooms(String cursor, int limit, String prefix) {
+    Packet packet = new Packet();
+    packet.listRooms(cursor, limit, prefix);
+    return request(packet);
+  }
+
+  /* Same as listRooms, for the users who have joined; completes with the userPage */
+  CompletableFuture<Packet> listUsers(String cursor, int limit, String prefix) {
+    Packet packet = new Packet();
+    packet.listUsers(cursor, limit, prefix);
+    return request(packet);
+  }
+
+  /* @return completes with the id of the new room */
+  CompletableFuture<Integer> createRoom(String roomName) {
+    Packet packet = new Packet();
+    packet.createRoom(roomName);
+    return request(packet).thenApply(reply -> reply.targetid);
+  }
+
+  CompletableFuture<Void> joinRoom(int roomid) {
+    Packet packet = new Packet();
+    packet.joinRoom(roomid);
+    return request(packet).thenApply(reply -> null);
+  }
+
+  CompletableFuture<Void> leaveRoom(int roomid) {
+    Packet packet = new Packet();
+    packet.leaveRoom(roomid);
+    return request(packet).thenApply(reply -> null);
+  }
+
+
+  /*****************************************************************************************
+   * Leaves the server.
+   * @return completes once the server has closed the connection
+   *****************************************************************************************/
+  CompletableFuture<Void> leave() {
+    Packet packet = new Packet();
+    packet.leaveServer();
+    PacketWriter writer = this.writer;
+    if (writer == null || !writer.send(packet)) close(0);
+    return closed;
+  }
+
+
+  /*****************************************************************************************
+   * Sends any command packet, with a request id.
+   * @return completes with the server's reply (ack, or joinServer for a join)
+   *****************************************************************************************/
+  CompletableFuture<Packet> request(Packet packet) {
+    CompletableFuture<Packet> reply = register(packet);
+    PacketWriter writer = this.writer;
+    if (writer == null || !writer.send(packet)) refuse(packet);
+    return reply;
+  }
+
+
+  /*****************************************************************************************
+   * Closes the connection without leaving the server first.
+   * @param drainMillis how long to wait for the queued packets to be written
+   *****************************************************************************************/
+  void close(long drainMillis) {
+    PacketWriter writer = this.writer;
+    if (writer != null && !closing.get()) writer.close(drainMillis);
+    shutdown(null);
+  }
+
+  /* @return completes once the connection is closed */
+  CompletableFuture<Void> closed() {
+    return closed;
+  }
+
+  boolean isConnected() {
+    return socket != null && !closing.get();
+  }
+
+  /* @return the user id given by the server, -1 until joined */
+  int userId() {
+    return userid;
+  }
+
+  /* @return the token with which the next connection can take the user-name over, null until joined */
+  String resumeToken() {
+    return resumeToken;
+  }
+
+  private void ping() {
+    PacketWriter writer = this.writer;
+    if (writer == null || closing.get()) return;
+    Packet packet = new Packet();
+    packet.ping();
+    writer.send(packet);
+  }
+
+  /* @return the writer of the connection (for its pending and failed counts), null until connected */
+  PacketWriter writer() {
+    return writer;
+  }
+
+
+  private CompletableFuture<Packet> register(Packet packet) {
+    int requestid = requestids.incrementAndGet();
+    packet.requestid = requestid;
+    CompletableFuture<Packet> reply = new CompletableFuture<>();
+    requests.put(requestid, reply);
+    reply.whenComplete((result, error) -> requests.remove(requestid));
+    return reply.orTimeout(requestTimeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  private void refuse(Packet packet) {
+    CompletableFuture<Packet> reply = requests.remove(packet.requestid);
+    if (reply != null)
+      reply.completeExceptionally(new IOException("Not connected, or too many packets are waiting to be sent."));
+  }
+
+
+  /*****************************************************************************************
+   * Body of the reader thread: completes the futures of the replies and hands every other
+   * packet to the listener, until the connection is closed.
+   *****************************************************************************************/
+  private void readLoop(ObjectInputStream in) {
+    IOException cause = null;
+    while (true) {
+      try {
+        Packet packet = (Packet) in.readObject();
+        if (Log.isTraceEnabled()) Log.trace(packet.command + " packet received from server.");
+        for (Runnable task; (task = readerTasks.poll()) != null; ) task.run();
+        dispatch(packet);
+      } catch (EOFException e) {
+        break;
+      } catch (IOException e) {
+        if (!closing.get()) cause = e;
+        break;
+      } catch (ClassNotFoundException | ClassCastException e) {
+        Log.error("Unreadable packet received from server.", e);
+      } catch (RuntimeException e) {
+        Log.error("Error while handling a packet from server.", e);
+      }
+    }
+    shutdown(cause);
+  }
+
+  private void dispatch(Packet packet) {
+    // before the join's future completes, so that its callbacks see them
+    if (packet.command.equals("joinServer")) {
+      userid = packet.targetid;
+      resumeToken = packet.targetname;
+    }
+    if (packet.requestid > 0) {
+      CompletableFuture<Packet> reply = requests.remove(packet.requestid);
+      if (reply != null) {
+        if (packet.command.equals("error")) reply.completeExceptionally(new RequestFailedException(packet.message));
+        else reply.complete(packet);
+      }
+      if (packet.command.equals("ack") || packet.command.equals("error")) return;
+      if (packet.command.equals("roomPage") || packet.command.equals("userPage")) return;
+    }
+    if (packet.seq > 0 && "sendMessageRoom".equals(packet.via)) {
+      roomMessage(packet);
+      return;
+    }
+    if (packet.command.equals("roomMemberRemoved") && packet.subjectid == userid) sequences.remove(packet.targetid);
+    listener.packetReceived(packet);
+  }
+
+
+  /*****************************************************************************************
+   * Hands a room message to the listener if it is the next one of its room, along with the
+   * held back messages which follow it; otherwise holds it back and asks for the missing
+   * ones. The first message seen in a room is taken as the start.
+   *****************************************************************************************/
+  private void roomMessage(Packet packet) {
+    RoomSequence room = sequences.computeIfAbsent(packet.targetid, roomid -> new RoomSequence());
+    if (room.delivered == 0) room.delivered = packet.seq - 1;
+    if (packet.seq <= room.delivered) return;
+    if (packet.seq > room.delivered + 1) {
+      room.held.put(packet.seq, packet);
+      if (!room.resending) resend(packet.targetid, room);
+      return;
+    }
+    room.delivered = packet.seq;
+    listener.packetReceived(packet);
+    release(room);
+  }
+
+  private void release(RoomSequence room) {
+    while (!room.held.isEmpty() && room.held.firstKey() <= room.delivered + 1) {
+      Packet next = room.held.pollFirstEntry().getValue();
+      if (next.seq <= room.delivered) continue;
+      room.delivered = next.seq;
+      listener.packetReceived(next);
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Asks the server for the messages missing before the first held back one. Once it
+   * replies, those it no longer has (all of them if it refused) are skipped; the others
+   * have come before its reply, which the server sends behind them. If messages are still
+   * held back after that, the next gap is asked for at once, so that they do not wait for
+   * another message to arrive.
+   *****************************************************************************************/
+  private void resend(int roomid, RoomSequence room) {
+    long from = room.delivered + 1;
+    int count = (int) Math.min(Integer.MAX_VALUE, room.held.firstKey() - from);
+    Packet packet = new Packet();
+    packet.resendRoom(roomid, from, count);
+    room.resending = true;
+    request(packet)
+        .whenComplete(
+            (reply, error) -> {
+              long gone = reply != null ? reply.targetid : count;
+              onReader(() -> resent(roomid, room, from + gone - 1));
+            });
+  }
+
+  private void resent(int roomid, RoomSequence room, long skipTo) {
+    room.resending = false;
+    if (sequences.get(roomid) != room) return;
+    if (skipTo > room.delivered) room.delivered = skipTo;
+    release(room);
+    if (!room.held.isEmpty()) resend(roomid, room);
+  }
+
+  /* Runs the task on the reader thread: at once if called there, otherwise before the next packet */
+  private void onReader(Runnable task) {
+    if (Thread.currentThread() == reader) task.run();
+    else readerTasks.add(task);
+  }
+
+
+  /*****************************************************************************************
+   * Closes the socket once, fails the requests still waiting for a reply and tells the
+   * listener.
+   *****************************************************************************************/
+  private void shutdown(IOException cause) {
+    if (!closing.compareAndSet(false, true)) return;
+    ScheduledFuture<?> pings = this.pings;
+    if (pings != null) pings.cancel(false);
+    PacketWriter writer = this.writer;
+    if (writer != null) writer.close(0);
+    try {
+      if (socket != null) socket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+    IOException failure = cause != null ? cause : new IOException("Connection closed.");
+    for (CompletableFuture<Packet> reply : requests.values()) reply.completeExceptionally(failure);
+    requests.clear();
+    listener.disconnected(cause);
+    closed.complete(null);
+  }
+}
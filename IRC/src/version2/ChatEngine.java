@@ -0,0 +1,1131 @@
+package version2;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Log;
+
+
+/******************************************************************************************************************************************
+ * {@summary}
+ * The chat engine holds the users and rooms of a running server and carries out the commands in the packets they send.
+ * It is independent of the GUI and of the transport: users are ServerSessions, and everything the host should display
+ * is reported through a ServerView. A new engine is created each time the server is started.
+ *****************************************************************************************************************************************/
+class ChatEngine {
+
+/****************************************************************************************************************************************
+ * Engine data members
+ * threadCount:- For keeping a count on the number of users, used to hand out user id #s
+ * roomCount:- For keeping a count on the number of rooms, used to hand out room id #s
+ * threadMap:- Mapping of user id #s to ServerSessions
+ * nicknames:- Mapping of the user-names in use to user id #s, which keeps user-names unique
+ * roomMap:- Mapping of room id #s to ServerRooms
+ * roomIndex:- The rooms in the order of their folded names (see roomKey), for listRooms
+ * metrics:- Counters and latency histograms for the packets handled by the engine
+ * view:- Receives the messages and lists to display on the host
+ * messagesPerSecond / messageBurst:- Rate limit of the commands of each user (joining and leaving excepted), 0 for none;
+ *   volatile so that the host can change it while running
+ * fanOutThreshold / fanOutChunk:- Packets for at least fanOutThreshold recipients are handed out by the fan-out pool, in
+ *   chunks of fanOutChunk recipients; smaller fan-outs run on the sender's thread. Volatile for the same reason
+ * FAN_OUT_POOL:- Work-stealing pool shared by the engines, one daemon thread per core, started on first use
+ * roomWindow:- Number of the latest messages each new room keeps for members who missed some
+ * changedRooms:- Ids of the rooms created, removed or joined or left since the last room summary
+ * summaries:- Sends the room summaries and refreshes the host's room list, while the server runs
+ * rosterPush:- Whether every client is sent the users and rooms (snapshots when joining, userAdded / userRemoved and
+ *   the room summaries). Without it clients ask for them with listUsers / listRooms, and only see the members of
+ *   their own rooms come and go
+ * pageSize:- Most entries in a page of listRooms / listUsers
+ * journal:- Told of every change to the rooms and their members, to keep them over a restart (see StateSnapshotter)
+ * awaitedRooms:- Folded user-name to the restored rooms the user is awaited in (see ServerRoom.awaited), and to the
+ *   rooms of a session taken over by a reconnect, for the moment between the two sessions
+ * TOKENS:- Source of the resume tokens given to the users when they join
+ *******************************************************************************************************************************************/
+  private final AtomicInteger threadCount = new AtomicInteger();
+  private final AtomicInteger roomCount = new AtomicInteger();
+  final Map<Integer, ServerSession> threadMap = new ConcurrentHashMap<>();
+  final NicknameRegistry nicknames = new NicknameRegistry();
+  final Map<Integer, ServerRoom> roomMap = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<String, Integer> roomIndex = new ConcurrentSkipListMap<>();
+  final ServerMetrics metrics;
+  private final ServerView view;
+  private volatile double messagesPerSecond;
+  private volatile double messageBurst;
+  private volatile int fanOutThreshold = 1024;
+  private volatile int fanOutChunk = 256;
+  private volatile int roomWindow = 256;
+  private final Set<Integer> changedRooms = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService summaries;
+  private volatile boolean rosterPush = true;
+  private volatile int pageSize = 100;
+  private volatile StateJournal journal = StateJournal.NONE;
+  private final Map<String, Set<Integer>> awaitedRooms = new ConcurrentHashMap<>();
+  private static final SecureRandom TOKENS = new SecureRandom();
+  private static final ForkJoinPool FAN_OUT_POOL =
+      new ForkJoinPool(
+          Runtime.getRuntime().availableProcessors(),
+          pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fan-out-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+          },
+          null,
+          false);
+
+  /* Constructor */
+  ChatEngine(ServerMetrics metrics, ServerView view) {
+    this.metrics = metrics;
+    this.view = view;
+  }
+
+  
+  /*****************************************************************
+   * @return the next free user id #
+   *****************************************************************/
+  int nextSessionId() {
+    return threadCount.incrementAndGet();
+  }
+
+  
+  /**************************************************************************************************
+   * Registers a newly connected user. The user is part of every broadcast from this point on, and
+   * gets its user-name once its joinServer packet is handled.
+   * @param session the session of the new user
+   **************************************************************************************************/
+  void addSession(ServerSession session) {
+    threadMap.put(session.id, session);
+  }
+
+
+  /**************************************************************************************************
+   * Forgets a user whose user-name was refused, without closing its connection, so that it can
+   * try another name. Users who have joined leave through disconnectClient instead.
+   * @param session the session of the user
+   **************************************************************************************************/
+  void removeSession(ServerSession session) {
+    if (session.username == null) threadMap.remove(session.id, session);
+  }
+
+
+  /**************************************************************************************************
+   * Limits the commands each user can send, with a token bucket per user.
+   * @param perSecond the sustained rate allowed, 0 for no limit
+   * @param burst the most commands allowed at once after a quiet period
+   **************************************************************************************************/
+  void setRateLimit(double perSecond, int burst) {
+    messageBurst = Math.max(1, burst);
+    messagesPerSecond = Math.max(0, perSecond);
+  }
+
+
+  /**************************************************************************************************
+   * Sets when fan-out is split over the fan-out pool.
+   * @param threshold the fewest recipients handed out in parallel, 0 to always run on the sender's thread
+   * @param chunk the recipients handled by one task of the pool
+   **************************************************************************************************/
+  void setFanOut(int threshold, int chunk) {
+    fanOutChunk = Math.max(1, chunk);
+    fanOutThreshold = threshold <= 0 ? Integer.MAX_VALUE : threshold;
+  }
+
+
+  /**************************************************************************************************
+   * Sets how clients learn the users and rooms.
+   * @param push true to send them to every client, false for clients to ask with listUsers / listRooms
+   * @param pageSize the most entries in a page of listUsers / listRooms
+   **************************************************************************************************/
+  void setRoster(boolean push, int pageSize) {
+    this.pageSize = Math.max(1, pageSize);
+    rosterPush = push;
+  }
+
+
+  /* Sets the journal told of the changes to the rooms, StateJournal.NONE for none */
+  void setJournal(StateJournal journal) {
+    this.journal = journal;
+  }
+
+  /* @return the last user id # handed out */
+  int lastSessionId() {
+    return threadCount.get();
+  }
+
+  /* @return the last room id # handed out */
+  int lastRoomId() {
+    return roomCount.get();
+  }
+
+
+  /**************************************************************************************************
+   * Puts back a room kept from before the server was restarted, before any user joins. The users
+   * who were in it are awaited: each is put back in the room when joining the server under the
+   * same user-name (compared ignoring case), until expireAwaited.
+   * @param roomid the id of the room, which is not handed out again
+   * @param roomName the name of the room
+   * @param usernames the user-names of its members
+   **************************************************************************************************/
+  void restoreRoom(int roomid, String roomName, Collection<String> usernames) {
+    ServerRoom serverRoom = new ServerRoom(roomName, roomWindow);
+    for (String username : usernames) {
+      String folded = NicknameRegistry.fold(username);
+      serverRoom.awaited.add(folded);
+      awaitedRooms.computeIfAbsent(folded, name -> ConcurrentHashMap.newKeySet()).add(roomid);
+    }
+    roomMap.put(roomid, serverRoom);
+    roomIndex.put(roomKey(roomName, roomid), roomid);
+    restoreCounters(0, roomid);
+  }
+
+  /* Makes sure user and room id #s up to the given ones are not handed out again */
+  void restoreCounters(int lastSessionId, int lastRoomId) {
+    threadCount.accumulateAndGet(lastSessionId, Math::max);
+    roomCount.accumulateAndGet(lastRoomId, Math::max);
+  }
+
+
+  /**************************************************************************************************
+   * Stops waiting for the users of the restored rooms who have not come back: they are no longer
+   * members, and the rooms left without members are removed.
+   **************************************************************************************************/
+  void expireAwaited() {
+    awaitedRooms.clear();
+    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
+      ServerRoom serverRoom = entry.getValue();
+      if (serverRoom.awaited.isEmpty()) continue;
+      List<String> expired = new ArrayList<>(serverRoom.awaited);
+      serverRoom.awaited.removeAll(expired);
+      for (String username : expired) journal.memberRemoved(entry.getKey(), username);
+      roomChanged(entry.getKey());
+      removeRoomIfEmpty(entry.getKey(), serverRoom);
+    }
+  }
+
+
+  /**************************************************************************************************
+   * @param messages the number of the latest messages kept by the rooms created from now on
+   **************************************************************************************************/
+  void setRoomWindow(int messages) {
+    roomWindow = Math.max(1, messages);
+  }
+
+
+  /*********************************************************************************************************************
+   * Admin view of the server metrics: the registry report followed by the packet rate of every session.
+   * @return the report as multi-line text
+   *********************************************************************************************************************/
+  String metricsReport() {
+    StringBuilder sb = new StringBuilder(metrics.report());
+    sb.append("\npackets handled per session:");
+    long now = System.nanoTime();
+    for (Map.Entry<Integer, ServerSession> entry : threadMap.entrySet()) {
+      ServerSession session = entry.getValue();
+      long handled = session.packetsHandled.sum();
+      double seconds = Math.max(1e-9, (now - session.connectedAt) / 1e9);
+      sb.append("\n   # ").append(entry.getKey()).append(" ").append(session.username);
+      sb.append(": ").append(handled).append(String.format(" (%.1f/s)", handled / seconds));
+    }
+    return sb.toString();
+  }
+
+
+  /*********************************************************************************************************************
+   * Takes a packet from a specified client and determines what action to take given the packet's command value.
+   * If the packet carries a request id, the client gets an ack or error reply with that id (see ChatClient).
+   * Until the client has joined the server with a user-name, only joinServer and leaveServer are accepted: the
+   * other commands would show, and journal, a user without a name.
+   * @param packet packet containing data from the client
+   * @param senderid id number corresponding to the client that sent the packet
+   **********************************************************************************************************************/
+  void packetHandler(Packet packet, int senderid) {
+    long start = System.nanoTime();
+    String command = packet.command;
+    int requestid = packet.requestid;
+    if (messagesPerSecond > 0 && rateLimited(command, senderid, start)) {
+      sendError(senderid, requestid, "System: You are sending too fast, the command was dropped.");
+      metrics.packetHandled("rateLimited", System.nanoTime() - start);
+      return;
+    }
+    if (!joined(command, senderid)) {
+      sendError(senderid, requestid, "System: Join the server with a user-name first.");
+      metrics.packetHandled("notJoined", System.nanoTime() - start);
+      return;
+    }
+    switch (command) {
+      case "joinServer":
+        joinServer(senderid, requestid, packet.message, packet.targetname);
+        break;
+      case "leaveServer":
+        disconnectClient(senderid);
+        break;
+      case "ping":
+        break;
+      case "sendMessageAll":
+        sendMessageAll(senderid, requestid, packet.message);
+        break;
+      case "sendMessageUser":
+        sendMessageUser(senderid, requestid, packet.targetid, packet.targetname, packet.message);
+        break;
+      case "sendMessageRoom":
+        sendMessageRoom(senderid, requestid, packet.targetid, packet.message);
+        break;
+      case "createRoom":
+        createRoom(senderid, requestid, packet.message);
+        break;
+      case "joinRoom":
+        joinRoom(senderid, requestid, packet.targetid);
+        break;
+      case "leaveRoom":
+        leaveRoom(senderid, requestid, packet.targetid);
+        break;
+      case "resendRoom":
+        resendRoom(senderid, requestid, packet.targetid, packet.seq, packet.subjectid);
+        break;
+      case "listRooms":
+        listRooms(senderid, requestid, packet.targetname, packet.subjectid, packet.message);
+        break;
+      case "listUsers":
+        listUsers(senderid, requestid, packet.targetname, packet.subjectid, packet.message);
+        break;
+      default:
+        sendError(senderid, requestid, "System: Unrecognized command '" + command + "'.");
+        command = "unrecognized";
+    }
+    metrics.packetHandled(command, System.nanoTime() - start);
+  }
+
+  /* @return true if the command can be handled: the sender has a user-name, or the command is the one giving it */
+  private boolean joined(String command, int senderid) {
+    if (command.equals("joinServer") || command.equals("leaveServer") || command.equals("ping")) return true;
+    ServerSession session = threadMap.get(senderid);
+    return session != null && session.username != null;
+  }
+
+  /* @return true if the command goes over the rate limit of the user */
+  private boolean rateLimited(String command, int senderid, long now) {
+    if (command.equals("joinServer") || command.equals("leaveServer") || command.equals("ping")) return false;
+    ServerSession session = threadMap.get(senderid);
+    return session != null && !session.takeToken(messagesPerSecond, messageBurst, now);
+  }
+
+  /****************************************************************************************************************************
+   * When a client connects to the server, or disconnects from the server, the user list shown on the host is refreshed.
+   * Clients are kept up to date with userAdded / userRemoved packets instead of the whole list.
+   ****************************************************************************************************************************/
+  void userUpdate() {
+    if (view != ServerView.NONE) view.userListChanged(userList());
+  }
+
+  
+  /*****************************************************************
+   * @return the text of the user list shown on the host
+   *****************************************************************/
+  String userList() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(threadMap.size()).append(" USERS\n");
+    for (Map.Entry<Integer, ServerSession> entry : threadMap.entrySet())
+      sb.append("\n# ").append(entry.getKey()).append(" ").append(entry.getValue().username);
+    return sb.toString();
+  }
+
+  
+  /**********************************************************************************************************
+   * When a room is created, joined, left or removed, it is marked for the next room summary.
+   * The members of the room are told at once, with roomMemberAdded / roomMemberRemoved packets; the other
+   * clients, and the room list shown on the host, only see the summary, so a change costs in proportion to the
+   * room and not to the server.
+   * @param roomid the id of the room
+   **********************************************************************************************************/
+  private void roomChanged(int roomid) {
+    changedRooms.add(roomid);
+  }
+
+
+  /**********************************************************************************************************
+   * Starts sending the room summaries at a fixed interval, until stopRoomSummaries.
+   * @param periodMillis interval between two summaries
+   **********************************************************************************************************/
+  synchronized void startRoomSummaries(long periodMillis) {
+    stopRoomSummaries();
+    summaries =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "room-summary");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long period = Math.max(1, periodMillis);
+    summaries.scheduleWithFixedDelay(
+        () -> {
+          try {
+            sendRoomSummary();
+          } catch (RuntimeException e) {
+            Log.error("Error while sending the room summary.", e);
+          }
+        },
+        period,
+        period,
+        TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stopRoomSummaries() {
+    if (summaries != null) summaries.shutdownNow();
+    summaries = null;
+  }
+
+
+  /**********************************************************************************************************
+   * Sends every client a roomSummary of the rooms changed since the last one, if any, and refreshes the
+   * room list shown on the host. A room changed again meanwhile is in the next summary.
+   **********************************************************************************************************/
+  void sendRoomSummary() {
+    if (changedRooms.isEmpty()) return;
+    List<Integer> changed = new ArrayList<>(changedRooms);
+    changedRooms.removeAll(changed);
+    int[] ids = new int[changed.size()];
+    String[] names = new String[ids.length];
+    int[] counts = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = changed.get(i);
+      ServerRoom room = roomMap.get(ids[i]);
+      names[i] = room == null ? null : room.roomName;
+      counts[i] = room == null ? 0 : room.memberCount();
+    }
+    if (rosterPush) {
+      Packet packet = new Packet();
+      packet.roomSummary(ids, names, counts);
+      sendPacketAll(packet);
+    }
+    if (view != ServerView.NONE) view.roomListChanged(roomList());
+  }
+
+  
+  /**********************************************************************************************************
+   * @return the text of the room list shown on the host, with the members of each room
+   **********************************************************************************************************/
+  String roomList() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(" ROOMS\n");
+    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
+      if (entry.getValue().isEmpty()) continue;
+      sb.append("\n# ").append(entry.getKey()).append(" ").append(entry.getValue().roomName);
+      for (Integer i : entry.getValue().members) {
+        ServerSession member = threadMap.get(i);
+        if (member != null) sb.append("\n   # ").append(i).append(" ").append(member.username);
+      }
+    }
+    return sb.toString();
+  }
+
+  
+  /**********************************************************************************************************
+   * @return a userSnapshot packet listing every user who has joined the server
+   **********************************************************************************************************/
+  Packet userSnapshot() {
+    List<ServerSession> joined = new ArrayList<>(threadMap.size());
+    for (ServerSession session : threadMap.values()) if (session.username != null) joined.add(session);
+    int[] ids = new int[joined.size()];
+    String[] names = new String[joined.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = joined.get(i).id;
+      names[i] = joined.get(i).username;
+    }
+    Packet packet = new Packet();
+    packet.userSnapshot(ids, names);
+    return packet;
+  }
+
+  
+  /**********************************************************************************************************
+   * @param userid the user the snapshot is for
+   * @return a roomSnapshot packet listing every room with its member count, and with its members for the
+   *   rooms the user is in
+   **********************************************************************************************************/
+  Packet roomSnapshot(int userid) {
+    List<Map.Entry<Integer, ServerRoom>> rooms = new ArrayList<>(roomMap.entrySet());
+    int[] ids = new int[rooms.size()];
+    String[] names = new String[rooms.size()];
+    int[] counts = new int[rooms.size()];
+    int[][] members = new int[rooms.size()][];
+    for (int i = 0; i < ids.length; i++) {
+      ServerRoom room = rooms.get(i).getValue();
+      ids[i] = rooms.get(i).getKey();
+      names[i] = room.roomName;
+      counts[i] = room.memberCount();
+      members[i] = room.members.contains(userid) ? room.memberIds() : new int[0];
+    }
+    Packet packet = new Packet();
+    packet.roomSnapshot(ids, names, counts, members);
+    return packet;
+  }
+
+  
+  /***************************************************************************************************
+   * Sends the packet containing data from the client to every connected user. 
+   * The threadMap contains every user id, which corresponds to the server thread count.
+   * With fanOutThreshold users or more, the sessions are copied to an array and handed out in parallel.
+   * @param packet packet containing data from the client
+   ***************************************************************************************************/
+  void sendPacketAll(Packet packet) {
+    if (threadMap.size() < fanOutThreshold) {
+      int recipients = 0;
+      for (Map.Entry<Integer, ServerSession> entry : threadMap.entrySet()) {
+        entry.getValue().sendPacket(packet);
+        ++recipients;
+      }
+      metrics.fanOut(recipients);
+      return;
+    }
+    ServerSession[] sessions = threadMap.values().toArray(new ServerSession[0]);
+    fanOut(
+        sessions.length,
+        (from, to) -> {
+          for (int i = from; i < to; i++) sessions[i].sendPacket(packet);
+        });
+    metrics.fanOut(sessions.length);
+  }
+
+
+  /***************************************************************************************************
+   * Sends the packet to the given users, skipping those who have left meanwhile.
+   * @param ids user id #s, typically the members of a room
+   * @param packet the packet to send
+   ***************************************************************************************************/
+  private void sendPacketTo(int[] ids, Packet packet) {
+    fanOut(
+        ids.length,
+        (from, to) -> {
+          for (int i = from; i < to; i++) {
+            ServerSession session = threadMap.get(ids[i]);
+            if (session != null) session.sendPacket(packet);
+          }
+        });
+    metrics.fanOut(ids.length);
+  }
+
+
+  /* Sends a packet to the recipients in [from, to) of a fan-out */
+  private interface Recipients {
+    void send(int from, int to);
+  }
+
+  /***************************************************************************************************
+   * Runs a fan-out over count recipients: on the calling thread below fanOutThreshold, otherwise
+   * split in halves down to fanOutChunk recipients, which the idle threads of the fan-out pool
+   * steal. Returns once every recipient has been handed the packet, so the packets a user sends
+   * still reach each recipient in the order they were sent.
+   ***************************************************************************************************/
+  private void fanOut(int count, Recipients recipients) {
+    if (count < fanOutThreshold) recipients.send(0, count);
+    else FAN_OUT_POOL.invoke(new FanOutTask(recipients, 0, count, fanOutChunk));
+  }
+
+  private static final class FanOutTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient Recipients recipients;
+    private final int from;
+    private final int to;
+    private final int chunk;
+
+    FanOutTask(Recipients recipients, int from, int to, int chunk) {
+      this.recipients = recipients;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= chunk) {
+        recipients.send(from, to);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new FanOutTask(recipients, from, middle, chunk), new FanOutTask(recipients, middle, to, chunk));
+    }
+  }
+
+  
+  /******************************************************************************************************************
+   * Once a new client has connected to the server, the user id and user-name is stored, status
+   * messages are displayed to the user, and the user list and room list is updated to account for the new client.
+   * The new client gets its user id (in the targetid of the reply) and snapshots of the users and rooms, and
+   * every client is told about the new user.
+   * The user-name must be free (ignoring case) and hold no spaces, so that users can be addressed by name;
+   * otherwise the client gets an error and can try again with another name. A client reconnecting with the
+   * resume token of the session holding the name takes it over: the old session, whose connection is dead but
+   * may not have timed out yet, is disconnected and the new one is put back in its rooms.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param username the user-name entered by the client upon connecting to the server
+   * @param resumeToken the token of the reply to the previous join under that name, null if none
+   *****************************************************************************************************************/
+  private void joinServer(int senderid, int requestid, String username, String resumeToken) {
+    ServerSession session = threadMap.get(senderid);
+    if (session.username != null) {
+      sendError(senderid, requestid, "System: You have already joined the server as " + session.username + ".");
+      return;
+    }
+    if (!validName(username)) {
+      sendError(senderid, requestid, "System: A user-name cannot be empty or contain spaces.");
+      return;
+    }
+    if (!nicknames.claim(username, senderid) && !takeOver(username, resumeToken, senderid)) {
+      sendError(senderid, requestid, "System: The user-name '" + username + "' is already taken.");
+      return;
+    }
+    view.displayToUser("System: User # " + senderid + " has joined the chat as " + username + ".");
+    session.username = username;
+    session.resumeToken = newResumeToken();
+    Packet packet = new Packet();
+    packet.joinServer(
+        "System: Welcome to the server, " + username + "! Your user id # is " + senderid + ".");
+    packet.targetid = senderid;
+    packet.targetname = session.resumeToken;
+    packet.requestid = requestid;
+    session.sendPacket(packet);
+    if (rosterPush) {
+      session.sendPacket(userSnapshot());
+      session.sendPacket(roomSnapshot(senderid));
+      Packet added = new Packet();
+      added.userAdded(senderid, username);
+      sendPacketAll(added);
+    }
+    rejoinRooms(session);
+    userUpdate();
+  }
+
+
+  /**************************************************************************************************
+   * Disconnects the session holding the name if the token is its resume token, and claims the name.
+   * Its rooms await the name, so the new session is put back in them by rejoinRooms.
+   * @return true if the name is now held by senderid
+   **************************************************************************************************/
+  private boolean takeOver(String username, String resumeToken, int senderid) {
+    if (resumeToken == null) return false;
+    ServerSession holder = threadMap.get(nicknames.lookup(username));
+    if (holder == null || !resumeToken.equals(holder.resumeToken)) return false;
+    String folded = NicknameRegistry.fold(username);
+    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
+      if (!entry.getValue().members.contains(holder.id)) continue;
+      entry.getValue().awaited.add(folded);
+      awaitedRooms.computeIfAbsent(folded, name -> ConcurrentHashMap.newKeySet()).add(entry.getKey());
+    }
+    Log.info("User id # " + senderid + " takes the user-name " + username + " over from user id # " + holder.id + ".");
+    disconnectClient(holder.id);
+    if (nicknames.claim(username, senderid)) return true;
+    forgetAwaited(folded); // someone else was faster
+    return false;
+  }
+
+  /* Stops awaiting a user-name in the rooms it was kept in, removing the rooms left empty */
+  private void forgetAwaited(String folded) {
+    Set<Integer> rooms = awaitedRooms.remove(folded);
+    if (rooms == null) return;
+    for (int roomid : rooms) {
+      ServerRoom serverRoom = roomMap.get(roomid);
+      if (serverRoom == null || !serverRoom.awaited.remove(folded)) continue;
+      journal.memberRemoved(roomid, folded);
+      roomChanged(roomid);
+      removeRoomIfEmpty(roomid, serverRoom);
+    }
+  }
+
+  private static String newResumeToken() {
+    return Long.toHexString(TOKENS.nextLong()) + Long.toHexString(TOKENS.nextLong());
+  }
+
+
+  /* Puts a user who was in restored rooms back in them */
+  private void rejoinRooms(ServerSession session) {
+    String folded = NicknameRegistry.fold(session.username);
+    Set<Integer> rooms = awaitedRooms.remove(folded);
+    if (rooms == null) return;
+    for (int roomid : rooms) {
+      ServerRoom serverRoom = roomMap.get(roomid);
+      if (serverRoom != null && serverRoom.awaited.remove(folded)) enterRoom(session, roomid, serverRoom);
+    }
+  }
+
+
+  /* @return true if the user or room name can be addressed (@user, IRC channel): not empty and without white space */
+  private static boolean validName(String name) {
+    if (name == null || name.isEmpty()) return false;
+    for (int i = 0; i < name.length(); i++) if (Character.isWhitespace(name.charAt(i))) return false;
+    return true;
+  }
+
+  
+  /**************************************************************************************************************
+   * Once a client disconnects from the server, the user id and user-name is removed, status messages ./n
+   * are displayed to the user, and the user list and room list is updated to account for the change.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   *************************************************************************************************************/
+  void disconnectClient(int senderid) {
+    ServerSession session = threadMap.remove(senderid);
+    if (session == null) return;
+    nicknames.release(session.username, senderid);
+    view.displayToUser(
+        "System: User # " + senderid + " (" + session.username + ") has left the chat.");
+    session.disconnect();
+    boolean push = rosterPush;
+    Set<Integer> roommates = push ? null : new HashSet<>();
+    List<Integer> left = new ArrayList<>();
+    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
+      ServerRoom serverRoom = entry.getValue();
+      if (!exitRoom(session, entry.getKey(), serverRoom)) continue;
+      left.add(entry.getKey());
+      roomChanged(entry.getKey());
+      if (!removeRoomIfEmpty(entry.getKey(), serverRoom) && !push) roommates.addAll(serverRoom.members);
+    }
+    Packet removed = new Packet();
+    removed.userRemoved(senderid, session.username, left.stream().mapToInt(Integer::intValue).toArray());
+    if (push) sendPacketAll(removed);
+    else sendPacketTo(roommates.stream().mapToInt(Integer::intValue).toArray(), removed);
+    userUpdate();
+  }
+
+  
+  /**********************************************************************************************************************
+   * Broadcasts a message to all connected users. This is the default behavior when text is entered without a command.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param message the text the client entered to send to all connected users
+   *********************************************************************************************************************/
+  private void sendMessageAll(int senderid, int requestid, String message) {
+    Packet packet = new Packet();
+    String output = threadMap.get(senderid).username + " (# " + senderid + "): " + message;
+    view.displayToUser(output);
+    packet.chatMessage(output, "sendMessageAll", -1, senderid, message);
+    sendPacketAll(packet);
+    reply(senderid, requestid, -1, null);
+  }
+
+  
+  /*******************************************************************************************************************************************
+   * Sends a message from the client (sender-id) to another user (target-id).
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param targetid the unique identification number corresponding to the target client (recipient) of the client's intended action)
+   * @param targetname the user-name of the recipient, when it is addressed by name instead of targetid, otherwise null
+   * @param message the text the client entered to send to a specific user
+   ******************************************************************************************************************************************/
+  private void sendMessageUser(int senderid, int requestid, int targetid, String targetname, String message) {
+    if (targetname != null) targetid = nicknames.lookup(targetname);
+    ServerSession session = threadMap.get(targetid);
+    if (session == null) {
+      sendError(
+          senderid,
+          requestid,
+          targetname != null
+              ? "System: User '" + targetname + "' not found."
+              : "System: User id # " + targetid + " not found.");
+      return;
+    }
+    String output = threadMap.get(senderid).username + " (# " + senderid + "): " + message;
+    view.displayToUser(output);
+    Packet packet = new Packet();
+    packet.chatMessage(output, "sendMessageUser", targetid, senderid, message);
+    session.sendPacket(packet);
+    threadMap.get(senderid).sendPacket(packet);
+    reply(senderid, requestid, -1, null);
+  }
+
+  
+  /**************************************************************************************************************
+   * Sends a message from the client (sender-id) to all connected users in a particular room (target-id).
+   * The room numbers its messages, and every member receives them in the order of their numbers.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param targetid the unique identification number corresponding to a particular room
+   * @param message the text the client entered to send to users connected to a particular room
+   *************************************************************************************************************/
+  private void sendMessageRoom(int senderid, int requestid, int targetid, String message) {
+    ServerRoom serverRoom = roomMap.get(targetid);
+    if (serverRoom == null) {
+      sendError(senderid, requestid, "System: Room id # " + targetid + " not found.");
+      return;
+    }
+    if (!serverRoom.members.contains(senderid)) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("System: You are not a member of room '").append(serverRoom.roomName);
+      sb.append("' (id # ").append(targetid).append("). ");
+      sb.append(" You cannot send a message to a room you aren't in.");
+      sendError(senderid, requestid, sb.toString());
+      return;
+    }
+    String output = threadMap.get(senderid).username + " (# " + senderid + "): : " + message;
+    view.displayToUser(output);
+    Packet packet = new Packet();
+    packet.chatMessage(output, "sendMessageRoom", targetid, senderid, message);
+    synchronized (serverRoom) {
+      serverRoom.stamp(packet);
+      sendPacketTo(serverRoom.memberIds(), packet);
+    }
+    reply(senderid, requestid, -1, null);
+  }
+
+  
+  /**************************************************************************************************************
+   * A member of a room which missed messages (it received a later one first) is sent again those the room still
+   * has, that is the latest ones sent since it joined. The ack which follows them tells how many at the start of
+   * the range are gone, so the client can stop waiting for them. It is marked as coming from resendRoom (via),
+   * which puts it in the bulk lane behind the messages (see PacketWriter.isBulk) instead of overtaking them.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param targetid the unique identification number corresponding to a particular room
+   * @param from the sequence number of the first message missed
+   * @param count the number of messages missed
+   *************************************************************************************************************/
+  private void resendRoom(int senderid, int requestid, int targetid, long from, int count) {
+    ServerRoom serverRoom = roomMap.get(targetid);
+    if (serverRoom == null) {
+      sendError(senderid, requestid, "System: Room id # " + targetid + " not found.");
+      return;
+    }
+    ServerSession session = threadMap.get(senderid);
+    if (session == null || !serverRoom.members.contains(senderid)) {
+      sendError(senderid, requestid, "System: You are not a member of room id # " + targetid + ".");
+      return;
+    }
+    List<Packet> packets = serverRoom.retained(senderid, from, count);
+    for (Packet packet : packets) session.sendPacket(packet);
+    long first = packets.isEmpty() ? from + Math.max(0, count) : packets.get(0).seq;
+    if (requestid == 0) return;
+    Packet ack = new Packet();
+    ack.ack(requestid, (int) Math.min(Integer.MAX_VALUE, first - from), null);
+    ack.via = "resendRoom";
+    session.sendPacket(ack);
+  }
+
+
+  /**************************************************************************************************************
+   * Sends the client a page of the rooms, in the order of their names ignoring case.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param cursor the cursor ending the previous page, null for the first page
+   * @param limit the most rooms wanted, capped by pageSize (0 for pageSize)
+   * @param prefix only the rooms whose name starts with it, ignoring case; null for every room
+   *************************************************************************************************************/
+  private void listRooms(int senderid, int requestid, String cursor, int limit, String prefix) {
+    List<Map.Entry<String, Integer>> entries = page(roomIndex, cursor, prefix, limit);
+    String next = nextCursor(entries, limit);
+    int[] ids = new int[entries.size()];
+    String[] names = new String[ids.length];
+    int[] counts = new int[ids.length];
+    int found = 0;
+    for (Map.Entry<String, Integer> entry : entries) {
+      ServerRoom room = roomMap.get(entry.getValue());
+      if (room == null) continue;
+      ids[found] = entry.getValue();
+      names[found] = room.roomName;
+      counts[found++] = room.memberCount();
+    }
+    Packet packet = new Packet();
+    packet.roomPage(Arrays.copyOf(ids, found), Arrays.copyOf(names, found), Arrays.copyOf(counts, found), next);
+    packet.requestid = requestid;
+    ServerSession session = threadMap.get(senderid);
+    if (session != null) session.sendPacket(packet);
+  }
+
+
+  /**************************************************************************************************************
+   * Sends the client a page of the users who have joined, in the order of their names ignoring case.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param cursor the cursor ending the previous page, null for the first page
+   * @param limit the most users wanted, capped by pageSize (0 for pageSize)
+   * @param prefix only the users whose name starts with it, ignoring case; null for every user
+   *************************************************************************************************************/
+  private void listUsers(int senderid, int requestid, String cursor, int limit, String prefix) {
+    List<Map.Entry<String, Integer>> entries = page(nicknames.index(), cursor, prefix, limit);
+    String next = nextCursor(entries, limit);
+    int[] ids = new int[entries.size()];
+    String[] names = new String[ids.length];
+    int found = 0;
+    for (Map.Entry<String, Integer> entry : entries) {
+      ServerSession user = threadMap.get(entry.getValue());
+      if (user == null || user.username == null) continue;
+      ids[found] = user.id;
+      names[found++] = user.username;
+    }
+    Packet packet = new Packet();
+    packet.userPage(Arrays.copyOf(ids, found), Arrays.copyOf(names, found), next);
+    packet.requestid = requestid;
+    ServerSession session = threadMap.get(senderid);
+    if (session != null) session.sendPacket(packet);
+  }
+
+
+  /**************************************************************************************************************
+   * Reads one page of a sorted index: the entries after the cursor whose keys start with the folded prefix, one
+   * more than the page holds so that the caller knows whether another page follows.
+   * @param index keys folded as by NicknameRegistry.fold
+   * @param cursor the key ending the previous page, or null
+   * @param prefix the start of the names wanted, or null
+   * @param limit the page size asked for; 0 or more than pageSize means pageSize
+   * @return up to limit + 1 entries, in order
+   *************************************************************************************************************/
+  private List<Map.Entry<String, Integer>> page(
+      NavigableMap<String, Integer> index, String cursor, String prefix, int limit) {
+    int size = limit <= 0 ? pageSize : Math.min(limit, pageSize);
+    String start = prefix == null ? "" : NicknameRegistry.fold(prefix);
+    NavigableMap<String, Integer> tail =
+        cursor != null && cursor.compareTo(start) >= 0 ? index.tailMap(cursor, false) : index.tailMap(start, true);
+    List<Map.Entry<String, Integer>> entries = new ArrayList<>(Math.min(size + 1, 1024));
+    for (Map.Entry<String, Integer> entry : tail.entrySet()) {
+      if (!entry.getKey().startsWith(start) || entries.size() > size) break;
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  /* Drops the extra entry read by page, if there is one, and returns the cursor of the next page (null if none) */
+  private String nextCursor(List<Map.Entry<String, Integer>> entries, int limit) {
+    int size = limit <= 0 ? pageSize : Math.min(limit, pageSize);
+    if (entries.size() <= size) return null;
+    entries.remove(size);
+    return entries.get(size - 1).getKey();
+  }
+
+  /* @return the key of a room in roomIndex: its folded name, then its id (zero-padded, so oldest first) to tell rooms
+   * of the same name apart */
+  private static String roomKey(String roomName, int roomid) {
+    String id = Integer.toString(roomid);
+    return (roomName == null ? "" : NicknameRegistry.fold(roomName)) + '\0' + "0000000000".substring(id.length()) + id;
+  }
+
+
+  /**************************************************************************************************************
+   * Finds a room by name, ignoring case as user-names do. Room names are not unique, so the oldest room of that
+   * name is used.
+   * @param roomName the name of the room
+   * @return the room id, or -1 if there is no room of that name
+   *************************************************************************************************************/
+  int roomId(String roomName) {
+    String prefix = NicknameRegistry.fold(roomName) + '\0';
+    Map.Entry<String, Integer> entry = roomIndex.ceilingEntry(prefix);
+    return entry != null && entry.getKey().startsWith(prefix) ? entry.getValue() : -1;
+  }
+
+
+  /**************************************************************************************************************
+   * Creates a new virtual room, with the room name specified by the client.
+   * Once the room is created, the client automatically joins the room. 
+   * The other clients learn of the room from the next room summary.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param roomName the room name the client entered: not empty, and without white space so that IRC can name it
+   *************************************************************************************************************/
+  private void createRoom(int senderid, int requestid, String roomName) {
+    if (!validName(roomName)) {
+      sendError(senderid, requestid, "System: A room name cannot be empty or contain spaces.");
+      return;
+    }
+    ServerRoom serverRoom = new ServerRoom(senderid, roomName, roomWindow);
+    int roomid = roomCount.incrementAndGet();
+    ServerSession session = threadMap.get(senderid);
+    // under the room's lock, like enterRoom, so that no one joining it is journaled ahead of its creation
+    synchronized (serverRoom) {
+      roomMap.put(roomid, serverRoom);
+      roomIndex.put(roomKey(roomName, roomid), roomid);
+      journal.roomCreated(roomid, roomName);
+      journal.memberAdded(roomid, session.username);
+    }
+    Packet members = new Packet();
+    members.roomMembers(roomid, roomName, serverRoom.memberIds());
+    session.sendPacket(members);
+    roomChanged(roomid);
+    reply(
+        senderid,
+        requestid,
+        roomid,
+        "System: Room '"
+            + roomName
+            + "' has been created under id # "
+            + roomid
+            + " with you in it.");
+  }
+
+  /**************************************************************************************************************
+   * A client (sender-id) may join a specific room (target-id), which will allow them to send and
+   * receive messages to/from users connected to that room. 
+   * The client gets the members of the room, and the other members are told about the new user.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param targetid the unique identification number corresponding to a particular room
+   *************************************************************************************************************/
+  private void joinRoom(int senderid, int requestid, int targetid) {
+    ServerRoom serverRoom = roomMap.get(targetid);
+    if (serverRoom == null) {
+      sendError(senderid, requestid, "System: Room id # " + targetid + " not found.");
+      return;
+    }
+    if (serverRoom.members.contains(senderid)) {
+      sendError(
+          senderid,
+          requestid,
+          "System: You are already a member of room '"
+              + serverRoom.roomName
+              + "' (id # "
+              + targetid
+              + ").");
+      return;
+    }
+    ServerSession session = threadMap.get(senderid);
+    if (!enterRoom(session, targetid, serverRoom)) {
+      // removed since it was looked up, by its last member leaving
+      sendError(senderid, requestid, "System: Room id # " + targetid + " not found.");
+      return;
+    }
+    reply(
+        senderid,
+        requestid,
+        targetid,
+        "System: You have joined room '" + serverRoom.roomName + "' with id # " + targetid + ".");
+  }
+
+  
+  /**************************************************************************************************************
+   * Adds the user to the room, sends it the members and tells them about it. The membership is journaled under
+   * the room's lock, so it cannot land after the removal of the room.
+   * @return false if the room has been removed meanwhile (or the user was already in it)
+   *************************************************************************************************************/
+  private boolean enterRoom(ServerSession session, int roomid, ServerRoom serverRoom) {
+    synchronized (serverRoom) {
+      if (!serverRoom.addUser(session.id)) return false;
+      journal.memberAdded(roomid, session.username);
+    }
+    Packet members = new Packet();
+    members.roomMembers(roomid, serverRoom.roomName, serverRoom.memberIds());
+    session.sendPacket(members);
+    Packet added = new Packet();
+    added.roomMemberAdded(roomid, session.id);
+    sendPacketTo(serverRoom.memberIds(), added);
+    roomChanged(roomid);
+    return true;
+  }
+
+
+  /* Takes the user out of the room and journals it, under the room's lock; @return false if it was not a member */
+  private boolean exitRoom(ServerSession session, int roomid, ServerRoom serverRoom) {
+    synchronized (serverRoom) {
+      if (!serverRoom.removeUser(session.id)) return false;
+      journal.memberRemoved(roomid, session.username);
+      return true;
+    }
+  }
+
+  
+  /******************************************************************************************************************************************************************
+   * A client (sender-id) may leave a specific room (target-id), which will disable them from sending and receiving messages to/from users connected to that room. 
+   * The user and the other members are told. Once all users have disconnected from a room, the room is destroyed.
+   * @param senderid the unique identification number corresponding to the client that performed the action
+   * @param requestid the request id of the command, 0 if none
+   * @param targetid the unique identification number corresponding to a particular room
+   ******************************************************************************************************************************************************************/
+  private void leaveRoom(int senderid, int requestid, int targetid) {
+    ServerRoom serverRoom = roomMap.get(targetid);
+    if (serverRoom == null) {
+      sendError(senderid, requestid, "System: Room id # " + targetid + " not found.");
+      return;
+    }
+    ServerSession session = threadMap.get(senderid);
+    if (!exitRoom(session, targetid, serverRoom)) {
+      sendError(
+          senderid,
+          requestid,
+          "System: You are not a member of room '"
+              + serverRoom.roomName
+              + "' (id # "
+              + targetid
+              + ").");
+      return;
+    }
+    String roomName = serverRoom.roomName;
+    Packet removed = new Packet();
+    removed.roomMemberRemoved(targetid, senderid);
+    session.sendPacket(removed);
+    sendPacketTo(serverRoom.memberIds(), removed);
+    roomChanged(targetid);
+    removeRoomIfEmpty(targetid, serverRoom);
+    reply(senderid, requestid, targetid, "System: You have left room '" + roomName + "' with id # " + targetid + ".");
+  }
+
+  
+  /**************************************************************************************************************
+   * Destroys a room once its last member has left. Clients see it go in the next room summary.
+   * The emptiness check and the removal from roomMap are made under the room's lock, which joins take too:
+   * a user joining at the same time either keeps the room or finds it removed.
+   * @param roomid the id of the room
+   * @param serverRoom the room, which is only removed if it is still the one mapped to roomid
+   * @return true if the room was removed
+   *************************************************************************************************************/
+  private boolean removeRoomIfEmpty(int roomid, ServerRoom serverRoom) {
+    synchronized (serverRoom) {
+      if (roomMap.get(roomid) != serverRoom || !serverRoom.markRemovedIfEmpty()) return false;
+      roomMap.remove(roomid, serverRoom);
+      journal.roomRemoved(roomid);
+    }
+    roomIndex.remove(roomKey(serverRoom.roomName, roomid), roomid);
+    roomChanged(roomid);
+    return true;
+  }
+
+  
+  /**************************************************************************************************************
+   * Confirms a command to the client which sent it: with an ack packet if the command carried a request id,
+   * otherwise by displaying the message (if any).
+   * @param targetid the unique identification number corresponding to the target client
+   * @param requestid the request id of the command, 0 if none
+   * @param result the result of the command (such as a room id), or -1
+   * @param message the confirmation to display to the client, or null
+   *************************************************************************************************************/
+  private void reply(int targetid, int requestid, int result, String message) {
+    if (requestid == 0 && message == null) return;
+    ServerSession session = threadMap.get(targetid);
+    if (session == null) return;
+    Packet packet = new Packet();
+    if (requestid > 0) packet.ack(requestid, result, message);
+    else packet.displayToUser(message);
+    session.sendPacket(packet);
+  }
+
+  
+  /**************************************************************************************************************
+   * Graceful error handling, particularly useful in the event that a target user is not found.
+   * The error is an error packet if the command carried a request id, otherwise a message to display.
+   * @param targetid the unique identification number corresponding to the target client
+   * @param requestid the request id of the command, 0 if none
+   * @param message the text to display to the client
+   *************************************************************************************************************/
+  private void sendError(int targetid, int requestid, String message) {
+    ServerSession session = threadMap.get(targetid);
+    if (session == null) {
+      Log.warn(
+          "Attempted to send error packet to id # "
+              + targetid
+              + ", but was not found in threadMap.");
+      return;
+    }
+    Packet packet = new Packet();
+    if (requestid > 0) packet.error(requestid, message);
+    else packet.displayToUser(message);
+    session.sendPacket(packet);
+  }
+}
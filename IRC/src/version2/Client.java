@@ -4,8 +4,13 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import configurationFiles.Config;
+import logging.Log;
   
 /*******************************************************************************************
  * Client class consisting of the data members 
@@ -21,19 +26,58 @@ public class Client extends JFrame implements ActionListener {
 
 /*******************************************************************************************************************
  * Client Data Members
- * socket:- For initializing the socket connection
- * shutdown:- Variable for graceful shutdown of the menu
- * ObjectOutputStream:- For sending data to the server
- * ObjectInputStream:- For receiving the input from the server (IP, PORT and handshake flags)
- * ExecutorService pool:- For determining the maximum number of threads that can be executed by the thread pool
- * PacketListener packetListener:- For continuous receiving of the inputs and outputs of the server
+ * chat:- The headless ChatClient of the current connection (null while not connected). It sends through an outbound
+ *   queue drained by its own thread, so that sending never blocks the GUI, and reads the packets from the server
+ *   on its reader thread, which hands them to the ChatListener
+ * connectionLock:- Held while a new ChatClient is published and while a lost connection is handled
+ * inbox:- Packets received by the listener, waiting to be applied to the GUI on the EDT
+ * updateScheduled:- Tells if a batch of inbox packets is already scheduled on the EDT
+ * maxPacketsPerUpdate:- The most packets applied in one batch, so that a burst cannot freeze the GUI
+ * sendQueueCapacity / sendBatchSize:- Bound of the outbound queue and the most packets written per flush (settings
+ *   irc.client.sendQueue and irc.client.sendBatch, applied from the next connection when irc.properties changes)
+ * pingMillis:- Interval of the pings which keep the session alive on the server (irc.client.pingSeconds)
+ * serverIp / serverPort / username:- Remembered from the login menu, so that the client can reconnect by itself
+ * reconnectPolicy:- Jittered exponential backoff between reconnect attempts (irc.client.reconnectBaseMillis,
+ *   irc.client.reconnectMaxMillis, irc.client.reconnectAttempts)
+ * reconnector / reconnectTask:- Daemon thread running the scheduled reconnect attempt, and the attempt waiting to run
+ * leaving:- Set when the user disconnects, so that the lost connection is not re-established
+ * reconnecting:- Set from losing the connection until the client reconnects or gives up
+ * rejoining:- Tells that the next joinServer reply answers a reconnect, so the transcript is kept
+ * resumeToken:- Given by the server with the last join; a reconnect shows it to take the user-name over from the old
+ *   session, which the server may not have found dead yet
+ * offline:- Packets typed while reconnecting, sent in one batch right after joinServer (at most sendQueueCapacity - 1)
+ * connectionStatus:- Shown in the status label while reconnecting
  *****************************************************************************************************************/
-  private Socket socket;
-  private boolean shutdown;
-  private ObjectOutputStream out;
-  private ObjectInputStream in;
-  private ExecutorService pool;
-  private PacketListener packetListener;
+  private volatile ChatClient chat;
+  private final Object connectionLock = new Object();
+  private volatile int sendQueueCapacity;
+  private volatile int sendBatchSize;
+  private volatile long pingMillis;
+  private final Queue<Packet> inbox = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean updateScheduled = new AtomicBoolean();
+  private static final int maxPacketsPerUpdate = 2000;
+  private volatile String serverIp;
+  private volatile int serverPort;
+  private volatile String username;
+  private final ReconnectPolicy reconnectPolicy =
+      new ReconnectPolicy(
+          Config.getLong("irc.client.reconnectBaseMillis", 500),
+          Config.getLong("irc.client.reconnectMaxMillis", 30_000),
+          Config.getInt("irc.client.reconnectAttempts", 12));
+  private final ScheduledExecutorService reconnector =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "client-reconnect");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private volatile ScheduledFuture<?> reconnectTask;
+  private volatile boolean leaving;
+  private volatile boolean reconnecting;
+  private volatile boolean rejoining;
+  private volatile String resumeToken;
+  private final Queue<Packet> offline = new ConcurrentLinkedQueue<>();
+  private volatile String connectionStatus;
 
   
   /************************************************************************************************************** 
@@ -42,12 +86,22 @@ public class Client extends JFrame implements ActionListener {
    * In the login menu, we have,
    * textField:- for host name and port number (default value at host (for local host) and 8080 respectively)
    * textArea:- for printing the greeting message, user id display, and the room number display
+   * roster:- the users and rooms on the server, listed by userDisplay and roomDisplay (counted in userHeader and roomHeader)
+   * chatDisplay:- virtualized list showing the transcript, which keeps the latest irc.transcript.lines lines (5000 by default)
+   *   and appends older ones to the file named by irc.transcript.spill, if that setting is set
+   * sendStatus:- shows the packets waiting to be sent and the sends which failed, refreshed by statusTimer
    *************************************************************************************************************/
   private LoginMenu loginMenu;
-  private JTextArea chatDisplay;
+  private JList<String> chatDisplay;
+  private TranscriptModel transcript;
   private JTextField textInput;
-  private JTextArea userDisplay;
-  private JTextArea roomDisplay;
+  private final ClientRoster roster = new ClientRoster();
+  private JList<String> userDisplay;
+  private JList<String> roomDisplay;
+  private JLabel userHeader;
+  private JLabel roomHeader;
+  private JLabel sendStatus;
+  private Timer statusTimer;
 
   
   /***************************************************************************************************
@@ -56,11 +110,35 @@ public class Client extends JFrame implements ActionListener {
    ***************************************************************************************************/
   Client() {
     super("IRC Client");
-    System.out.println("Starting up client application...");
+    Log.configure("client-" + ProcessHandle.current().pid());
+    Log.info("Starting up client application...");
+    watchSettings();
     clientGUISetup();
     loginMenu = new LoginMenu();
     loginMenu.setVisible(true);
-    System.out.println("Success! Client application started.");
+    Log.info("Success! Client application started.");
+  }
+
+
+
+  /**************************************************************************************************
+   * Applies the log and send queue settings, and registers them to be applied again when
+   * irc.properties changes (the send queue settings from the next connection on).
+   **************************************************************************************************/
+  private void watchSettings() {
+    Log.setLevel(Log.parseLevel(Config.get("irc.log.level", null), Log.getLevel()));
+    Log.setConsole(Config.getBoolean("irc.log.console", true));
+    Config.watch("irc.log.level", () -> Log.setLevel(Log.parseLevel(Config.get("irc.log.level", null), Log.Level.INFO)));
+    applySendSettings();
+    Config.watch("irc.client.sendQueue", this::applySendSettings);
+    Config.watch("irc.client.sendBatch", this::applySendSettings);
+    Config.watch("irc.client.pingSeconds", this::applySendSettings);
+  }
+
+  private void applySendSettings() {
+    sendQueueCapacity = Math.max(2, Config.getInt("irc.client.sendQueue", 256));
+    sendBatchSize = Math.max(1, Config.getInt("irc.client.sendBatch", 64));
+    pingMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Config.getLong("irc.client.pingSeconds", 30)));
   }
 
   
@@ -69,120 +147,310 @@ public class Client extends JFrame implements ActionListener {
    * Exits the application with status code 0.
    ****************************************************************/
   private void closeClientApplication() {
-    System.out.println("Closing client application...");
+    Log.info("Closing client application...");
+    transcript.close();
     System.exit(0);
   }
 
   
   /******************************************************************************************************
-   * Sends out a socket connection request to ip:port. If successful, attempts to instantiate the
-   * object streams, the single thread pool (for holding the packet listener), and the packet listener. 
-   * Finally it starts up the packet listener by executing it in the pool and returning true. 
-   * If any exceptions occur, it returns false.
+   * Sends out a socket connection request to ip:port through a new ChatClient, which sets up the object
+   * streams, its packet writer and its reader thread. 
+   * Then it queues the joinServer packet, followed by the packets buffered while reconnecting, in one batch.
+   * Finally it publishes the ChatClient and returns true. 
+   * If any exceptions occur, or the connection is lost right away, it returns false.
    * @param ip a string representing the desired IP address that is being connected to
    * @param port an integer representing the desired port number that is being connected to
+   * @param username the user-name to join the server with
    * @return a boolean representing whether successful connection to server was made
    *******************************************************************************************************/
-  private boolean connectToServer(String ip, int port) {
-    System.out.println("Connecting to server...");
-    shutdown = false;
+  private boolean connectToServer(String ip, int port, String username) {
+    Log.info("Connecting to server...");
+    ChatListener listener = new ChatListener();
+    ChatClient chat = new ChatClient(listener, sendQueueCapacity, sendBatchSize, pingMillis);
+    listener.source = chat;
     try {
-      socket = new Socket(ip, port);
-      out = new ObjectOutputStream(socket.getOutputStream());
-      in = new ObjectInputStream(socket.getInputStream());
-      pool = Executors.newFixedThreadPool(1);
-      packetListener = new PacketListener();
-      pool.execute(packetListener);
-    } catch (Exception e) {
-      e.printStackTrace();
+      chat.open(ip, port);
+    } catch (IOException e) {
+      Log.error("Unable to connect to server " + ip + ":" + port + ".", e);
       return false;
     }
-    System.out.println("Success! Connected to server.");
+    Log.info("Success! Connected to server.");
+
+    // the join and the buffered packets are queued before the client is published, so nothing can overtake them
+    List<Packet> buffered = new ArrayList<>();
+    Packet packet;
+    while ((packet = offline.poll()) != null) buffered.add(packet);
+    chat.join(username, rejoining ? resumeToken : null, buffered)
+        .whenComplete(
+            (userid, error) -> {
+              if (error == null) {
+                resumeToken = chat.resumeToken();
+                return;
+              }
+              Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+              if (cause instanceof ChatClient.RequestFailedException) joinRefused(chat, cause.getMessage());
+              else Log.warn("joinServer was not answered.", error);
+            });
+    synchronized (connectionLock) {
+      if (!chat.isConnected()) return false;
+      this.chat = chat;
+      reconnecting = false;
+    }
+    statusTimer.start();
+    while ((packet = offline.poll()) != null) sendPacket(packet);
+    if (!buffered.isEmpty()) Log.info(buffered.size() + " buffered packets sent after joining.");
     return true;
   }
 
+
+  /****************************************************************************************************
+   * The server refused the user-name (it is taken, or not valid): closes the connection and goes back
+   * to the login menu with the server's explanation, so that the user can pick another name. This is
+   * also what happens when a reconnect finds the name taken by someone else meanwhile (a reconnect
+   * finding it still held by its own dead session takes it over with the resume token).
+   * @param chat the ChatClient whose join was refused
+   * @param message the server's explanation
+   ****************************************************************************************************/
+  private void joinRefused(ChatClient chat, String message) {
+    Log.warn("joinServer refused: " + message);
+    leaving = true;
+    rejoining = false;
+    chat.close(0);
+    returnToLogin(message);
+  }
+
+
+  /****************************************************************************************************
+   * Waits for the next delay of the reconnect policy, then tries to reconnect with the same server,
+   * port and user-name. Gives up and returns to the login menu after the policy's last attempt.
+   * @param attempt number of the attempt, starting at 0
+   ****************************************************************************************************/
+  private void scheduleReconnect(int attempt) {
+    if (leaving) {
+      returnToLogin("Disconnected from server.");
+      return;
+    }
+    if (!reconnectPolicy.shouldRetry(attempt)) {
+      returnToLogin("Unable to reconnect to server " + serverIp + ":" + serverPort + ".");
+      return;
+    }
+    long delay = reconnectPolicy.delayMillis(attempt);
+    connectionStatus =
+        String.format(
+            "Reconnecting in %.1f s (attempt %d of %d)", delay / 1000.0, attempt + 1, reconnectPolicy.maxAttempts());
+    Log.info(connectionStatus);
+    reconnectTask = reconnector.schedule(() -> reconnect(attempt), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void reconnect(int attempt) {
+    if (leaving) {
+      returnToLogin("Disconnected from server.");
+      return;
+    }
+    connectionStatus = "Reconnecting (attempt " + (attempt + 1) + " of " + reconnectPolicy.maxAttempts() + ")";
+    rejoining = true;
+    if (!connectToServer(serverIp, serverPort, username)) {
+      rejoining = false;
+      scheduleReconnect(attempt + 1);
+      return;
+    }
+    connectionStatus = null;
+    SwingUtilities.invokeLater(() -> displayToUser("System: Reconnected to the server."));
+    if (leaving) disconnectFromServer();
+  }
+
+
+  /*******************************************************************************************************
+   * Gives up on the connection: drops the buffered packets and switches from the chat window to the
+   * login window (on the EDT).
+   * @param feedback message displayed in the login menu
+   ******************************************************************************************************/
+  private void returnToLogin(String feedback) {
+    reconnecting = false;
+    connectionStatus = null;
+    statusTimer.stop();
+    int dropped = offline.size();
+    offline.clear();
+    if (dropped > 0) Log.warn(dropped + " buffered packets were discarded.");
+    SwingUtilities.invokeLater(
+        () -> {
+          setVisible(false);
+          loginMenu.displayFeedback(feedback);
+          loginMenu.setVisible(true);
+        });
+  }
+
   
   /********************************************************************************************************
-   * Sets shutdown to true, thus exiting the infinite incoming connection loop and closing the server.
-   *  Also sends a final packet to the server to let it know the user is logging out of the server.
+   * Leaves the server: the ChatClient sends a final packet to the server to let it know the user is logging out,
+   * and the server closes the connection (which is forced after two seconds if it does not).
+   * While reconnecting, the pending attempt is cancelled instead.
    *******************************************************************************************************/
   private void disconnectFromServer() {
-    System.out.println("Disconnecting from server...");
-    shutdown = true;
-    Packet packet = new Packet();
-    packet.leaveServer();
-    sendPacket(packet);
+    Log.info("Disconnecting from server...");
+    leaving = true;
+    ScheduledFuture<?> task = reconnectTask;
+    if (reconnecting) {
+      if (task != null && task.cancel(false)) returnToLogin("Disconnected from server.");
+      return;
+    }
+    ChatClient chat = this.chat;
+    if (chat == null) return;
+    chat.leave();
+    reconnector.schedule(() -> chat.close(0), 2, TimeUnit.SECONDS);
   }
 
   
   /*******************************************************************************************************
-   * Closes all connections and sets the relevant members to their null values. 
-   * Finally switches the visible windows from the chat window to the login window.
+   * Called once the connection of a ChatClient is closed. Stale clients (a previous connection, or one
+   * which was never published) are ignored.
+   * If the user asked to disconnect, it then switches the visible windows from the chat window to the login window.
+   * Otherwise the connection was lost, and a reconnect is scheduled.
+   * @param source the ChatClient whose connection closed
    ******************************************************************************************************/
-  private void serverDisconnectCleanup() {
-    // disconnect sequence
-    System.out.println("Closing connections...");
-    try {
-      in.close();
-      in = null;
-      out.close();
-      out = null;
-      socket.close();
-      socket = null;
-      pool.shutdown();
-      pool = null;
-      packetListener = null;
-    } catch (Exception e) {
-      e.printStackTrace();
+  private void serverDisconnectCleanup(ChatClient source) {
+    synchronized (connectionLock) {
+      if (source != chat) return;
+      chat = null;
+      reconnecting = !leaving;
     }
-    System.out.println("Success! Connections closed.");
-    setVisible(false);
-    loginMenu.displayFeedback("Disconnected from server.");
-    loginMenu.setVisible(true);
+    Log.info("Success! Connections closed.");
+    if (leaving) {
+      returnToLogin("Disconnected from server.");
+      return;
+    }
+    SwingUtilities.invokeLater(
+        () -> displayToUser("System: Lost the connection to the server. Messages are kept until the client reconnects."));
+    scheduleReconnect(0);
   }
 
   
-  /********************************************************
-   * Sends a given packet to the server.
+  /************************************************************************************************
+   * Sends a given command packet to the server through the ChatClient, without waiting for the socket.
+   * The server's confirmation or error is displayed once it arrives, and the user is told if the packet
+   * is refused (the queue is full or the connection has failed). While reconnecting, the packet is kept
+   * to be sent after joining.
    * @param packet packet to be sent to the server
-   ********************************************************/
+   ************************************************************************************************/
   private void sendPacket(Packet packet) {
-    try {
-      out.writeObject(packet);
-      out.flush();
-    } catch (Exception e) {
-      e.printStackTrace();
+    ChatClient chat = this.chat;
+    if (chat == null && reconnecting) {
+      if (offline.size() < sendQueueCapacity - 1) {
+        offline.add(packet);
+        displayToUser("System: Not connected, the message will be sent once the client reconnects.");
+      } else {
+        displayToUser("System: Not connected and too many messages are waiting, the message was not sent.");
+      }
+      return;
+    }
+    if (chat == null) {
+      displayToUser("System: Not connected, the message was not sent.");
+      return;
     }
-    System.out.println(packet.command + " packet sent to server.");
+    chat.request(packet)
+        .whenComplete(
+            (reply, error) -> {
+              if (error == null && reply.message == null) return;
+              String message = error == null ? reply.message : errorMessage(error);
+              SwingUtilities.invokeLater(() -> displayToUser(message));
+            });
+    if (Log.isTraceEnabled()) Log.trace(packet.command + " packet queued for server.");
+  }
+
+  /* @return the text telling the user why a command failed */
+  private static String errorMessage(Throwable error) {
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    if (cause instanceof ChatClient.RequestFailedException) return cause.getMessage();
+    if (cause instanceof TimeoutException) return "System: The server did not answer in time.";
+    Log.warn("Unable to send a packet to the server.", cause);
+    return "System: Unable to send to the server, the message was not sent.";
+  }
+
+
+  /*********************************************************************
+   * Refreshes the send status label. Runs on the EDT (statusTimer).
+   *********************************************************************/
+  private void updateSendStatus() {
+    ChatClient chat = this.chat;
+    PacketWriter writer = chat == null ? null : chat.writer();
+    if (writer == null) {
+      String status = connectionStatus;
+      int buffered = offline.size();
+      sendStatus.setText(
+          (status == null ? "Not connected" : status) + (buffered > 0 ? ", " + buffered + " waiting" : ""));
+      sendStatus.setForeground(Color.DARK_GRAY);
+      return;
+    }
+    long failed = writer.failed();
+    sendStatus.setText(
+        (writer.hasFailed() ? "Connection failed" : "Sending: " + writer.pending() + " pending")
+            + (failed > 0 ? ", " + failed + " failed" : ""));
+    sendStatus.setForeground(failed > 0 ? Color.RED : Color.DARK_GRAY);
   }
 
   
   /*********************************************************************************************************************************
-   * Takes a given packet and inspects its command value to route it to the correct function with the correct data passed to it. 
-   * Any unrecognized packet command types are ignored.
-   * @param packet packet to be inspected and rerouted.
+   * Called by the ChatListener for every packet received. The packet is put in the inbox, and a batch update is scheduled
+   * on the EDT unless one is already waiting, so a burst of packets costs a single invokeLater. The shutdown command is only
+   * logged: the server closes the connection right after it, which starts the reconnect.
+   * @param packet packet received from the server
    *********************************************************************************************************************************/
   private void packetHandler(Packet packet) {
-    String command = packet.command;
-    switch (command) {
-      case "joinServer": // username logged by server, ready to start chatting
-        startChatGUI(packet.message);
-        break;
-      case "userUpdate":
-        userDisplay.setText(packet.message);
-        break;
-      case "roomUpdate":
-        roomDisplay.setText(packet.message);
-        break;
-      case "displayToUser":
-        displayToUser(packet.message);
-        break;
-      case "shutdown":
-        shutdown = true;
-        break;
-      default:
-        // TODO - error handling
+    if (packet.command.equals("shutdown")) {
+      Log.info("The server is shutting down.");
+      return;
     }
+    inbox.add(packet);
+    if (updateScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::applyPackets);
+  }
+
+
+  /*********************************************************************************************************************************
+   * Runs on the EDT. Takes the packets waiting in the inbox and inspects their command values to route them to the correct
+   * display. Chat lines are appended to the chat window in one go (one repaint and one caret move per batch), and roster packets
+   * are applied to the roster, which only repaints the changed rows. Any unrecognized packet command types are ignored.
+   *********************************************************************************************************************************/
+  private void applyPackets() {
+    updateScheduled.set(false);
+    List<String> chat = new ArrayList<>();
+    boolean rosterChanged = false;
+    Packet packet;
+    int applied = 0;
+    while (applied < maxPacketsPerUpdate && (packet = inbox.poll()) != null) {
+      ++applied;
+      if (roster.apply(packet) && !packet.command.equals("joinServer")) {
+        rosterChanged = true;
+        continue;
+      }
+      switch (packet.command) {
+        case "joinServer": // username logged by server, ready to start chatting
+          if (rejoining) {
+            rejoining = false;
+            chat.add(packet.message);
+            break;
+          }
+          chat.clear();
+          startChatGUI(packet.message);
+          break;
+        case "displayToUser":
+          chat.add(packet.message);
+          break;
+        default:
+          // TODO - error handling
+      }
+    }
+    if (rosterChanged) {
+      userHeader.setText(roster.userCount() + " USERS");
+      roomHeader.setText(roster.roomCount() + " ROOMS");
+    }
+    if (!chat.isEmpty()) {
+      transcript.addAll(chat);
+      scrollToLatest();
+    }
+    // the batch was capped, come back for the rest after the pending repaints
+    if (!inbox.isEmpty() && updateScheduled.compareAndSet(false, true))
+      SwingUtilities.invokeLater(this::applyPackets);
   }
 
 
@@ -217,10 +485,10 @@ public class Client extends JFrame implements ActionListener {
     gbc.fill = GridBagConstraints.VERTICAL;
 
     // initialize active user list display
-    userDisplay = new JTextArea(25, 15);
-    userDisplay.setLineWrap(false);
-    userDisplay.setEditable(false);
+    userDisplay = rosterList(roster.userModel);
+    userHeader = new JLabel("0 USERS");
     JScrollPane userDisplayScroll = new JScrollPane(userDisplay);
+    userDisplayScroll.setColumnHeaderView(userHeader);
     gbc.gridx = 0;
     gbc.gridy = 0;
     gbc.gridwidth = 1;
@@ -228,10 +496,10 @@ public class Client extends JFrame implements ActionListener {
     panel.add(userDisplayScroll, gbc);
 
     // initializes active room list display
-    roomDisplay = new JTextArea(25, 15);
-    roomDisplay.setLineWrap(false);
-    roomDisplay.setEditable(false);
+    roomDisplay = rosterList(roster.roomModel);
+    roomHeader = new JLabel("0 ROOMS");
     JScrollPane roomDisplayScroll = new JScrollPane(roomDisplay);
+    roomDisplayScroll.setColumnHeaderView(roomHeader);
     gbc.gridx = 1;
     gbc.gridy = 0;
     gbc.gridwidth = 1;
@@ -239,11 +507,17 @@ public class Client extends JFrame implements ActionListener {
     panel.add(roomDisplayScroll, gbc);
 
     // initialize chat dialogue display
-    chatDisplay = new JTextArea(25, 40);
-    chatDisplay.setText("System: Welcome to the Chat Server!");
-    chatDisplay.setLineWrap(true);
-    chatDisplay.setEditable(false);
+    // (fixed cell sizes, so that the list never measures every row)
+    String spill = Config.get("irc.transcript.spill", null);
+    transcript =
+        new TranscriptModel(Config.getInt("irc.transcript.lines", 5000), spill == null ? null : new File(spill));
+    transcript.add("System: Welcome to the Chat Server!");
+    chatDisplay = new JList<>(transcript);
+    chatDisplay.setFixedCellHeight(chatDisplay.getFontMetrics(chatDisplay.getFont()).getHeight() + 2);
+    chatDisplay.setFixedCellWidth(1600);
+    chatDisplay.setVisibleRowCount(25);
     JScrollPane chatDisplayScroll = new JScrollPane(chatDisplay);
+    chatDisplayScroll.setPreferredSize(new Dimension(450, 410));
     gbc.gridx = 2;
     gbc.gridy = 0;
     gbc.gridwidth = 2;
@@ -267,9 +541,33 @@ public class Client extends JFrame implements ActionListener {
     gbc.gridwidth = 1;
     gbc.gridheight = 1;
     panel.add(sendButton, gbc);
+
+    // initialize send status label
+    sendStatus = new JLabel("Not connected");
+    gbc.gridx = 2;
+    gbc.gridy = 2;
+    gbc.gridwidth = 2;
+    gbc.gridheight = 1;
+    gbc.anchor = GridBagConstraints.WEST;
+    panel.add(sendStatus, gbc);
+    statusTimer = new Timer(250, event -> updateSendStatus());
   }
 
   
+  /******************************************************************************************
+   * Builds a user or room list display, with fixed cell sizes so that it never measures
+   * every row. Rows marked with * are this client and the rooms it is in.
+   ******************************************************************************************/
+  private JList<String> rosterList(RosterListModel model) {
+    JList<String> list = new JList<>(model);
+    list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+    list.setFixedCellWidth(400);
+    list.setVisibleRowCount(25);
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    return list;
+  }
+
+
   /******************************************************************************************
    * Reveals the chat GUI window with a given message, clearing out any previous messages.
    * @param message string set as the only text in the chat window display
@@ -277,19 +575,24 @@ public class Client extends JFrame implements ActionListener {
   private void startChatGUI(String message) {
     loginMenu.setVisible(false);
     setVisible(true);
-    System.out.println("Ready to start chatting!");
-    chatDisplay.setText(message);
+    Log.info("Ready to start chatting!");
+    transcript.clear();
+    transcript.add(message);
   }
 
   
   /*************************************************************************************************************
-   * Takes a string and posts it to the chat window display with the correct formatting. 
-   * Also sets the character position so that the window scrolls as you get new messages and shows the most recent.
+   * Takes a string and posts it to the chat transcript, one row per line of text.
+   * Also scrolls the chat window display so that it shows the most recent message.
    * @param message message to be posted to the chat window display
    *************************************************************************************************************/
   private void displayToUser(String message) {
-    chatDisplay.append("\n" + message);
-    chatDisplay.setCaretPosition(chatDisplay.getDocument().getLength());
+    transcript.add(message);
+    scrollToLatest();
+  }
+
+  private void scrollToLatest() {
+    chatDisplay.ensureIndexIsVisible(transcript.getSize() - 1);
   }
 
   
@@ -308,20 +611,28 @@ public class Client extends JFrame implements ActionListener {
     if (userInput.startsWith("@")) {
       String[] input = userInput.split(" ", 2);
       int targetid;
-      if (input.length < 2)
+      if (input.length < 2 && !isCommand(input[0])) input = new String[] {input[0], ""};
+      if (input.length < 2) {
         displayToUser("System: Insufficient arguments provided for command '" + userInput + "'.");
+        return;
+      }
       switch (input[0]) {
         case "@user":
           input = input[1].split(" ", 2);
+          if (input.length < 2 || input[1].equals("")) {
+            displayToUser("System: Cannot send an empty message to a user.");
+            return;
+          }
           try {
             targetid = Integer.parseInt(input[0]);
           } catch (Exception e) {
-            displayToUser(
-                "System: '" + input[0] + "' in command '" + userInput + "' is not a valid number.");
-            return;
+            // not an id: the server looks the user-name up
+            packet.sendMessageUser(input[0], userInput);
+            sendPacket(packet);
+            break;
           }
-          if (input[1].equals("")) {
-            displayToUser("System: Cannot send an empty message to a user.");
+          if (roster.userName(targetid) == null) {
+            displayToUser("System: User id # " + targetid + " not found.");
             return;
           }
           packet.sendMessageUser(targetid, userInput);
@@ -336,10 +647,11 @@ public class Client extends JFrame implements ActionListener {
                 "System: '" + input[0] + "' in command '" + userInput + "' is not a valid number.");
             return;
           }
-          if (input[1].equals("")) {
+          if (input.length < 2 || input[1].equals("")) {
             displayToUser("System: Cannot send an empty message to a room.");
             return;
           }
+          if (!checkRoom(targetid, true, userInput)) return;
           packet.sendMessageRoom(targetid, userInput);
           sendPacket(packet);
           break;
@@ -363,6 +675,7 @@ public class Client extends JFrame implements ActionListener {
                 "System: '" + input[1] + "' in command '" + userInput + "' is not a valid number.");
             return;
           }
+          if (!checkRoom(targetid, false, userInput)) return;
           packet.joinRoom(targetid);
           sendPacket(packet);
           break;
@@ -378,6 +691,7 @@ public class Client extends JFrame implements ActionListener {
                 "System: '" + input[1] + "' in command '" + userInput + "' is not a valid number.");
             return;
           }
+          if (!checkRoom(targetid, true, userInput)) return;
           packet.leaveRoom(targetid);
           sendPacket(packet);
           break;
@@ -389,7 +703,7 @@ public class Client extends JFrame implements ActionListener {
                   + userInput
                   + "'."
                   + "\n   Recognized Requests: "
-                  + "\n      @user <user id #> <message>"
+                  + "\n      @user <user id # or user name> <message>"
                   + "\n      @room <room id #> <message>"
                   + "\n      @create <room name>"
                   + "\n      @join <room id #>"
@@ -403,6 +717,51 @@ public class Client extends JFrame implements ActionListener {
   }
 
   
+  /* @return true for the commands which parseInput() recognizes */
+  private static boolean isCommand(String word) {
+    switch (word) {
+      case "@user":
+      case "@room":
+      case "@create":
+      case "@join":
+      case "@leave":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+
+  /***********************************************************************************************
+   * Checks a room id against the local roster, so that mistakes are reported without asking the
+   * server. The server still checks the command, since the roster may be a moment behind it.
+   * @param roomid the room id typed by the user
+   * @param member true if the user must be a member of the room, false if they must not be
+   * @return true if the command can be sent
+   **********************************************************************************************/
+  private boolean checkRoom(int roomid, boolean member, String userInput) {
+    ClientRoster.Room room = roster.room(roomid);
+    if (room == null) {
+      displayToUser("System: Room id # " + roomid + " not found.");
+      return false;
+    }
+    if (roster.isMember(roomid) != member) {
+      displayToUser(
+          "System: You are "
+              + (member ? "not" : "already")
+              + " a member of room '"
+              + room.name
+              + "' (id # "
+              + roomid
+              + ") in command '"
+              + userInput
+              + "'.");
+      return false;
+    }
+    return true;
+  }
+
+
   /***********************************************************************************************
    * Takes an action event interaction with the chat window GUI, and grabs the text from the user
    * input text box and hands it to the parseInput() function for interpreting and manipulation.
@@ -418,33 +777,24 @@ public class Client extends JFrame implements ActionListener {
   
   /*********************************************************************************************************************************************
    * @summary:- 
-   * The PacketListener is a runnable thread which will a-synchronously AS WELL AS synchronously listen for incoming packets from the server. 
-   * The run function is called when the PacketListener is handed to the thread pool and executed.
-   * It loops while the shutdown member is false, attempting to read in packets from the server. 
-   * On any failure to read from the server, it calls the disconnectFromServer()  function to close the connection and leave the server. 
-   * When it gets a packet from the server, it hands it to the packetHandler() function to be interpreted and manipulated. 
-   * Once it exits the loop, it calls the serverDisconnectCleanup() function to close all the connections and return to the login GUI.
-   * @implNote:- Runnable Interface
-   * @implSpec:- overridden run() method responsible for the client to the spawned 
-   * @serverDisconnectCleanup():- method is responsible for freeing up the resources(from the thread-pool)
+   * The ChatListener receives the events of the ChatClient of one connection, on the ChatClient's reader thread.
+   * When it gets a packet from the server, it hands it to the packetHandler() function, which queues it for the next GUI update on the EDT. 
+   * When the connection closes (the user left, the connection was lost or the server shut down), it calls the serverDisconnectCleanup()
+   * function, which returns to the login GUI or schedules a reconnect.
+   * @implNote:- ChatClient.Listener Interface
    ******************************************************************************************************************************************/
-  private class PacketListener implements Runnable {
-	  
+  private class ChatListener implements ChatClient.Listener {
+    private volatile ChatClient source;
+
     @Override
-    public void run() {
-      // packet listening loop
-      System.out.println("Listening for packets...");
-      while (!shutdown) {
-        try {
-          Packet packet = (Packet) in.readObject();
-          System.out.println(packet.command + " packet received from server.");
-          packetHandler(packet);
-        } catch (Exception e) {
-          if (e instanceof EOFException) disconnectFromServer();
-          else e.printStackTrace();
-        }
-      }
-      serverDisconnectCleanup();
+    public void packetReceived(Packet packet) {
+      packetHandler(packet);
+    }
+
+    @Override
+    public void disconnected(IOException cause) {
+      if (cause != null && !leaving) Log.warn("Lost the connection to the server.", cause);
+      serverDisconnectCleanup(source);
     }
   }
 
@@ -514,7 +864,7 @@ public class Client extends JFrame implements ActionListener {
       panel.add(new JLabel("IP Address"));
       ipField = new JTextField();
       ipField.setColumns(33);
-      ipField.setText("localhost");
+      ipField.setText(Config.get("irc.host", "localhost"));
       panel.add(ipField);
 
       
@@ -522,7 +872,7 @@ public class Client extends JFrame implements ActionListener {
       panel.add(new JLabel("Port Number"));
       portField = new JTextField();
       portField.setColumns(33);
-      portField.setText("8080");
+      portField.setText(String.valueOf(Config.getInt("irc.port", 8080)));
       panel.add(portField);
 
       
@@ -575,14 +925,16 @@ public class Client extends JFrame implements ActionListener {
           return;
         }
         displayFeedback("Attempting to connect to server " + ip + ":" + portString + "...");
-        if (!connectToServer(ip, port)) {
+        leaving = false;
+        offline.clear();
+        if (!connectToServer(ip, port, username)) {
           displayFeedback("Connection failed.");
           return;
         }
+        serverIp = ip;
+        serverPort = port;
+        Client.this.username = username;
         displayFeedback("Success! Connected to server " + ip + ":" + portString);
-        Packet packet = new Packet();
-        packet.joinServer(username);
-        sendPacket(packet);
       }
       // clear button pressed
       if (event.getSource() == clearButton) {
@@ -600,6 +952,7 @@ public class Client extends JFrame implements ActionListener {
    *******************************************************************************************/
 
   public static void main(String[] args) {
+    Config.load(args);
     @SuppressWarnings("unused")
 	Client client = new Client();
   }
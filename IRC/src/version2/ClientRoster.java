@@ -0,0 +1,215 @@
+package version2;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/*******************************************************************************************************************
+ * The client's copy of the users and rooms on the server, kept up to date from the structured roster packets.
+ * Users and rooms are indexed by id, and every user also indexes the rooms they are in, so each roster packet is
+ * applied in O(1) (a user leaving the server costs one step per room they were in). The changes are passed on
+ * to the two list models, which only repaint the affected rows.
+ * The server only sends the members of the rooms this client is in; the other rooms are known by their name and
+ * member count, from the room summaries.
+ * Lets the client check user and room ids locally before sending a command. Must only be used on the EDT.
+ ******************************************************************************************************************/
+final class ClientRoster {
+
+  /* A room as seen by the client */
+  static final class Room {
+    final int id;
+    final String name;
+    final Set<Integer> members = new HashSet<>();
+    int count;
+
+    Room(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  /************************************************************************************************
+   * Data Members
+   * selfid:- the user id of this client, -1 until the server has answered joinServer
+   * users:- user-names by user id
+   * rooms:- rooms by room id
+   * roomsOfUser:- ids of the rooms each user is a member of
+   * userModel / roomModel:- list models showing the users and the rooms
+   ************************************************************************************************/
+  private int selfid = -1;
+  private final Map<Integer, String> users = new HashMap<>();
+  private final Map<Integer, Room> rooms = new HashMap<>();
+  private final Map<Integer, Set<Integer>> roomsOfUser = new HashMap<>();
+  final RosterListModel userModel = new RosterListModel(this::userRow);
+  final RosterListModel roomModel = new RosterListModel(this::roomRow);
+
+
+  /*****************************************************************************************
+   * Applies a roster packet (or the joinServer reply, which carries this client's user id).
+   * @return true if the packet was a roster packet
+   *****************************************************************************************/
+  boolean apply(Packet packet) {
+    switch (packet.command) {
+      case "joinServer":
+        selfid = packet.targetid;
+        return true;
+      case "userSnapshot":
+        users.clear();
+        roomsOfUser.clear();
+        userModel.clear();
+        for (int i = 0; i < packet.ids.length; i++) addUser(packet.ids[i], packet.names[i]);
+        return true;
+      case "roomSnapshot":
+        rooms.clear();
+        roomsOfUser.clear();
+        roomModel.clear();
+        for (int i = 0; i < packet.ids.length; i++) {
+          addRoom(packet.ids[i], packet.names[i]).count = packet.counts[i];
+          for (int member : packet.members[i]) addMember(packet.ids[i], member);
+        }
+        return true;
+      case "roomSummary":
+        for (int i = 0; i < packet.ids.length; i++) {
+          if (packet.counts[i] == 0) {
+            removeRoom(packet.ids[i]);
+          } else if (!isMember(packet.ids[i])) {
+            addRoom(packet.ids[i], packet.names[i]).count = packet.counts[i];
+            roomModel.changed(packet.ids[i]);
+          }
+        }
+        return true;
+      case "roomMembers":
+        addRoom(packet.targetid, packet.message);
+        for (int member : packet.ids) addMember(packet.targetid, member);
+        return true;
+      case "userAdded":
+        addUser(packet.targetid, packet.message);
+        return true;
+      case "userRemoved":
+        removeUser(packet.targetid);
+        return true;
+      case "roomMemberAdded":
+        addMember(packet.targetid, packet.subjectid);
+        return true;
+      case "roomMemberRemoved":
+        if (packet.subjectid == selfid) leaveRoom(packet.targetid);
+        else removeMember(packet.targetid, packet.subjectid);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  int selfId() {
+    return selfid;
+  }
+
+  int userCount() {
+    return users.size();
+  }
+
+  int roomCount() {
+    return rooms.size();
+  }
+
+  /* @return the user-name of the user, or null if no such user is known */
+  String userName(int userid) {
+    return users.get(userid);
+  }
+
+  /* @return the room, or null if no such room is known */
+  Room room(int roomid) {
+    return rooms.get(roomid);
+  }
+
+  /* @return true if this client is a member of the room */
+  boolean isMember(int roomid) {
+    Room room = rooms.get(roomid);
+    return room != null && room.members.contains(selfid);
+  }
+
+
+  private void addUser(int userid, String name) {
+    users.put(userid, name);
+    userModel.put(userid);
+  }
+
+  private void removeUser(int userid) {
+    users.remove(userid);
+    userModel.remove(userid);
+    Set<Integer> memberships = roomsOfUser.remove(userid);
+    if (memberships == null) return;
+    for (int roomid : memberships) {
+      Room room = rooms.get(roomid);
+      if (room != null && room.members.remove(userid)) {
+        room.count = room.members.size();
+        roomModel.changed(roomid);
+      }
+    }
+  }
+
+  private Room addRoom(int roomid, String name) {
+    Room room = rooms.computeIfAbsent(roomid, id -> new Room(id, name));
+    roomModel.put(roomid);
+    return room;
+  }
+
+  private void removeRoom(int roomid) {
+    Room room = rooms.remove(roomid);
+    if (room == null) return;
+    for (int member : room.members) {
+      Set<Integer> memberships = roomsOfUser.get(member);
+      if (memberships != null) memberships.remove(roomid);
+    }
+    roomModel.remove(roomid);
+  }
+
+  private void addMember(int roomid, int userid) {
+    Room room = rooms.get(roomid);
+    if (room == null || !room.members.add(userid)) return;
+    room.count = room.members.size();
+    roomsOfUser.computeIfAbsent(userid, id -> new HashSet<>()).add(roomid);
+    roomModel.changed(roomid);
+  }
+
+  private void removeMember(int roomid, int userid) {
+    Room room = rooms.get(roomid);
+    if (room == null || !room.members.remove(userid)) return;
+    room.count = room.members.size();
+    Set<Integer> memberships = roomsOfUser.get(userid);
+    if (memberships != null) memberships.remove(roomid);
+    roomModel.changed(roomid);
+  }
+
+  /* This client left the room: only its member count is kept, until the next summary */
+  private void leaveRoom(int roomid) {
+    Room room = rooms.get(roomid);
+    if (room == null) return;
+    removeMember(roomid, selfid);
+    for (int member : room.members) {
+      Set<Integer> memberships = roomsOfUser.get(member);
+      if (memberships != null) memberships.remove(roomid);
+    }
+    room.members.clear();
+    roomModel.changed(roomid);
+  }
+
+
+  private String userRow(int userid) {
+    return (userid == selfid ? "* # " : "# ") + userid + " " + users.get(userid);
+  }
+
+  private String roomRow(int roomid) {
+    Room room = rooms.get(roomid);
+    if (room == null) return "# " + roomid;
+    return (room.members.contains(selfid) ? "* # " : "# ")
+        + roomid
+        + " "
+        + room.name
+        + " ("
+        + room.count
+        + (room.count == 1 ? " member)" : " members)");
+  }
+}
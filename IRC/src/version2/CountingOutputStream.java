@@ -0,0 +1,32 @@
+package version2;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/*****************************************************************************************************
+ * Output stream wrapper which reports every byte written through it to the server metrics.
+ * Array writes are passed straight to the wrapped stream instead of being split into single bytes.
+ *****************************************************************************************************/
+class CountingOutputStream extends FilterOutputStream {
+
+  private final ServerMetrics metrics;
+
+  CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+    super(out);
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    metrics.bytesWritten(1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    metrics.bytesWritten(len);
+  }
+}
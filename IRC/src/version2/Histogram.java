@@ -0,0 +1,111 @@
+package version2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/******************************************************************************************************************
+ * Lock-free histogram with power-of-two (log) buckets.
+ * Bucket i holds the values in the range [2^(i-1), 2^i - 1], bucket 0 holds only the value 0.
+ * Recording a value is a handful of atomic increments, so it is safe to call from every server thread
+ * on the hot path. Percentiles are estimated as the upper bound of the bucket that holds the requested rank,
+ * which is accurate to within a factor of two.
+ ******************************************************************************************************************/
+class Histogram {
+
+  /*******************************************************************************
+   * BUCKETS:- one bucket per possible bit length of a non-negative long value
+   *******************************************************************************/
+  static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+
+  /**************************************************************************
+   * Records a single observation. Negative values are recorded as zero.
+   * @param value the observed value (nanoseconds, recipients, bytes...)
+   **************************************************************************/
+  void record(long value) {
+    if (value < 0) value = 0;
+    buckets.incrementAndGet(bucketFor(value));
+    count.increment();
+    sum.add(value);
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value));
+  }
+
+
+  /*********************************************************************
+   * @param value a non-negative value
+   * @return the index of the bucket the value is counted in
+   *********************************************************************/
+  static int bucketFor(long value) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+  }
+
+
+  /*********************************************************************
+   * @param bucket a bucket index
+   * @return the largest value that is counted in the given bucket
+   *********************************************************************/
+  static long upperBound(int bucket) {
+    if (bucket == 0) return 0;
+    if (bucket >= BUCKETS - 1) return Long.MAX_VALUE;
+    return (1L << bucket) - 1;
+  }
+
+
+  long count() {
+    return count.sum();
+  }
+
+  long sum() {
+    return sum.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    long n = count();
+    return n == 0 ? 0 : (double) sum() / n;
+  }
+
+
+  /*****************************************************************************************
+   * Copies the bucket counts. The copy is not an atomic view of the histogram, but every
+   * bucket is read exactly once, so it is good enough for reporting.
+   * @return the per-bucket counts
+   *****************************************************************************************/
+  long[] snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) copy[i] = buckets.get(i);
+    return copy;
+  }
+
+
+  /*****************************************************************************************
+   * Estimates the value at the given quantile.
+   * @param quantile a number between 0 and 1 (0.99 for the 99th percentile)
+   * @return the upper bound of the bucket holding the quantile, capped at the observed max
+   *****************************************************************************************/
+  long percentile(double quantile) {
+    long[] counts = snapshot();
+    long total = 0;
+    for (long c : counts) total += c;
+    if (total == 0) return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    if (rank < 1) rank = 1;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(upperBound(i), max());
+    }
+    return max();
+  }
+}
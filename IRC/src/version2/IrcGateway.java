@@ -0,0 +1,79 @@
+package version2;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Lets standard IRC clients (RFC 1459 / 2812) use the server, next to the Swing clients and their serialized Packets.
+ * The gateway listens on its own port of a SelectorLoop and gives every connection an IrcSession, which turns the
+ * IRC commands into Packets for the same ChatEngine, and the engine's packets back into IRC lines.
+ * IRC names things where the engine uses ids, so the gateway also resolves channel names to rooms (nicknames are
+ * resolved by the engine's NicknameRegistry).
+ ******************************************************************************************************************/
+final class IrcGateway {
+  private static final int MAX_SERVER_NAME = 63;
+
+  /************************************************************************************************
+   * Data Members
+   * engine:- the engine the sessions talk to
+   * serverName:- the name the gateway gives itself in the prefix of its replies, at most 63 chars (a host
+   *   name, RFC 2812 1.1) so a line always has room for its text after the prefix
+   * connections:- the number of open IRC connections
+   ************************************************************************************************/
+  final ChatEngine engine;
+  final String serverName;
+  private final SelectorLoop loop;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  IrcGateway(ChatEngine engine, SelectorLoop loop, String serverName) {
+    this.engine = engine;
+    this.loop = loop;
+    if (serverName.length() > MAX_SERVER_NAME) {
+      Log.warn("The IRC server name is longer than " + MAX_SERVER_NAME + " chars, it is cut short.");
+      serverName = serverName.substring(0, MAX_SERVER_NAME);
+    }
+    this.serverName = serverName;
+  }
+
+
+  /*****************************************************************************************
+   * Starts accepting IRC clients.
+   * @param port the port to listen on
+   * @throws IOException if the port cannot be bound
+   *****************************************************************************************/
+  void listen(int port) throws IOException {
+    loop.listen(port, this::accept);
+  }
+
+  int connections() {
+    return connections.get();
+  }
+
+  private NioConnection.Handler accept(NioConnection connection) {
+    int id = engine.nextSessionId();
+    connections.incrementAndGet();
+    engine.metrics.connectionOpened();
+    Log.info("New IRC user connected from " + connection.remoteAddress + " - id # " + id);
+    return new IrcSession(this, connection, id);
+  }
+
+  /* Called once by each session when its connection is closed */
+  void sessionClosed(IrcSession session) {
+    connections.decrementAndGet();
+    engine.metrics.connectionClosed();
+    Log.info("IRC user id # " + session.id + " disconnected.");
+  }
+
+
+  /*****************************************************************************************
+   * Finds the room behind a channel name (without its '#'), through the engine's index of
+   * room names. Room names are not unique in the engine, so the oldest room of that name is
+   * used.
+   * @return the room id, or -1 if there is no room of that name
+   *****************************************************************************************/
+  int roomId(String name) {
+    return engine.roomId(name);
+  }
+}
@@ -0,0 +1,170 @@
+package version2;
+
+import java.nio.charset.StandardCharsets;
+
+
+/*******************************************************************************************************************
+ * One IRC message (RFC 1459 / 2812), parsed in place in the bytes it was received in.
+ * parse() only records where the command and each parameter start and end, so recognizing a command and comparing
+ * or copying its parameters allocates nothing; a parameter only becomes a String when param() is called.
+ * The prefix of a message sent by a client is skipped, as servers ignore it. An instance is reused for every line
+ * of a connection, and is only valid until the next call to parse().
+ ******************************************************************************************************************/
+final class IrcLine {
+
+  /* The most parameters a message can have (RFC 2812 2.3) */
+  static final int MAX_PARAMS = 15;
+
+  /************************************************************************************************
+   * Data Members
+   * data:- the bytes holding the line
+   * commandStart / commandEnd:- the command word, end exclusive
+   * starts / ends:- the bounds of each parameter; the trailing parameter runs to the end of the line
+   * count:- the number of parameters
+   ************************************************************************************************/
+  private byte[] data;
+  private int commandStart;
+  private int commandEnd;
+  private final int[] starts = new int[MAX_PARAMS];
+  private final int[] ends = new int[MAX_PARAMS];
+  private int count;
+
+
+  /*****************************************************************************************
+   * Parses the line between from and to, without its line ending.
+   * @return false if the line has no command (blank lines are ignored by servers)
+   *****************************************************************************************/
+  boolean parse(byte[] data, int from, int to) {
+    this.data = data;
+    count = 0;
+    int i = skipSpaces(from, to);
+    if (i < to && data[i] == ':') {
+      while (i < to && data[i] != ' ') i++;
+      i = skipSpaces(i, to);
+    }
+    commandStart = i;
+    while (i < to && data[i] != ' ') i++;
+    commandEnd = i;
+    if (commandEnd == commandStart) return false;
+    while (count < MAX_PARAMS) {
+      i = skipSpaces(i, to);
+      if (i >= to) break;
+      if (data[i] == ':' || count == MAX_PARAMS - 1) {
+        if (data[i] == ':') i++;
+        starts[count] = i;
+        ends[count++] = to;
+        break;
+      }
+      starts[count] = i;
+      while (i < to && data[i] != ' ') i++;
+      ends[count++] = i;
+    }
+    return true;
+  }
+
+  private int skipSpaces(int i, int to) {
+    while (i < to && data[i] == ' ') i++;
+    return i;
+  }
+
+
+  /*****************************************************************************************
+   * @param command the command name in upper case
+   * @return true if this line's command is the given one, ignoring case
+   *****************************************************************************************/
+  boolean is(byte[] command) {
+    return equalsIgnoreCase(data, commandStart, commandEnd, command, 0, command.length);
+  }
+
+  int count() {
+    return count;
+  }
+
+  byte[] data() {
+    return data;
+  }
+
+  int commandStart() {
+    return commandStart;
+  }
+
+  int commandEnd() {
+    return commandEnd;
+  }
+
+  int start(int param) {
+    return starts[param];
+  }
+
+  int end(int param) {
+    return ends[param];
+  }
+
+  /* @return true if the line has the parameter and it is not empty */
+  boolean has(int param) {
+    return param < count && ends[param] > starts[param];
+  }
+
+  /* @return the parameter decoded as UTF-8 */
+  String param(int param) {
+    return new String(data, starts[param], ends[param] - starts[param], StandardCharsets.UTF_8);
+  }
+
+  /* @return the bytes from..to of the line decoded as UTF-8 */
+  String text(int from, int to) {
+    return new String(data, from, to - from, StandardCharsets.UTF_8);
+  }
+
+
+  /*****************************************************************************************
+   * Compares two byte ranges, ignoring the case of ASCII letters (for commands and
+   * subcommands).
+   *****************************************************************************************/
+  static boolean equalsIgnoreCase(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+    if (aTo - aFrom != bTo - bFrom) return false;
+    for (int i = aFrom, j = bFrom; i < aTo; i++, j++) {
+      if (a[i] != b[j] && toUpper(a[i]) != toUpper(b[j])) return false;
+    }
+    return true;
+  }
+
+  static byte toUpper(byte b) {
+    return b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+  }
+
+
+  /*****************************************************************************************
+   * Compares two names as NicknameRegistry.fold does (the "rfc1459" case mapping advertised
+   * by the gateway): ASCII byte by byte, with []\~ the upper case of {}|^; a name with other
+   * characters is decoded and folded.
+   *****************************************************************************************/
+  static boolean equalsFolded(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+    int length = aTo - aFrom;
+    if (length == bTo - bFrom) {
+      for (int i = 0; i < length; i++) {
+        byte x = a[aFrom + i];
+        byte y = b[bFrom + i];
+        if (x < 0 || y < 0) return foldedText(a, aFrom, aTo).equals(foldedText(b, bFrom, bTo));
+        if (x != y && toLower(x) != toLower(y)) return false;
+      }
+      return true;
+    }
+    if (ascii(a, aFrom, aTo) && ascii(b, bFrom, bTo)) return false;
+    return foldedText(a, aFrom, aTo).equals(foldedText(b, bFrom, bTo));
+  }
+
+  /* rfc1459 lower case of an ASCII byte */
+  private static byte toLower(byte b) {
+    if (b >= 'A' && b <= ']') return (byte) (b + 32);
+    return b == '~' ? (byte) '^' : b;
+  }
+
+  private static boolean ascii(byte[] data, int from, int to) {
+    for (int i = from; i < to; i++) if (data[i] < 0) return false;
+    return true;
+  }
+
+  private static String foldedText(byte[] data, int from, int to) {
+    return NicknameRegistry.fold(new String(data, from, to - from, StandardCharsets.UTF_8));
+  }
+}
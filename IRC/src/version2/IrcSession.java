@@ -0,0 +1,796 @@
+package version2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/*******************************************************************************************************************
+ * A user connected through the IrcGateway.
+ * Inbound, each line is parsed in place in the connection's read buffer and its command carried out with a Packet
+ * handed to the engine, on the loop thread. The Packet is reused, and the commands carry a request id, so the
+ * engine's ack or error reply (sent back through sendPacket during the call) tells the session which IRC reply to
+ * give. Recognizing commands, answering PING and sending to a joined channel allocate nothing but the message text.
+ * Outbound, the engine's packets are written as IRC lines, built byte by byte in a per-thread scratch buffer:
+ * chat messages become PRIVMSGs (NOTICEs for messages to everyone), room membership changes become JOIN and PART
+ * lines for the other members, users leaving the server a QUIT for those sharing a channel with them, and system
+ * messages become server NOTICEs.
+ *
+ * Supported: NICK, USER, JOIN, PART, PRIVMSG, NOTICE, PING, PONG, NAMES, LIST, QUIT, and CAP (with no capabilities).
+ * A channel is a room of the same name: joining a channel which does not exist creates the room. Room names
+ * holding spaces or commas are shown with '_' instead, and cannot be joined from IRC.
+ ******************************************************************************************************************/
+final class IrcSession extends ServerSession implements NioConnection.Handler {
+  private static final byte[] NICK = bytes("NICK");
+  private static final byte[] USER = bytes("USER");
+  private static final byte[] JOIN = bytes("JOIN");
+  private static final byte[] PART = bytes("PART");
+  private static final byte[] PRIVMSG = bytes("PRIVMSG");
+  private static final byte[] NOTICE = bytes("NOTICE");
+  private static final byte[] PING = bytes("PING");
+  private static final byte[] PONG = bytes("PONG");
+  private static final byte[] NAMES = bytes("NAMES");
+  private static final byte[] LIST = bytes("LIST");
+  private static final byte[] QUIT = bytes("QUIT");
+  private static final byte[] CAP = bytes("CAP");
+  private static final byte[] LS = bytes("LS");
+  private static final byte[] REQ = bytes("REQ");
+
+  /* Longest line, without its CR LF (RFC 2812 2.3), and longest nickname or channel name written in a line */
+  private static final int MAX_LINE = 510;
+  private static final int MAX_NAME = 64;
+  private static final int NICKLEN = 30;
+  private static final ThreadLocal<ByteBuffer> scratch =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_LINE + 2));
+
+  /************************************************************************************************
+   * Data Members
+   * request:- the packet handed to the engine for every command, reused
+   * pending:- the request id of the command being handed to the engine, 0 between commands
+   * replyCommand / replyTarget / replyMessage:- the engine's ack or error reply to that command
+   *   (pending and the reply are only used on the loop thread, where sendPacket alone takes replies)
+   * nick / userReceived / registered:- registration state; username is set once the engine has
+   *   handled the joinServer packet sent when both NICK and USER have been received
+   * discarding:- set while skipping a line too long for the read buffer
+   * channelNames / channelIds / channels:- the channels joined from this connection, as typed,
+   *   so sending to them needs no lookup by name
+   ************************************************************************************************/
+  private final IrcGateway gateway;
+  private final ChatEngine engine;
+  private final NioConnection connection;
+  private final IrcLine line = new IrcLine();
+  private final Packet request = new Packet();
+  private int requestids;
+  private int pending;
+  private String replyCommand;
+  private int replyTarget;
+  private String replyMessage;
+  private String nick;
+  private boolean userReceived;
+  private volatile boolean registered;
+  private boolean discarding;
+  private byte[][] channelNames = new byte[4][];
+  private int[] channelIds = new int[4];
+  private int channels;
+
+  IrcSession(IrcGateway gateway, NioConnection connection, int id) {
+    super(id);
+    this.gateway = gateway;
+    this.engine = gateway.engine;
+    this.connection = connection;
+  }
+
+
+  /*****************************************************************************************
+   * Handles every complete line in the buffer, leaving a partial line for the next read.
+   * A line filling the whole buffer is dropped, up to its end, with an error reply.
+   *****************************************************************************************/
+  @Override
+  public void received(NioConnection connection, ByteBuffer in) {
+    byte[] data = in.array();
+    int base = in.arrayOffset();
+    int pos = in.position();
+    int limit = in.limit();
+    for (int i = pos; i < limit && !connection.isClosed(); i++) {
+      if (data[base + i] != '\n') continue;
+      if (discarding) {
+        discarding = false;
+        send(text(numeric(417), " :Input line was too long"));
+      } else {
+        int end = i > pos && data[base + i - 1] == '\r' ? i - 1 : i;
+        if (line.parse(data, base + pos, base + end)) handle();
+      }
+      pos = i + 1;
+    }
+    if (limit - pos == in.capacity()) {
+      discarding = true;
+      pos = limit;
+    }
+    in.position(pos);
+  }
+
+  @Override
+  public void closed(NioConnection connection) {
+    gateway.sessionClosed(this);
+    if (registered) engine.disconnectClient(id);
+  }
+
+  @Override
+  void disconnect() {
+    connection.close();
+  }
+
+
+  private void handle() {
+    packetsHandled.increment();
+    if (line.is(PRIVMSG)) privmsg(true);
+    else if (line.is(NOTICE)) privmsg(false);
+    else if (line.is(PING)) ping();
+    else if (line.is(PONG)) return;
+    else if (line.is(JOIN)) join();
+    else if (line.is(PART)) part();
+    else if (line.is(NAMES)) names();
+    else if (line.is(LIST)) list();
+    else if (line.is(NICK)) nick();
+    else if (line.is(USER)) user();
+    else if (line.is(QUIT)) quit();
+    else if (line.is(CAP)) cap();
+    else if (!registered) notRegistered();
+    else {
+      ByteBuffer b = numeric(421);
+      b.put((byte) ' ');
+      put(b, line.data(), line.commandStart(), line.commandEnd());
+      send(text(b, " :Unknown command"));
+    }
+  }
+
+  private void nick() {
+    if (!line.has(0)) {
+      send(text(numeric(431), " :No nickname given"));
+      return;
+    }
+    if (registered) {
+      send(text(param(numeric(432), 0), " :Nickname changes are not supported"));
+      return;
+    }
+    if (!validNick(line.data(), line.start(0), line.end(0))) {
+      send(text(param(numeric(432), 0), " :Erroneous nickname"));
+      return;
+    }
+    String name = line.param(0);
+    if (engine.nicknames.lookup(name) >= 0) {
+      nicknameInUse(name);
+      return;
+    }
+    nick = name;
+    if (userReceived) register();
+  }
+
+  private void user() {
+    if (registered) {
+      send(text(numeric(462), " :You may not reregister"));
+      return;
+    }
+    if (line.count() < 4) {
+      needMoreParams();
+      return;
+    }
+    userReceived = true;
+    if (nick != null) register();
+  }
+
+  /*****************************************************************************************
+   * Joins the engine under the nickname: the engine's joinServer reply triggers the welcome.
+   * If another user took the nickname since NICK was checked, the engine refuses it and the
+   * client is asked for another one.
+   *****************************************************************************************/
+  private void register() {
+    registered = true;
+    engine.addSession(this);
+    request.joinServer(nick);
+    call(request);
+    if (!"error".equals(replyCommand)) return;
+    registered = false;
+    engine.removeSession(this);
+    nicknameInUse(nick);
+    nick = null;
+  }
+
+  private void nicknameInUse(String name) {
+    ByteBuffer b = numeric(433);
+    b.put((byte) ' ');
+    token(b, name);
+    send(text(b, " :Nickname is already in use"));
+  }
+
+  private void ping() {
+    if (!line.has(0)) {
+      send(text(numeric(409), " :No origin specified"));
+      return;
+    }
+    ByteBuffer b = begin();
+    text(b, ":");
+    text(b, gateway.serverName);
+    text(b, " PONG ");
+    text(b, gateway.serverName);
+    text(b, " :");
+    put(b, line.data(), line.start(0), line.end(0));
+    send(b);
+  }
+
+  private void join() {
+    if (!registered) {
+      notRegistered();
+      return;
+    }
+    if (!line.has(0)) {
+      needMoreParams();
+      return;
+    }
+    byte[] data = line.data();
+    int start = line.start(0);
+    int end = line.end(0);
+    if (end - start == 1 && data[start] == '0') {
+      while (channels > 0) leaveChannel(channels - 1);
+      return;
+    }
+    for (int from = start; from < end; ) {
+      int to = indexOf(data, from, end, (byte) ',');
+      joinChannel(data, from, to);
+      from = to + 1;
+    }
+  }
+
+  private void joinChannel(byte[] data, int from, int to) {
+    if (to - from < 2 || data[from] != '#' || to - from > MAX_NAME) {
+      noSuchChannel(data, from, to);
+      return;
+    }
+    if (findChannel(data, from + 1, to) >= 0) return;
+    String name = line.text(from + 1, to);
+    int roomid = gateway.roomId(name);
+    if (roomid < 0) {
+      request.createRoom(name);
+      if (!call(request)) {
+        noSuchChannel(data, from, to);
+        return;
+      }
+      roomid = replyTarget;
+    } else {
+      request.joinRoom(roomid);
+      if (!call(request)) {
+        ByteBuffer b = numeric(403);
+        b.put((byte) ' ');
+        put(b, data, from, to);
+        send(text(text(b, " :"), replyMessage));
+        return;
+      }
+    }
+    addChannel(data, from + 1, to, roomid);
+    ByteBuffer b = userPrefix(username);
+    text(b, " JOIN ");
+    put(b, data, from, to);
+    send(b);
+    names(data, from, to, roomid);
+  }
+
+  private void part() {
+    if (!registered) {
+      notRegistered();
+      return;
+    }
+    if (!line.has(0)) {
+      needMoreParams();
+      return;
+    }
+    byte[] data = line.data();
+    int end = line.end(0);
+    for (int from = line.start(0); from < end; ) {
+      int to = indexOf(data, from, end, (byte) ',');
+      int index = to - from > 1 && data[from] == '#' ? findChannel(data, from + 1, to) : -1;
+      if (index >= 0) {
+        leaveChannel(index);
+      } else if (to - from > 1 && gateway.roomId(line.text(from + 1, to)) >= 0) {
+        ByteBuffer b = numeric(442);
+        b.put((byte) ' ');
+        put(b, data, from, to);
+        send(text(b, " :You're not on that channel"));
+      } else {
+        noSuchChannel(data, from, to);
+      }
+      from = to + 1;
+    }
+  }
+
+  private void leaveChannel(int index) {
+    request.leaveRoom(channelIds[index]);
+    call(request);
+    ByteBuffer b = userPrefix(username);
+    text(b, " PART #");
+    put(b, channelNames[index], 0, channelNames[index].length);
+    send(b);
+    removeChannel(index);
+  }
+
+
+  /*****************************************************************************************
+   * PRIVMSG and NOTICE: to a channel (a room) or to a nickname (a user). A NOTICE never
+   * gets an error reply (RFC 2812 3.3.2).
+   *****************************************************************************************/
+  private void privmsg(boolean replies) {
+    if (!registered) {
+      notRegistered();
+      return;
+    }
+    if (!line.has(0)) {
+      if (replies) send(text(numeric(411), " :No recipient given (PRIVMSG)"));
+      return;
+    }
+    if (!line.has(1)) {
+      if (replies) send(text(numeric(412), " :No text to send"));
+      return;
+    }
+    byte[] data = line.data();
+    int end = line.end(0);
+    String body = line.param(1);
+    for (int from = line.start(0); from < end; ) {
+      int to = indexOf(data, from, end, (byte) ',');
+      if (to == from) {
+        from = to + 1;
+        continue;
+      }
+      if (data[from] == '#') {
+        int index = findChannel(data, from + 1, to);
+        int roomid = index >= 0 ? channelIds[index] : gateway.roomId(line.text(from + 1, to));
+        if (roomid < 0) {
+          if (replies) noSuchChannel(data, from, to);
+        } else {
+          request.sendMessageRoom(roomid, body);
+          if (!call(request) && replies) {
+            ByteBuffer b = numeric(404);
+            b.put((byte) ' ');
+            put(b, data, from, to);
+            send(text(b, " :Cannot send to channel"));
+          }
+        }
+      } else {
+        request.sendMessageUser(line.text(from, to), body);
+        if (!call(request) && replies) {
+          ByteBuffer b = numeric(401);
+          b.put((byte) ' ');
+          put(b, data, from, to);
+          send(text(b, " :No such nick/channel"));
+        }
+      }
+      from = to + 1;
+    }
+  }
+
+  private void names() {
+    if (!registered) {
+      notRegistered();
+      return;
+    }
+    if (!line.has(0)) {
+      send(text(numeric(366), " * :End of NAMES list"));
+      return;
+    }
+    byte[] data = line.data();
+    int end = line.end(0);
+    for (int from = line.start(0); from < end; ) {
+      int to = indexOf(data, from, end, (byte) ',');
+      int roomid = to - from > 1 && data[from] == '#' ? gateway.roomId(line.text(from + 1, to)) : -1;
+      names(data, from, to, roomid);
+      from = to + 1;
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Replies with the members of a room (RPL_NAMREPLY, as many lines as needed), then
+   * RPL_ENDOFNAMES.
+   *****************************************************************************************/
+  private void names(byte[] channel, int from, int to, int roomid) {
+    ServerRoom room = roomid < 0 ? null : engine.roomMap.get(roomid);
+    if (room != null) {
+      ByteBuffer b = null;
+      for (Integer member : room.members) {
+        ServerSession session = engine.threadMap.get(member);
+        if (session == null || session.username == null) continue;
+        if (b != null && b.position() + MAX_NAME + 1 > MAX_LINE) {
+          send(b);
+          b = null;
+        }
+        if (b == null) {
+          b = numeric(353);
+          text(b, " = ");
+          put(b, channel, from, to);
+          text(b, " :");
+        } else {
+          b.put((byte) ' ');
+        }
+        token(b, session.username);
+      }
+      if (b != null) send(b);
+    }
+    ByteBuffer b = numeric(366);
+    b.put((byte) ' ');
+    put(b, channel, from, to);
+    send(text(b, " :End of NAMES list"));
+  }
+
+  private void list() {
+    if (!registered) {
+      notRegistered();
+      return;
+    }
+    send(text(numeric(321), " Channel :Users  Name"));
+    for (ServerRoom room : engine.roomMap.values()) {
+      int members = room.members.size();
+      if (members == 0) continue;
+      ByteBuffer b = numeric(322);
+      text(b, " #");
+      token(b, room.roomName);
+      b.put((byte) ' ');
+      number(b, members);
+      send(text(b, " :"));
+    }
+    send(text(numeric(323), " :End of LIST"));
+  }
+
+  private void quit() {
+    ByteBuffer b = begin();
+    text(b, "ERROR :Closing link (");
+    text(b, nick != null ? nick : "*");
+    send(text(b, ")"));
+    if (registered) {
+      request.leaveServer();
+      engine.packetHandler(request, id);
+    }
+    connection.close();
+  }
+
+  /* Capability negotiation, for clients which start with CAP LS: no capability is offered */
+  private void cap() {
+    if (!line.has(0)) return;
+    byte[] data = line.data();
+    if (IrcLine.equalsIgnoreCase(data, line.start(0), line.end(0), LS, 0, LS.length)
+        || IrcLine.equalsIgnoreCase(data, line.start(0), line.end(0), LIST, 0, LIST.length)) {
+      ByteBuffer b = capPrefix();
+      put(b, data, line.start(0), line.end(0));
+      send(text(b, " :"));
+    } else if (IrcLine.equalsIgnoreCase(data, line.start(0), line.end(0), REQ, 0, REQ.length) && line.has(1)) {
+      ByteBuffer b = capPrefix();
+      text(b, "NAK :");
+      put(b, data, line.start(1), line.end(1));
+      send(b);
+    }
+  }
+
+  private ByteBuffer capPrefix() {
+    ByteBuffer b = begin();
+    text(b, ":");
+    text(b, gateway.serverName);
+    text(b, " CAP ");
+    text(b, nick != null ? nick : "*");
+    return text(b, " ");
+  }
+
+  private void notRegistered() {
+    send(text(numeric(451), " :You have not registered"));
+  }
+
+  private void needMoreParams() {
+    ByteBuffer b = numeric(461);
+    b.put((byte) ' ');
+    put(b, line.data(), line.commandStart(), line.commandEnd());
+    send(text(b, " :Not enough parameters"));
+  }
+
+  private void noSuchChannel(byte[] data, int from, int to) {
+    ByteBuffer b = numeric(403);
+    b.put((byte) ' ');
+    put(b, data, from, to);
+    send(text(b, " :No such channel"));
+  }
+
+
+  /*****************************************************************************************
+   * Hands a command to the engine with a fresh request id.
+   * @return true if the engine acknowledged the command, false if it refused it
+   *****************************************************************************************/
+  private boolean call(Packet packet) {
+    if (++requestids <= 0) requestids = 1;
+    pending = requestids;
+    packet.requestid = pending;
+    replyCommand = null;
+    engine.packetHandler(packet, id);
+    pending = 0;
+    return "ack".equals(replyCommand);
+  }
+
+
+  /*****************************************************************************************
+   * Translates a packet from the engine into IRC lines. Called from any thread: the engine's
+   * replies to the commands of call() come on the loop thread, during the call, and are the
+   * only packets which touch the session's state; the others are written through the
+   * connection, which any thread may write to.
+   * @param packet packet to be sent to the user
+   *****************************************************************************************/
+  @Override
+  void sendPacket(Packet packet) {
+    if (packet.requestid != 0 && connection.loop.inLoop() && packet.requestid == pending
+        && (packet.command.equals("ack") || packet.command.equals("error"))) {
+      replyCommand = packet.command;
+      replyTarget = packet.targetid;
+      replyMessage = packet.message;
+      return;
+    }
+    switch (packet.command) {
+      case "joinServer":
+        welcome();
+        break;
+      case "displayToUser":
+        display(packet);
+        break;
+      case "roomMemberAdded":
+        membership(packet, " JOIN #");
+        break;
+      case "roomMemberRemoved":
+        membership(packet, " PART #");
+        break;
+      case "userRemoved":
+        // as on IRC servers, only the users sharing a channel with the one leaving see the QUIT
+        if (packet.targetid == id || packet.message == null || !sharesRoom(packet.ids)) return;
+        send(text(userPrefix(packet.message), " QUIT :Quit"));
+        break;
+      case "shutdown":
+        send(text(begin(), "ERROR :Server shutting down"));
+        connection.close();
+        break;
+      default:
+        return;
+    }
+    engine.metrics.packetSent(packet.command);
+  }
+
+  private void welcome() {
+    ByteBuffer b = text(numeric(1), " :Welcome to the Internet Relay Network ");
+    token(b, username);
+    b.put((byte) '!');
+    token(b, username);
+    b.put((byte) '@');
+    send(text(b, gateway.serverName));
+    send(text(text(text(numeric(2), " :Your host is "), gateway.serverName), ", running version2"));
+    send(text(numeric(3), " :This server speaks the version2 chat protocol"));
+    send(text(text(text(numeric(4), " "), gateway.serverName), " version2 i n"));
+    send(text(numeric(5), " CHANTYPES=# CASEMAPPING=rfc1459 NICKLEN=30 :are supported by this server"));
+    send(text(numeric(422), " :MOTD File is missing"));
+  }
+
+
+  /*****************************************************************************************
+   * Chat messages are sent again as PRIVMSG (or NOTICE for a message to everyone), split
+   * over several lines if needed; other text is sent as server NOTICEs, one per line.
+   * IRC clients show their own messages themselves, so the engine's copy is dropped.
+   *****************************************************************************************/
+  private void display(Packet packet) {
+    String text = packet.via != null ? packet.body : packet.message;
+    if (text == null || packet.sourceid == id) return;
+    ServerSession sender = packet.via != null ? engine.threadMap.get(packet.sourceid) : null;
+    ServerRoom room = null;
+    if ("sendMessageRoom".equals(packet.via)) {
+      room = engine.roomMap.get(packet.targetid);
+      if (room == null) return;
+    }
+    int from = 0;
+    do {
+      ByteBuffer b;
+      if (sender == null) {
+        b = begin();
+        text(b, ":");
+        text(b, gateway.serverName);
+        text(b, " NOTICE ");
+      } else {
+        b = userPrefix(sender.username);
+        text(b, room != null || "sendMessageUser".equals(packet.via) ? " PRIVMSG " : " NOTICE ");
+      }
+      if (room != null) {
+        b.put((byte) '#');
+        token(b, room.roomName);
+      } else {
+        token(b, username != null ? username : "*");
+      }
+      text(b, " :");
+      int stop = sender == null ? indexOf(text, from, '\n') : text.length();
+      int next = put(b, text, from, stop, MAX_LINE, false);
+      if (next == from && from < stop) return; // the prefix (a long server name) leaves no room for the text
+      from = next;
+      if (from < text.length() && text.charAt(from) == '\n') from++;
+      send(b);
+    } while (from < text.length());
+  }
+
+  /* @return true if this user is in one of the rooms (ids of rooms a user left, may be null) */
+  private boolean sharesRoom(int[] roomids) {
+    if (roomids == null) return false;
+    for (int roomid : roomids) {
+      ServerRoom room = engine.roomMap.get(roomid);
+      if (room != null && room.members.contains(id)) return true;
+    }
+    return false;
+  }
+
+  /* JOIN and PART of other users, for the members of the room */
+  private void membership(Packet packet, String verb) {
+    if (packet.subjectid == id) return;
+    ServerRoom room = engine.roomMap.get(packet.targetid);
+    ServerSession subject = engine.threadMap.get(packet.subjectid);
+    if (room == null || subject == null || !room.members.contains(id)) return;
+    ByteBuffer b = userPrefix(subject.username);
+    text(b, verb);
+    token(b, room.roomName);
+    send(b);
+  }
+
+
+  private int findChannel(byte[] data, int from, int to) {
+    for (int i = 0; i < channels; i++)
+      if (IrcLine.equalsFolded(channelNames[i], 0, channelNames[i].length, data, from, to)) return i;
+    return -1;
+  }
+
+  private void addChannel(byte[] data, int from, int to, int roomid) {
+    if (channels == channelIds.length) {
+      channelNames = Arrays.copyOf(channelNames, channels * 2);
+      channelIds = Arrays.copyOf(channelIds, channels * 2);
+    }
+    channelNames[channels] = Arrays.copyOfRange(data, from, to);
+    channelIds[channels++] = roomid;
+  }
+
+  private void removeChannel(int index) {
+    channels--;
+    channelNames[index] = channelNames[channels];
+    channelIds[index] = channelIds[channels];
+    channelNames[channels] = null;
+  }
+
+  /* RFC 2812 2.3.1: a letter or special first, then letters, digits, specials or '-' */
+  private static boolean validNick(byte[] data, int from, int to) {
+    if (to - from > NICKLEN) return false;
+    for (int i = from; i < to; i++) {
+      byte c = data[i];
+      boolean letter = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+      boolean special = (c >= 0x5B && c <= 0x60) || (c >= 0x7B && c <= 0x7D);
+      boolean other = i > from && ((c >= '0' && c <= '9') || c == '-');
+      if (!letter && !special && !other) return false;
+    }
+    return true;
+  }
+
+
+  /*************************************************************************************************
+   * Building lines: each line is written into the calling thread's scratch buffer, which holds one
+   * line at most, then copied to the connection by send().
+   *************************************************************************************************/
+  private static ByteBuffer begin() {
+    ByteBuffer b = scratch.get();
+    b.clear();
+    return b;
+  }
+
+  /* Starts a numeric reply: ":server NNN nick" */
+  private ByteBuffer numeric(int code) {
+    ByteBuffer b = begin();
+    text(b, ":");
+    text(b, gateway.serverName);
+    b.put((byte) ' ');
+    b.put((byte) ('0' + code / 100));
+    b.put((byte) ('0' + code / 10 % 10));
+    b.put((byte) ('0' + code % 10));
+    b.put((byte) ' ');
+    String name = username != null ? username : nick;
+    if (name != null) token(b, name);
+    else b.put((byte) '*');
+    return b;
+  }
+
+  /* Starts a line from a user: ":nick!nick@server" */
+  private ByteBuffer userPrefix(String name) {
+    ByteBuffer b = begin();
+    b.put((byte) ':');
+    token(b, name);
+    b.put((byte) '!');
+    token(b, name);
+    b.put((byte) '@');
+    text(b, gateway.serverName);
+    return b;
+  }
+
+  /* Appends parameter i of the line being handled, after a space */
+  private ByteBuffer param(ByteBuffer b, int i) {
+    b.put((byte) ' ');
+    return put(b, line.data(), line.start(i), Math.min(line.end(i), line.start(i) + MAX_NAME));
+  }
+
+  private void send(ByteBuffer b) {
+    b.put((byte) '\r');
+    b.put((byte) '\n');
+    b.flip();
+    connection.write(b);
+  }
+
+  private static ByteBuffer put(ByteBuffer b, byte[] data, int from, int to) {
+    b.put(data, from, Math.min(to - from, MAX_LINE - b.position()));
+    return b;
+  }
+
+  private static ByteBuffer text(ByteBuffer b, String s) {
+    put(b, s, 0, s.length(), MAX_LINE, false);
+    return b;
+  }
+
+  /* Appends a nickname or channel name, which must not contain spaces or commas */
+  private static ByteBuffer token(ByteBuffer b, String s) {
+    put(b, s, 0, s.length(), Math.min(MAX_LINE, b.position() + MAX_NAME), true);
+    return b;
+  }
+
+  private static void number(ByteBuffer b, int n) {
+    if (n >= 10) number(b, n / 10);
+    b.put((byte) ('0' + n % 10));
+  }
+
+
+  /*****************************************************************************************
+   * Encodes chars from..to of s as UTF-8, stopping before the buffer position would pass
+   * limit. Line breaks (and spaces and commas in a token) are replaced, so text from other
+   * clients can never end the line or split a parameter.
+   * @return the index of the first char not written
+   *****************************************************************************************/
+  private static int put(ByteBuffer b, String s, int from, int to, int limit, boolean token) {
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      boolean pair = Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1));
+      if (Character.isSurrogate(c) && !pair) c = '?';
+      if (c < 0x80) {
+        if (b.position() + 1 > limit) return i;
+        if (c == '\r' || c == '\n' || c == 0) c = token ? '_' : ' ';
+        else if (token && (c == ' ' || c == ',')) c = '_';
+        b.put((byte) c);
+      } else if (c < 0x800) {
+        if (b.position() + 2 > limit) return i;
+        b.put((byte) (0xC0 | c >> 6));
+        b.put((byte) (0x80 | (c & 0x3F)));
+      } else if (pair) {
+        if (b.position() + 4 > limit) return i;
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        b.put((byte) (0xF0 | cp >> 18));
+        b.put((byte) (0x80 | (cp >> 12 & 0x3F)));
+        b.put((byte) (0x80 | (cp >> 6 & 0x3F)));
+        b.put((byte) (0x80 | (cp & 0x3F)));
+      } else {
+        if (b.position() + 3 > limit) return i;
+        b.put((byte) (0xE0 | c >> 12));
+        b.put((byte) (0x80 | (c >> 6 & 0x3F)));
+        b.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    return to;
+  }
+
+  private static int indexOf(byte[] data, int from, int to, byte value) {
+    for (int i = from; i < to; i++) if (data[i] == value) return i;
+    return to;
+  }
+
+  private static int indexOf(String s, int from, char value) {
+    int i = s.indexOf(value, from);
+    return i < 0 ? s.length() : i;
+  }
+
+  private static byte[] bytes(String ascii) {
+    return ascii.getBytes(StandardCharsets.US_ASCII);
+  }
+}
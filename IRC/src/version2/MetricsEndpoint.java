@@ -0,0 +1,204 @@
+package version2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/*******************************************************************************************************************
+ * Local HTTP listener exposing the server state, built on the JDK's com.sun.net.httpserver.
+ * /metrics:- the metrics registry and the live user/room state in the Prometheus text format
+ * /health:- a small JSON document, 200 while the server is hosted and 503 once it is shutting down
+ * The listener only binds to the loopback address. A scrape reads LongAdders, histogram buckets and the sizes of
+ * the concurrent user and room maps, so it never takes a lock that a ServerThread could be waiting on.
+ ******************************************************************************************************************/
+class MetricsEndpoint {
+
+  /************************************************************************************************
+   * Data Members
+   * httpServer:- the JDK HTTP server, served by a single daemon thread (executor)
+   * metrics:- registry exported by /metrics
+   * users / rooms:- live state of the chat server
+   * healthy:- tells if the chat server is accepting clients
+   ************************************************************************************************/
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+  private final ServerMetrics metrics;
+  private final LongSupplier users;
+  private final Supplier<Map<Integer, ServerRoom>> rooms;
+  private final BooleanSupplier healthy;
+
+
+  /*****************************************************************************************
+   * Binds the listener to localhost. Nothing is served until start() is called.
+   * @param port the port number to listen on
+   * @throws IOException if the port cannot be bound
+   *****************************************************************************************/
+  MetricsEndpoint(
+      int port,
+      ServerMetrics metrics,
+      LongSupplier users,
+      Supplier<Map<Integer, ServerRoom>> rooms,
+      BooleanSupplier healthy)
+      throws IOException {
+    this.metrics = metrics;
+    this.users = users;
+    this.rooms = rooms;
+    this.healthy = healthy;
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    executor =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-http");
+              thread.setDaemon(true);
+              return thread;
+            });
+    httpServer.setExecutor(executor);
+    httpServer.createContext("/metrics", exchange -> respond(exchange, 200, prometheus(), "text/plain; version=0.0.4"));
+    httpServer.createContext("/health", this::health);
+  }
+
+  void start() {
+    httpServer.start();
+  }
+
+  void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  int port() {
+    return httpServer.getAddress().getPort();
+  }
+
+
+  /*****************************************************************************************
+   * Handles /health.
+   *****************************************************************************************/
+  private void health(HttpExchange exchange) throws IOException {
+    boolean up = healthy.getAsBoolean();
+    Map<Integer, ServerRoom> roomMap = rooms.get();
+    String body =
+        String.format(
+            "{\"status\":\"%s\",\"users\":%d,\"rooms\":%d,\"uptimeSeconds\":%.0f}\n",
+            up ? "UP" : "DOWN",
+            users.getAsLong(),
+            roomMap == null ? 0 : roomMap.size(),
+            metrics.uptimeSeconds());
+    respond(exchange, up ? 200 : 503, body, "application/json");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body, String contentType)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Renders the registry and the live server state in the Prometheus text format.
+   * @return the body of a /metrics response
+   *****************************************************************************************/
+  String prometheus() {
+    StringBuilder sb = new StringBuilder(4096);
+    Map<Integer, ServerRoom> roomMap = rooms.get();
+
+    gauge(sb, "irc_users", "Users connected to the server", users.getAsLong());
+    gauge(sb, "irc_rooms", "Rooms on the server", roomMap == null ? 0 : roomMap.size());
+    sb.append("# HELP irc_room_members Members of each room\n# TYPE irc_room_members gauge\n");
+    if (roomMap != null) {
+      for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
+        sb.append("irc_room_members{room=\"").append(entry.getKey());
+        sb.append("\",name=\"").append(escape(entry.getValue().roomName)).append("\"} ");
+        sb.append(entry.getValue().members.size()).append('\n');
+      }
+    }
+    gauge(sb, "irc_connections_active", "Open client connections", metrics.activeConnections());
+    counter(sb, "irc_connections_opened_total", "Client connections accepted", metrics.connectionsOpened());
+    counter(sb, "irc_connections_closed_total", "Client connections closed", metrics.connectionsClosed());
+    counter(sb, "irc_bytes_written_total", "Bytes written to client sockets", metrics.bytesWritten());
+    gauge(sb, "irc_message_rate", "Chat messages received per second", metrics.messageRate());
+    gauge(sb, "irc_packet_in_rate", "Packets received per second", metrics.packetInRate());
+    gauge(sb, "irc_packet_out_rate", "Packets sent per second", metrics.packetOutRate());
+
+    sb.append("# HELP irc_packets_in_total Packets received per command\n# TYPE irc_packets_in_total counter\n");
+    for (Map.Entry<String, LongAdder> entry : metrics.packetsIn().entrySet())
+      sb.append("irc_packets_in_total{command=\"").append(escape(entry.getKey())).append("\"} ")
+          .append(entry.getValue().sum()).append('\n');
+    sb.append("# HELP irc_packets_out_total Packets sent per command\n# TYPE irc_packets_out_total counter\n");
+    for (Map.Entry<String, LongAdder> entry : metrics.packetsOut().entrySet())
+      sb.append("irc_packets_out_total{command=\"").append(escape(entry.getKey())).append("\"} ")
+          .append(entry.getValue().sum()).append('\n');
+
+    sb.append("# HELP irc_handler_seconds Time spent in packetHandler per command\n# TYPE irc_handler_seconds histogram\n");
+    for (Map.Entry<String, Histogram> entry : metrics.handlerLatency().entrySet())
+      histogram(sb, "irc_handler_seconds", "command=\"" + escape(entry.getKey()) + "\",", entry.getValue(), 1e9);
+    sb.append("# HELP irc_fanout_recipients Recipients per broadcast\n# TYPE irc_fanout_recipients histogram\n");
+    histogram(sb, "irc_fanout_recipients", "", metrics.fanOut(), 1);
+
+    for (Map.Entry<String, LongSupplier> entry : metrics.gauges().entrySet()) {
+      String name = "irc_" + entry.getKey().replaceAll("[^A-Za-z0-9_]", "_");
+      gauge(sb, name, "Server gauge " + entry.getKey(), entry.getValue().getAsLong());
+    }
+    return sb.toString();
+  }
+
+  private static void gauge(StringBuilder sb, String name, String help, double value) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder sb, String name, String help, long value) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void counter(StringBuilder sb, String name, String help, long value) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" counter\n");
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+
+  /*****************************************************************************************
+   * Writes the cumulative buckets of a histogram, up to the highest non-empty bucket.
+   * @param labels extra labels, each followed by a comma
+   * @param scale divisor turning recorded values into the exported unit
+   *****************************************************************************************/
+  private static void histogram(StringBuilder sb, String name, String labels, Histogram histogram, double scale) {
+    long[] counts = histogram.snapshot();
+    int highest = 0;
+    for (int i = 0; i < counts.length; i++) if (counts[i] > 0) highest = i;
+    long cumulative = 0;
+    for (int i = 0; i <= highest; i++) {
+      cumulative += counts[i];
+      sb.append(name).append("_bucket{").append(labels).append("le=\"");
+      sb.append(Histogram.upperBound(i) / scale).append("\"} ").append(cumulative).append('\n');
+    }
+    sb.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+    String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+    sb.append(name).append("_sum").append(plain).append(' ').append(histogram.sum() / scale).append('\n');
+    sb.append(name).append("_count").append(plain).append(' ').append(cumulative).append('\n');
+  }
+
+  private static String escape(String value) {
+    if (value == null) return "";
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,76 @@
+package version2;
+
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+
+/*******************************************************************************************************************
+ * The user-names in use on the server, each mapped to the id of the user holding it.
+ * Names are compared the way IRC compares nicknames (RFC 1459): ignoring case, with "[]\~" the upper case of
+ * "{}|^". Letters outside ASCII are compared ignoring case as well.
+ * A name is claimed with a single putIfAbsent on a concurrent map, so two users joining under the same name at the
+ * same time cannot both get it, and joins on different names never wait for each other. The map is sorted (a skip
+ * list), so the users can also be listed page by page, or by the start of their name.
+ ******************************************************************************************************************/
+final class NicknameRegistry {
+
+  /************************************************************************************************
+   * Data Members
+   * owners:- folded user-name to the id of the user holding it
+   ************************************************************************************************/
+  private final ConcurrentSkipListMap<String, Integer> owners = new ConcurrentSkipListMap<>();
+
+
+  /*****************************************************************************************
+   * Gives a name to a user, unless another user holds it already.
+   * @param name the user-name asked for
+   * @param userid the user asking for it
+   * @return true if the user now holds the name
+   *****************************************************************************************/
+  boolean claim(String name, int userid) {
+    Integer owner = owners.putIfAbsent(fold(name), userid);
+    return owner == null || owner == userid;
+  }
+
+  /* Frees the name, if the user still holds it */
+  void release(String name, int userid) {
+    if (name != null) owners.remove(fold(name), userid);
+  }
+
+  /* @return the id of the user holding the name, or -1 */
+  int lookup(String name) {
+    Integer owner = owners.get(fold(name));
+    return owner == null ? -1 : owner;
+  }
+
+  int size() {
+    return owners.size();
+  }
+
+  /* @return the folded user-names in order, each with the id of the user holding it; read-only */
+  NavigableMap<String, Integer> index() {
+    return Collections.unmodifiableNavigableMap(owners);
+  }
+
+
+  /*****************************************************************************************
+   * @return the name in the form used as key, the same for every spelling of the name
+   *****************************************************************************************/
+  static String fold(String name) {
+    int length = name.length();
+    int i = 0;
+    while (i < length && folded(name.charAt(i)) == name.charAt(i)) i++;
+    if (i == length) return name;
+    char[] chars = name.toCharArray();
+    for (; i < length; i++) chars[i] = folded(chars[i]);
+    return new String(chars);
+  }
+
+  private static char folded(char c) {
+    if (c >= 'A' && c <= 'Z') return (char) (c + ('a' - 'A'));
+    if (c == '[' || c == ']' || c == '\\') return (char) (c + ('{' - '['));
+    if (c == '~') return '^';
+    return c < 0x80 ? c : Character.toLowerCase(c);
+  }
+}
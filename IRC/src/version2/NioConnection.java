@@ -0,0 +1,200 @@
+package version2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * A non-blocking connection of a SelectorLoop.
+ * Reading happens on the loop thread: the received bytes are handed to the Handler in the connection's read buffer,
+ * which is a heap buffer so the handler can parse its backing array in place. Bytes the handler leaves unconsumed
+ * (the start of a line) are kept for the next read.
+ * Any thread may write: the bytes are copied into the output buffer and the loop is asked to flush, at most once
+ * until that flush has run, so a burst of writes costs one wake-up. A connection whose output grows past the
+ * loop's maxPendingBytes is closed instead of buffering without bound.
+ ******************************************************************************************************************/
+final class NioConnection {
+
+  /**************************************************************************
+   * The protocol spoken on a connection. Both methods run on the loop thread.
+   **************************************************************************/
+  interface Handler {
+    /* Consumes complete messages from in (in read mode) by advancing its position */
+    void received(NioConnection connection, ByteBuffer in);
+
+    /* The connection is closed, by either side. Called once. */
+    void closed(NioConnection connection);
+  }
+
+  /************************************************************************************************
+   * Data Members
+   * in:- bytes received and not yet consumed by the handler, only used on the loop thread
+   * out:- bytes waiting to be written, guarded by the connection's lock
+   * flushScheduled:- set while a flush task is queued on the loop
+   * closing / closed:- set by close() and once the socket is closed
+   ************************************************************************************************/
+  final SelectorLoop loop;
+  final String remoteAddress;
+  private final SocketChannel channel;
+  private final ByteBuffer in;
+  private ByteBuffer out;
+  private final int initialOutput = 4096;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private volatile boolean closing;
+  private volatile boolean closed;
+  Handler handler;
+  SelectionKey key;
+
+  NioConnection(SelectorLoop loop, SocketChannel channel) {
+    this.loop = loop;
+    this.channel = channel;
+    String address;
+    try {
+      address = String.valueOf(channel.getRemoteAddress());
+    } catch (IOException e) {
+      address = "unknown";
+    }
+    remoteAddress = address;
+    in = ByteBuffer.allocate(loop.readBufferSize);
+    out = ByteBuffer.allocate(initialOutput);
+  }
+
+
+  /*****************************************************************************************
+   * Queues the remaining bytes of the buffers to be written, together: no other thread's
+   * bytes can come between them. May be called from any thread.
+   * @param srcs the bytes to write, in read mode; consumed by the call
+   * @return false if the connection is closed, or has been closed for being too slow
+   *****************************************************************************************/
+  boolean write(ByteBuffer... srcs) {
+    int length = 0;
+    for (ByteBuffer src : srcs) length += src.remaining();
+    synchronized (this) {
+      if (closing) return false;
+      if (out.remaining() < length) {
+        int needed = out.position() + length;
+        int maxPendingBytes = loop.maxPendingBytes;
+        if (needed > maxPendingBytes) {
+          closing = true;
+          Log.warn("Closing gateway connection " + remoteAddress + ": more than " + maxPendingBytes
+              + " bytes waiting to be written.");
+          loop.execute(this::abort);
+          return false;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(maxPendingBytes, Math.max(needed, out.capacity() * 2)));
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+      }
+      for (ByteBuffer src : srcs) out.put(src);
+    }
+    if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    return true;
+  }
+
+
+  /*****************************************************************************************
+   * Writes what is already queued, then closes the connection: at once if the socket takes
+   * it all, otherwise once the last byte is written (or when the loop stops). Later writes
+   * are refused.
+   *****************************************************************************************/
+  void close() {
+    closing = true;
+    loop.execute(this::flush);
+  }
+
+  boolean isClosed() {
+    return closing || closed;
+  }
+
+  /* @return the bytes waiting to be written */
+  synchronized int pendingBytes() {
+    return closed ? 0 : out.position();
+  }
+
+
+  /*****************************************************************************************
+   * Closes the socket at once and tells the handler. Loop thread only.
+   *****************************************************************************************/
+  void abort() {
+    if (closed) return;
+    closed = true;
+    closing = true;
+    if (key != null) key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.warn("Error while closing gateway connection " + remoteAddress + ": " + e.getMessage());
+    }
+    if (handler != null) handler.closed(this);
+  }
+
+
+  /*****************************************************************************************
+   * Reads what the socket has and hands it to the handler. Loop thread only.
+   *****************************************************************************************/
+  void readReady() {
+    int read;
+    try {
+      read = channel.read(in);
+    } catch (IOException e) {
+      abort();
+      return;
+    }
+    if (read < 0) {
+      abort();
+      return;
+    }
+    in.flip();
+    try {
+      handler.received(this, in);
+    } finally {
+      in.compact();
+    }
+    if (!in.hasRemaining() && !closed) {
+      Log.warn("Closing gateway connection " + remoteAddress + ": the read buffer is full.");
+      abort();
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Writes as much of the output as the socket takes without blocking, and asks the loop
+   * to call again when the socket is writable if some is left. A closing connection is
+   * closed once its output is drained. Loop thread only.
+   *****************************************************************************************/
+  void flush() {
+    flushScheduled.set(false);
+    if (closed) return;
+    int written;
+    boolean drained;
+    synchronized (this) {
+      out.flip();
+      try {
+        written = channel.write(out);
+      } catch (IOException e) {
+        out.clear();
+        written = -1;
+      }
+      out.compact();
+      drained = out.position() == 0;
+      if (drained && out.capacity() > initialOutput) out = ByteBuffer.allocate(initialOutput);
+    }
+    if (written < 0) {
+      abort();
+      return;
+    }
+    if (written > 0) loop.metrics.bytesWritten(written);
+    if (drained && closing) {
+      abort();
+      return;
+    }
+    if (key == null || !key.isValid()) return;
+    int ops = drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    if (key.interestOps() != ops) key.interestOps(ops);
+  }
+}
@@ -19,11 +19,38 @@ class Packet implements Serializable {
     * Data Members for the Packet are:-
     * command:-Command received from the client (create a room, send a message to a room, etc.)
     * targetid:- Identifies the target user or room a client wants to send a message to
+    * targetname:- For sendMessageUser, the user-name of the recipient when the client addresses it by name;
+    *   for listRooms / listUsers and their pages, the cursor; for joinServer, the resume token (given in the
+    *   server's reply, and sent back by a client reconnecting under the same user-name)
     * message:- Contents of the message a client wants to send
+    * subjectid:- The user a roster change is about (roomMemberAdded / roomMemberRemoved)
+    * ids / names:- Structured roster data: user or room ids and their matching names; for userRemoved, the
+    *   rooms the user was in
+    * members:- For roomSnapshot, the member ids of each room listed in ids (only given for the rooms the
+    *   recipient is in)
+    * counts:- For roomSnapshot, roomSummary and roomPage, the number of members of each room listed in ids
+    * requestid:- Set by clients which want a reply to a command: the server echoes it in an ack or error
+    *   packet (or in its joinServer reply). 0 for commands without a reply
+    * via / sourceid / body:- For chat messages, the command which sent the message, its sender and the text as
+    *   it was typed, so that gateways speaking other protocols can format the message themselves; via is
+    *   also set on the ack of resendRoom, which travels behind the messages sent again (see PacketWriter.isBulk)
+    * seq:- For room messages, the position of the message in its room, counted from 1 (0 for other packets);
+    *   for resendRoom, the first message asked for
     **********************************************************************************************/
   String command;
   int targetid; 
+  String targetname;
   String message;
+  int subjectid;
+  int[] ids;
+  String[] names;
+  int[][] members;
+  int[] counts;
+  int requestid;
+  String via;
+  int sourceid;
+  String body;
+  long seq;
 
   
   /**************************************************************************************************
@@ -33,7 +60,18 @@ class Packet implements Serializable {
   private void clear() {
     command = null;
     targetid = -1;
+    targetname = null;
     message = null;
+    subjectid = -1;
+    ids = null;
+    names = null;
+    members = null;
+    counts = null;
+    requestid = 0;
+    via = null;
+    sourceid = -1;
+    body = null;
+    seq = 0;
   }
 
   
@@ -41,7 +79,8 @@ class Packet implements Serializable {
    * This method is called when a client initiates a connection with the server.
    *  The client's unique user-name is passed in as the message parameter.
    * <p>This method is also called from the server side once the connection is established.
-   *  A welcome message containing the client's unique user-name and identification number is passed in as the message parameter.
+   *  A welcome message containing the client's unique user-name and identification number is passed in as the message parameter,
+   *  and the server sets targetid to the client's user id.
    * @param message contains information from the server or client on startup
    ************************************************************************************************************************************/
   void joinServer(String message) {
@@ -60,29 +99,199 @@ class Packet implements Serializable {
     command = "leaveServer";
   }
 
+
+  /********************************************************************************************
+   * Sent by clients at regular intervals, so the server can tell a quiet user from a dead
+   * connection. The server does not reply.
+   *******************************************************************************************/
+  void ping() {
+    clear();
+    command = "ping";
+  }
+
   
   /*******************************************************************************************
-   * When a client connects to the server, or leaves the server, the user list is updated.
-   * @param message contains the user id and user-name
+   * Sent by the server to a client which has just joined: every connected user.
+   * @param ids the user ids
+   * @param names the user-names, in the same order as ids
    *******************************************************************************************/
-  void userUpdate(String message) {
+  void userSnapshot(int[] ids, String[] names) {
     clear();
-    command = "userUpdate";
+    command = "userSnapshot";
+    this.ids = ids;
+    this.names = names;
+  }
+
+  
+  /*******************************************************************************************
+   * Sent by the server to a client which has just joined: every room with its member count,
+   * and the members of the rooms the client is in.
+   * @param ids the room ids
+   * @param names the room names, in the same order as ids
+   * @param counts the number of members of each room, in the same order as ids
+   * @param members the member ids of each room the client is in, an empty array for the others
+   *******************************************************************************************/
+  void roomSnapshot(int[] ids, String[] names, int[] counts, int[][] members) {
+    clear();
+    command = "roomSnapshot";
+    this.ids = ids;
+    this.names = names;
+    this.counts = counts;
+    this.members = members;
+  }
+
+  
+  /*******************************************************************************************
+   * Sent to every client now and then: the rooms created, removed or whose member count
+   * changed since the last summary. Clients get the members themselves only for the rooms
+   * they are in (roomMembers, roomMemberAdded, roomMemberRemoved).
+   * @param ids the room ids
+   * @param names the room names, in the same order as ids, null for removed rooms
+   * @param counts the number of members of each room, 0 for removed rooms
+   *******************************************************************************************/
+  void roomSummary(int[] ids, String[] names, int[] counts) {
+    clear();
+    command = "roomSummary";
+    this.ids = ids;
+    this.names = names;
+    this.counts = counts;
+  }
+
+  
+  /*******************************************************************************************
+   * Sent to a user who created or joined a room: the members of the room. The user then gets
+   * roomMemberAdded / roomMemberRemoved as long as it is in the room.
+   * @param targetid the id of the room
+   * @param message the name of the room
+   * @param ids the member ids
+   *******************************************************************************************/
+  void roomMembers(int targetid, String message, int[] ids) {
+    clear();
+    command = "roomMembers";
+    this.targetid = targetid;
     this.message = message;
+    this.ids = ids;
   }
 
   
-  /********************************************************************************************************
-   * When a room is created, the room list is updated.
-   * @param message contains the room name, room id, and the user id, user-name of connected clients
-   ********************************************************************************************************/
-  void roomUpdate(String message) {
+  /*******************************************************************************************
+   * Asks for a page of the rooms, in the order of their names (ignoring case). The server
+   * answers with a roomPage carrying the request id.
+   * @param cursor the cursor of the previous page, null for the first page
+   * @param limit the most rooms wanted, 0 for the server's page size (which also caps it)
+   * @param prefix only the rooms whose name starts with it (ignoring case), null for all
+   *******************************************************************************************/
+  void listRooms(String cursor, int limit, String prefix) {
+    clear();
+    command = "listRooms";
+    this.targetname = cursor;
+    this.subjectid = limit;
+    this.message = prefix;
+  }
+
+  
+  /*******************************************************************************************
+   * Asks for a page of the users who have joined, in the order of their names (ignoring
+   * case). The server answers with a userPage carrying the request id.
+   * @param cursor the cursor of the previous page, null for the first page
+   * @param limit the most users wanted, 0 for the server's page size (which also caps it)
+   * @param prefix only the users whose name starts with it (ignoring case), null for all
+   *******************************************************************************************/
+  void listUsers(String cursor, int limit, String prefix) {
     clear();
-    command = "roomUpdate";
+    command = "listUsers";
+    this.targetname = cursor;
+    this.subjectid = limit;
+    this.message = prefix;
+  }
+
+  
+  /*******************************************************************************************
+   * A page of rooms, in answer to listRooms.
+   * @param ids the room ids
+   * @param names the room names, in the same order as ids
+   * @param counts the number of members of each room, in the same order as ids
+   * @param cursor the cursor of the next page, null if this is the last one
+   *******************************************************************************************/
+  void roomPage(int[] ids, String[] names, int[] counts, String cursor) {
+    clear();
+    command = "roomPage";
+    this.ids = ids;
+    this.names = names;
+    this.counts = counts;
+    this.targetname = cursor;
+  }
+
+  
+  /*******************************************************************************************
+   * A page of users, in answer to listUsers.
+   * @param ids the user ids
+   * @param names the user-names, in the same order as ids
+   * @param cursor the cursor of the next page, null if this is the last one
+   *******************************************************************************************/
+  void userPage(int[] ids, String[] names, String cursor) {
+    clear();
+    command = "userPage";
+    this.ids = ids;
+    this.names = names;
+    this.targetname = cursor;
+  }
+
+  
+  /*******************************************************************************************
+   * A user joined the server.
+   * @param targetid the id of the new user
+   * @param message the user-name of the new user
+   *******************************************************************************************/
+  void userAdded(int targetid, String message) {
+    clear();
+    command = "userAdded";
+    this.targetid = targetid;
     this.message = message;
   }
 
   
+  /*******************************************************************************************
+   * A user left the server. Clients also remove the user from every room they were in.
+   * @param targetid the id of the user who left
+   * @param message the user-name of the user who left
+   * @param ids the rooms the user was in, so gateways can tell only those sharing one
+   *******************************************************************************************/
+  void userRemoved(int targetid, String message, int[] ids) {
+    clear();
+    command = "userRemoved";
+    this.targetid = targetid;
+    this.message = message;
+    this.ids = ids;
+  }
+
+  
+  /*******************************************************************************************
+   * A user joined a room. Sent to the members of the room.
+   * @param targetid the id of the room
+   * @param subjectid the id of the user
+   *******************************************************************************************/
+  void roomMemberAdded(int targetid, int subjectid) {
+    clear();
+    command = "roomMemberAdded";
+    this.targetid = targetid;
+    this.subjectid = subjectid;
+  }
+
+  
+  /*******************************************************************************************
+   * A user left a room. Sent to the members of the room and to the user who left.
+   * @param targetid the id of the room
+   * @param subjectid the id of the user
+   *******************************************************************************************/
+  void roomMemberRemoved(int targetid, int subjectid) {
+    clear();
+    command = "roomMemberRemoved";
+    this.targetid = targetid;
+    this.subjectid = subjectid;
+  }
+
+  
 /**********************************************************************************************************
    * When no commands are present in the user input, a message is broadcast to all connected users.
    * @param message user input containing the contents of the message they wish to send
@@ -107,6 +316,20 @@ class Packet implements Serializable {
     this.message = message;
   }
 
+
+  /***************************************************************************************************************
+   * Same as sendMessageUser(int, String), addressing the user by user-name instead. The server looks the name up
+   * ignoring case (see NicknameRegistry).
+   * @param targetname the user-name of the user the client wishes to send a message to
+   * @param message user input containing the contents of the message they wish to send
+   ***************************************************************************************************************/
+  void sendMessageUser(String targetname, String message) {
+    clear();
+    command = "sendMessageUser";
+    this.targetname = targetname;
+    this.message = message;
+  }
+
   
   /****************************************************************************************************************
    * This method is called when a client wishes to send a message to all users connected to a specific room.
@@ -122,6 +345,23 @@ class Packet implements Serializable {
   }
 
   
+  /****************************************************************************************************************
+   * Sent by a client which missed room messages (it received a later one first). The server sends the missed
+   * messages it still has again, then its ack, whose targetid is the number of messages at the start of the
+   * range it no longer has.
+   * @param targetid the room id
+   * @param seq the first message missed
+   * @param count the number of messages missed
+   ****************************************************************************************************************/
+  void resendRoom(int targetid, long seq, int count) {
+    clear();
+    command = "resendRoom";
+    this.targetid = targetid;
+    this.seq = seq;
+    this.subjectid = count;
+  }
+
+  
   /*********************************************************************************************************
    * This method is called when a client wishes to create a new "virtual" room.
    * They must supply a room name to create a room.
@@ -169,6 +409,53 @@ class Packet implements Serializable {
   }
 
   
+  /*********************************************************************************************************
+   * A chat message sent by a user, displayed like displayToUser by the clients.
+   * @param message the full text to display to the screen
+   * @param via the command which sent the message: sendMessageAll, sendMessageUser or sendMessageRoom
+   * @param targetid the room id for sendMessageRoom, the recipient's user id for sendMessageUser, otherwise -1
+   * @param sourceid the user id of the sender
+   * @param body the text of the message as the sender typed it
+   ********************************************************************************************************/
+  void chatMessage(String message, String via, int targetid, int sourceid, String body) {
+    clear();
+    command = "displayToUser";
+    this.message = message;
+    this.via = via;
+    this.targetid = targetid;
+    this.sourceid = sourceid;
+    this.body = body;
+  }
+
+  
+  /*********************************************************************************************************
+   * Reply of the server to a command which carried a request id, once the command is carried out.
+   * @param requestid the request id of the command
+   * @param targetid the result of the command, if any (the id of a created room), otherwise -1
+   * @param message the confirmation to display to the user, or null
+   ********************************************************************************************************/
+  void ack(int requestid, int targetid, String message) {
+    clear();
+    command = "ack";
+    this.requestid = requestid;
+    this.targetid = targetid;
+    this.message = message;
+  }
+
+  
+  /*********************************************************************************************************
+   * Reply of the server to a command which carried a request id, when the command was refused.
+   * @param requestid the request id of the command
+   * @param message the reason, to display to the user
+   ********************************************************************************************************/
+  void error(int requestid, String message) {
+    clear();
+    command = "error";
+    this.requestid = requestid;
+    this.message = message;
+  }
+
+  
   /********************************************************************************************************* 
    * Shuts down the server, thus closing the application. 
    *********************************************************************************************************/
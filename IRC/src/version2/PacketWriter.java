@@ -0,0 +1,240 @@
+package version2;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Asynchronous, bounded outbound packet queue for one connection.
+ * Callers only put the packet on the queue, so they never block on the socket. A dedicated writer thread takes
+ * whatever has accumulated, writes the whole batch, then flushes and resets the object stream once per batch.
+ * If the queue is full, or the connection has failed, send() refuses the packet and counts it as failed.
+ *
+ * The queue has two lanes, each bounded by the capacity: chat messages go to the bulk lane and everything else
+ * (acks, errors, roster updates, joins, the shutdown notice...) to the control lane, so that a control packet never
+ * waits behind a backlog of chat. When both lanes have packets, a batch takes up to controlWeight control packets
+ * for every bulkWeight chat packets, so a stream of control packets cannot starve the chat either. The order of the
+ * packets within a lane is kept.
+ ******************************************************************************************************************/
+final class PacketWriter {
+
+  /**************************************************************************
+   * Told on the writer thread when the stream fails. The packets which were
+   * still queued are counted as failed and discarded.
+   **************************************************************************/
+  interface FailureHandler {
+    void writeFailed(int lostPackets, IOException cause);
+  }
+
+  /************************************************************************************************
+   * Data Members
+   * out:- the stream of the connection, only touched by the writer thread
+   * control / bulk:- packets waiting to be written, in their lane
+   * batchLock:- held while sendAll() queues its packets and while the writer collects a batch
+   * maxBatch:- the most packets written before one flush
+   * controlWeight / bulkWeight:- packets taken from each lane in turn while both have some
+   * inFlight:- size of the batch currently being written
+   * sent / failed:- packets written, and packets refused or lost
+   * closed:- no new packets are accepted once close() is called
+   * failure:- the error which stopped the writer, if any
+   ************************************************************************************************/
+  private final ObjectOutputStream out;
+  private final BlockingQueue<Packet> control;
+  private final BlockingQueue<Packet> bulk;
+  private final Object batchLock = new Object();
+  private final int maxBatch;
+  private final int controlWeight;
+  private final int bulkWeight;
+  private final FailureHandler failureHandler;
+  private final Thread thread;
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private volatile int inFlight;
+  private volatile boolean closed;
+  private volatile IOException failure;
+
+
+  /*****************************************************************************************
+   * Starts the writer thread, with the lanes weighted 4 control packets to 1 chat packet.
+   * @param name name of the writer thread
+   * @param out the stream the packets are written to
+   * @param capacity the most packets which can wait in each lane
+   * @param maxBatch the most packets written before one flush
+   * @param failureHandler told when the stream fails, may be null
+   *****************************************************************************************/
+  PacketWriter(String name, ObjectOutputStream out, int capacity, int maxBatch, FailureHandler failureHandler) {
+    this(name, out, capacity, maxBatch, 4, 1, failureHandler);
+  }
+
+  PacketWriter(
+      String name,
+      ObjectOutputStream out,
+      int capacity,
+      int maxBatch,
+      int controlWeight,
+      int bulkWeight,
+      FailureHandler failureHandler) {
+    this.out = out;
+    this.control = new ArrayBlockingQueue<>(capacity);
+    this.bulk = new ArrayBlockingQueue<>(capacity);
+    this.maxBatch = maxBatch;
+    this.controlWeight = Math.max(1, controlWeight);
+    this.bulkWeight = Math.max(1, bulkWeight);
+    this.failureHandler = failureHandler;
+    thread = new Thread(this::writeLoop, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /*****************************************************************************************
+   * Queues a packet without blocking.
+   * @return false if the packet was refused because the queue is full, or because the
+   *     writer is closed or has failed
+   *****************************************************************************************/
+  boolean send(Packet packet) {
+    if (closed || failure != null || !laneOf(packet).offer(packet)) {
+      failed.increment();
+      return false;
+    }
+    LockSupport.unpark(thread);
+    return true;
+  }
+
+  /*****************************************************************************************
+   * Queues several packets without blocking, so that they are written and flushed together
+   * (as long as they fit in one batch). Packets which do not fit in the queue are refused.
+   * @return the number of packets queued
+   *****************************************************************************************/
+  int sendAll(List<Packet> packets) {
+    int queued = 0;
+    synchronized (batchLock) {
+      if (!closed && failure == null) for (Packet packet : packets) if (laneOf(packet).offer(packet)) ++queued;
+    }
+    failed.add(packets.size() - queued);
+    if (queued > 0) LockSupport.unpark(thread);
+    return queued;
+  }
+
+  /* Packets queued or being written */
+  int pending() {
+    return control.size() + bulk.size() + inFlight;
+  }
+
+
+  /*****************************************************************************************
+   * @return true for the packets of the bulk lane: the chat messages (sent by the client, or
+   *     delivered by the server), leaveServer, which must stay behind the messages sent
+   *     before it, and the ack of resendRoom, which must stay behind the messages sent again
+   *****************************************************************************************/
+  static boolean isBulk(Packet packet) {
+    switch (packet.command) {
+      case "sendMessageAll":
+      case "sendMessageUser":
+      case "sendMessageRoom":
+      case "leaveServer":
+        return true;
+      case "displayToUser":
+      case "ack":
+        return packet.via != null;
+      default:
+        return false;
+    }
+  }
+
+  private BlockingQueue<Packet> laneOf(Packet packet) {
+    return isBulk(packet) ? bulk : control;
+  }
+
+  long sent() {
+    return sent.sum();
+  }
+
+  long failed() {
+    return failed.sum();
+  }
+
+  boolean hasFailed() {
+    return failure != null;
+  }
+
+
+  /*****************************************************************************************
+   * Stops accepting packets and waits for the writer to write out what is already queued.
+   * @param timeoutMillis how long to wait for the queue to drain, 0 to discard it right away
+   * @return the number of packets which could not be written in time and were discarded
+   *****************************************************************************************/
+  int close(long timeoutMillis) {
+    closed = true;
+    try {
+      if (timeoutMillis > 0 && Thread.currentThread() != thread) thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread.interrupt();
+    int dropped = control.size() + bulk.size();
+    control.clear();
+    bulk.clear();
+    failed.add(dropped);
+    return dropped;
+  }
+
+
+  /*****************************************************************************************
+   * Body of the writer thread. Exits once closed and empty, or when the stream fails.
+   * Waits parked while both lanes are empty; send() unparks it.
+   *****************************************************************************************/
+  private void writeLoop() {
+    List<Packet> batch = new ArrayList<>(maxBatch);
+    while (true) {
+      collectBatch(batch);
+      if (batch.isEmpty()) {
+        if (closed || Thread.interrupted()) return;
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        continue;
+      }
+      int written = batch.size();
+      inFlight = written;
+      try {
+        for (Packet packet : batch) out.writeObject(packet);
+        out.flush();
+        out.reset();
+        sent.add(written);
+      } catch (IOException e) {
+        failure = e;
+        int lost = written + control.size() + bulk.size();
+        control.clear();
+        bulk.clear();
+        failed.add(lost);
+        inFlight = 0;
+        if (!closed) Log.warn(thread.getName() + ": unable to write " + lost + " packets.", e);
+        if (failureHandler != null) failureHandler.writeFailed(lost, e);
+        return;
+      } finally {
+        batch.clear();
+      }
+      inFlight = 0;
+      if (Log.isTraceEnabled()) Log.trace(thread.getName() + ": wrote a batch of " + written + " packets.");
+    }
+  }
+
+  /* Takes up to maxBatch packets from the lanes, by turns of controlWeight and bulkWeight packets */
+  private void collectBatch(List<Packet> batch) {
+    synchronized (batchLock) {
+      while (batch.size() < maxBatch) {
+        int before = batch.size();
+        control.drainTo(batch, Math.min(controlWeight, maxBatch - batch.size()));
+        bulk.drainTo(batch, Math.min(bulkWeight, maxBatch - batch.size()));
+        if (batch.size() == before) return;
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package version2;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/*******************************************************************************************************************
+ * Exponential backoff with full jitter, used by the client to reconnect after losing the server.
+ * The delay before attempt n is drawn uniformly between 0 and min(maxMillis, baseMillis * 2^n). Because every
+ * client draws its own delay, clients dropped together by a server restart come back spread out over the window
+ * instead of all reconnecting at the same instant.
+ ******************************************************************************************************************/
+final class ReconnectPolicy {
+
+  /************************************************************************************************
+   * Data Members
+   * baseMillis:- upper bound of the delay before the first attempt
+   * maxMillis:- cap of the upper bound, however many attempts were made
+   * maxAttempts:- attempts made before giving up
+   ************************************************************************************************/
+  private final long baseMillis;
+  private final long maxMillis;
+  private final int maxAttempts;
+
+  ReconnectPolicy(long baseMillis, long maxMillis, int maxAttempts) {
+    this.baseMillis = baseMillis;
+    this.maxMillis = maxMillis;
+    this.maxAttempts = maxAttempts;
+  }
+
+  /* @param attempt number of the attempt, starting at 0 */
+  boolean shouldRetry(int attempt) {
+    return attempt < maxAttempts;
+  }
+
+  /* @param attempt number of the attempt, starting at 0 */
+  long delayMillis(int attempt) {
+    long ceiling = maxMillis;
+    if (attempt < 62 && baseMillis <= maxMillis >> Math.min(attempt, 62))
+      ceiling = Math.min(maxMillis, baseMillis << attempt);
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  int maxAttempts() {
+    return maxAttempts;
+  }
+}
@@ -0,0 +1,83 @@
+package version2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import javax.swing.AbstractListModel;
+
+
+/*******************************************************************************************************************
+ * List model of user or room ids, rendered to text on demand.
+ * Each id remembers its row, so adding, removing and refreshing one entry are O(1) and only fire an event for the
+ * rows that changed: a removed row is filled with the last row instead of shifting the rows below it, which is why
+ * the rows are in no particular order. Must only be used on the EDT.
+ ******************************************************************************************************************/
+final class RosterListModel extends AbstractListModel<String> {
+  private static final long serialVersionUID = 1L;
+
+  /************************************************************************************************
+   * Data Members
+   * ids:- the id shown on each row
+   * rows:- the row of each id
+   * renderer:- builds the text of a row from its id
+   ************************************************************************************************/
+  private final List<Integer> ids = new ArrayList<>();
+  private final Map<Integer, Integer> rows = new HashMap<>();
+  private final transient IntFunction<String> renderer;
+
+  RosterListModel(IntFunction<String> renderer) {
+    this.renderer = renderer;
+  }
+
+  @Override
+  public int getSize() {
+    return ids.size();
+  }
+
+  @Override
+  public String getElementAt(int index) {
+    return renderer.apply(ids.get(index));
+  }
+
+  /* Adds a row for the id, or refreshes it if it is already shown */
+  void put(int id) {
+    Integer row = rows.get(id);
+    if (row != null) {
+      fireContentsChanged(this, row, row);
+      return;
+    }
+    rows.put(id, ids.size());
+    ids.add(id);
+    fireIntervalAdded(this, ids.size() - 1, ids.size() - 1);
+  }
+
+  /* Refreshes the row of the id, if it is shown */
+  void changed(int id) {
+    Integer row = rows.get(id);
+    if (row != null) fireContentsChanged(this, row, row);
+  }
+
+  /* Removes the row of the id: the last row takes its place */
+  void remove(int id) {
+    Integer row = rows.remove(id);
+    if (row == null) return;
+    int last = ids.size() - 1;
+    Integer moved = ids.remove(last);
+    if (row != last) {
+      ids.set(row, moved);
+      rows.put(moved, row);
+      fireContentsChanged(this, row, row);
+    }
+    fireIntervalRemoved(this, last, last);
+  }
+
+  void clear() {
+    if (ids.isEmpty()) return;
+    int size = ids.size();
+    ids.clear();
+    rows.clear();
+    fireIntervalRemoved(this, 0, size - 1);
+  }
+}
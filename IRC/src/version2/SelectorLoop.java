@@ -0,0 +1,253 @@
+package version2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * A single thread multiplexing non-blocking sockets with a Selector, for the text protocol gateways.
+ * Each listening socket has a factory which gives every accepted connection its protocol Handler; the loop then
+ * reads into the connection's buffer and hands the bytes to the handler, and writes out whatever other threads
+ * queued on the connection. Handlers run on the loop thread, so they must never block.
+ * Other threads talk to the loop through execute(), which queues a task and wakes the selector up.
+ ******************************************************************************************************************/
+final class SelectorLoop implements Runnable {
+
+  /* A listening socket and the factory of the handlers of its connections */
+  private static final class Listener {
+    final ServerSocketChannel channel;
+    final Function<NioConnection, NioConnection.Handler> factory;
+
+    Listener(ServerSocketChannel channel, Function<NioConnection, NioConnection.Handler> factory) {
+      this.channel = channel;
+      this.factory = factory;
+    }
+  }
+
+  /************************************************************************************************
+   * Data Members
+   * metrics:- counts the bytes written to the connections
+   * readBufferSize:- size of the read buffer of each connection, which bounds the length of a line
+   * maxPendingBytes:- how much output a connection may have waiting before it is closed as too slow
+   *   (both can be changed while running: a new read buffer size applies to the next connections)
+   * tasks:- work handed to the loop by other threads
+   ************************************************************************************************/
+  final ServerMetrics metrics;
+  volatile int readBufferSize;
+  volatile int maxPendingBytes;
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+
+  SelectorLoop(String name, ServerMetrics metrics, int readBufferSize, int maxPendingBytes) throws IOException {
+    this.metrics = metrics;
+    this.readBufferSize = readBufferSize;
+    this.maxPendingBytes = maxPendingBytes;
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+
+  /*****************************************************************************************
+   * Binds a listening socket on the calling thread, so a port in use is reported at once,
+   * and registers it with the loop.
+   * @param port the port to listen on
+   * @param factory gives each accepted connection its handler, or null to refuse it
+   * @throws IOException if the port cannot be bound
+   *****************************************************************************************/
+  void listen(int port, Function<NioConnection, NioConnection.Handler> factory) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.bind(new InetSocketAddress(port), 256);
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    Listener listener = new Listener(channel, factory);
+    execute(
+        () -> {
+          try {
+            channel.register(selector, SelectionKey.OP_ACCEPT, listener);
+          } catch (IOException e) {
+            Log.error("Unable to register the listener on port " + port + ".", e);
+          }
+        });
+  }
+
+
+  /*****************************************************************************************
+   * Runs the task on the loop thread, at the end of its current turn. Tasks queued by the
+   * handlers themselves (such as the flushes of the replies to a read) run before the loop
+   * waits for the sockets again.
+   *****************************************************************************************/
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (!inLoop()) selector.wakeup();
+  }
+
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+
+  /*****************************************************************************************
+   * Closes the listening sockets, so no connection is accepted any more; the connections
+   * already open are kept.
+   *****************************************************************************************/
+  void closeListeners() {
+    execute(
+        () -> {
+          for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Listener)) continue;
+            key.cancel();
+            try {
+              ((Listener) key.attachment()).channel.close();
+            } catch (IOException e) {
+              Log.warn("Error while closing a gateway listener: " + e.getMessage());
+            }
+          }
+        });
+  }
+
+
+  /*****************************************************************************************
+   * Looks, on the loop thread, at the output the connections still have to write.
+   * @return completed at the end of the loop's current turn with {connections with output
+   *   waiting, bytes waiting}; never completed if the loop has stopped
+   *****************************************************************************************/
+  CompletableFuture<long[]> pendingOutput() {
+    CompletableFuture<long[]> result = new CompletableFuture<>();
+    execute(
+        () -> {
+          long connections = 0;
+          long bytes = 0;
+          for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof NioConnection)) continue;
+            int pending = ((NioConnection) key.attachment()).pendingBytes();
+            if (pending == 0) continue;
+            connections++;
+            bytes += pending;
+          }
+          result.complete(new long[] {connections, bytes});
+        });
+    return result;
+  }
+
+
+  /*****************************************************************************************
+   * Stops the loop, which then closes the listening sockets and every connection.
+   * @param timeoutMillis how long to wait for the loop thread to finish
+   *****************************************************************************************/
+  void stop(long timeoutMillis) {
+    running = false;
+    selector.wakeup();
+    if (inLoop()) return;
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /*****************************************************************************************
+   * Body of the loop thread.
+   *****************************************************************************************/
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        if (tasks.isEmpty()) selector.select();
+        else selector.selectNow();
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          if (!key.isValid()) continue;
+          Object attachment = key.attachment();
+          if (attachment instanceof Listener) {
+            accept((Listener) attachment);
+            continue;
+          }
+          NioConnection connection = (NioConnection) attachment;
+          if (key.isReadable()) connection.readReady();
+          if (key.isValid() && key.isWritable()) connection.flush();
+        }
+        runTasks();
+      } catch (IOException e) {
+        Log.error("Error in the selector loop.", e);
+      } catch (RuntimeException e) {
+        Log.error("Error while handling a gateway connection.", e);
+      }
+    }
+    runTasks();
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      try {
+        if (attachment instanceof Listener) ((Listener) attachment).channel.close();
+        else ((NioConnection) attachment).abort();
+      } catch (IOException | RuntimeException e) {
+        Log.warn("Error while closing a gateway socket: " + e.getMessage());
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Log.warn("Error while closing the selector: " + e.getMessage());
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Log.error("Error in a selector loop task.", e);
+      }
+    }
+  }
+
+  private void accept(Listener listener) throws IOException {
+    SocketChannel channel;
+    while ((channel = listener.channel.accept()) != null) {
+      try {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        Log.warn("Unable to set up an accepted gateway connection: " + e.getMessage());
+        channel.close();
+        continue;
+      }
+      NioConnection connection = new NioConnection(this, channel);
+      connection.handler = listener.factory.apply(connection);
+      if (connection.handler == null) {
+        channel.close();
+        continue;
+      }
+      try {
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        Log.warn("Unable to register gateway connection " + connection.remoteAddress + ": " + e.getMessage());
+        connection.abort();
+      }
+    }
+  }
+}
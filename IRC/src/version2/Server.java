@@ -5,8 +5,13 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import configurationFiles.Config;
+import logging.Log;
  
 
 /******************************************************************************************************************************************
@@ -29,26 +34,66 @@ public class Server extends JFrame implements ActionListener {
  * @implSpec threadLimit = 20 
  * @summary :- Here the maximum number of clients which can be added to server is capped at 20
  * This is by the virtue of the number of threads being created by the server.
+ * The cap can be changed with the irc.server.threads setting (for example for the LoadGenerator tool), also while the
+ * server is running: lowering it disconnects nobody, new users wait until a session thread is free.
+ * The settings are read through configurationFiles.Config (command line, system properties, environment or irc.properties);
+ * the ones watched in watchSettings() are applied while the server runs when irc.properties changes.
  * The other variables include:- 
- * connectionListener :- This will keep the server in an infinite loop listening for new clients
- * serverSocket pool :- This is used for managing the server thread pool properly by using synchronize keyword 
+ * serverSockets / pool / acceptors:- The listening sockets, and the ConnectionListener threads blocked in accept() on them
+ *   (irc.server.acceptors of them, 1 by default). With irc.server.reusePort each listener binds its own socket with
+ *   SO_REUSEPORT, so the kernel spreads the connections over them; otherwise they share one socket.
+ *   The backlog of each socket is irc.server.backlog (256 by default)
+ * handshakePool:- Sets up the accepted connections (id, streams, session), so the listeners go back to accept() at once
+ *   (irc.server.handshakeThreads threads, 8 by default)
+ * handshaking / maxHandshakes:- The connections accepted whose user has not joined yet (stream header not read, waiting
+ *   for a session thread, or not sent joinServer yet), counted apart from the live sessions. Past irc.server.maxHandshakes
+ *   of them (256 by default), new connections are closed at once
+ * handshakeTimeoutMillis:- The time a connection has to send its stream header, and then its user has to join once its
+ *   session thread runs (irc.server.handshakeTimeoutMillis, 10000 by default), before it is closed
+ * handshakesTimedOut / handshakesRefused:- Connections closed by the deadline or by the limit, reported as gauges
+ * idleTimeoutMillis:- Once joined, the time a Swing client may send nothing (its pings included) before its connection
+ *   is taken for dead and closed, which frees its user-name (irc.server.idleTimeoutMillis, 90000 by default, 0 for
+ *   never; applied to the users joining next)
+ * openSockets:- Every connection accepted and not closed yet, handshaking or live, for the shutdown to close them
+ * sessionPool:- The threads running the ServerThreads, resized when irc.server.threads changes
  * serverHosted:- tells the number (id) of the server on which the client is being hosted
  * shutdown:- For shutdown purposes
- * threadCount:- For keeping a count on the number of threads
- * roomCount:- For keeping a count on the number of rooms
- * threadMap:- Keeps the threads and their states stored in a Map. This is then used for mapping of user id #s to ServerThreads
- * roomMap:- Stores the rooms and their states stored in a Map. This is then used for mapping of room id #s to ServerRooms
+ * engine:- Holds the users and rooms and handles their packets. A fresh engine is created each time the server is started
+ * metrics:- Counters and latency histograms for the packets handled by the server (see the @metrics command)
+ * metricsDumpSeconds:- Interval at which the metrics report is periodically printed (irc.metrics.dumpSeconds)
+ * metricsEndpoint:- Local HTTP listener serving /metrics and /health, on the chat port + metricsPortOffset
+ * gatewayLoop:- Selector thread of the text protocol gateways: IRC clients connect on the chat port + ircPortOffset,
+ *   browsers on the chat port + webSocketPortOffset (settings: irc.gateways lists the gateways started, irc.gateway.name,
+ *   and irc.gateway.readBuffer, maxPendingBytes and maxMessageBytes, which can be changed while running)
+ * webSocketGateway:- The WebSocket gateway, kept to apply a new irc.gateway.maxMessageBytes
+ * stateSnapshotter:- Saves the rooms and their members under irc.state.dir and puts them back at the next start
+ *   (null when irc.state.dir is empty, or the directory cannot be written)
  *******************************************************************************************************************************************/
-  private int threadLimit = 20;
-  private ConnectionListener connectionListener;
-  private ServerSocket serverSocket;
+  private volatile int threadLimit = Math.max(1, Config.getInt("irc.server.threads", 20));
+  private volatile ThreadPoolExecutor sessionPool;
+  private volatile ServerSocket[] serverSockets;
   private ExecutorService pool;
-  private boolean serverHosted;
-  private boolean shutdown;
-  private int threadCount;
-  private int roomCount;
-  private Map<Integer, ServerThread> threadMap;
-  private Map<Integer, ServerRoom> roomMap;
+  private int acceptors;
+  private ExecutorService handshakePool;
+  private final AtomicInteger handshaking = new AtomicInteger();
+  private volatile int maxHandshakes = Math.max(1, Config.getInt("irc.server.maxHandshakes", 256));
+  private volatile int handshakeTimeoutMillis = Math.max(100, Config.getInt("irc.server.handshakeTimeoutMillis", 10000));
+  private volatile int idleTimeoutMillis = Math.max(0, Config.getInt("irc.server.idleTimeoutMillis", 90000));
+  private final LongAdder handshakesTimedOut = new LongAdder();
+  private final LongAdder handshakesRefused = new LongAdder();
+  private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+  private volatile boolean serverHosted;
+  private volatile boolean shutdown;
+  private volatile ChatEngine engine;
+  private ServerMetrics metrics;
+  private long metricsDumpSeconds = Config.getLong("irc.metrics.dumpSeconds", 60);
+  private int metricsPortOffset = 1;
+  private MetricsEndpoint metricsEndpoint;
+  private int ircPortOffset = 2;
+  private int webSocketPortOffset = 3;
+  private volatile SelectorLoop gatewayLoop;
+  private volatile WebSocketGateway webSocketGateway;
+  private StateSnapshotter stateSnapshotter;
   
 
 /*************************************************************************************************************************************
@@ -73,64 +118,166 @@ public class Server extends JFrame implements ActionListener {
    *********************************************************************************************************************************************/
   private Server() {
     super("IRC Server");
-    System.out.println("Starting up server application...");
+    Log.configure("server");
+    Log.info("Starting up server application...");
+    watchSettings();
     serverGUISetup();
     loginMenu = new LoginMenu();
     loginMenu.setVisible(true);
-    System.out.println("Success! Server application started.");
+    Log.info("Success! Server application started.");
+  }
+
+
+  /******************************************************************************************************
+   * Applies the log settings, and registers the settings which can be changed while the server runs:
+   * the log level, the session thread count, the handshake limits, the rate limit and the gateway buffer sizes. Each listener
+   * applies the new value to the server currently hosted, if any; the others are read at hosting.
+   *****************************************************************************************************/
+  private void watchSettings() {
+    Log.setLevel(Log.parseLevel(Config.get("irc.log.level", null), Log.getLevel()));
+    Log.setConsole(Config.getBoolean("irc.log.console", true));
+    Config.watch("irc.log.level", () -> Log.setLevel(Log.parseLevel(Config.get("irc.log.level", null), Log.Level.INFO)));
+    Config.watch("irc.server.threads", this::applyThreadLimit);
+    Config.watch("irc.server.maxHandshakes", this::applyHandshakeSettings);
+    Config.watch("irc.server.handshakeTimeoutMillis", this::applyHandshakeSettings);
+    Config.watch("irc.server.idleTimeoutMillis", this::applyHandshakeSettings);
+    Config.watch("irc.server.rateLimit", this::applyRateLimit);
+    Config.watch("irc.server.rateBurst", this::applyRateLimit);
+    Config.watch("irc.server.fanOutThreshold", this::applyFanOut);
+    Config.watch("irc.server.fanOutChunk", this::applyFanOut);
+    Config.watch("irc.server.roomWindow", this::applyRoomWindow);
+    Config.watch("irc.server.rosterPush", this::applyRoster);
+    Config.watch("irc.server.listPageSize", this::applyRoster);
+    Config.watch("irc.gateway.readBuffer", this::applyGatewaySettings);
+    Config.watch("irc.gateway.maxPendingBytes", this::applyGatewaySettings);
+    Config.watch("irc.gateway.maxMessageBytes", this::applyGatewaySettings);
+  }
+
+  private void applyThreadLimit() {
+    threadLimit = Math.max(1, Config.getInt("irc.server.threads", 20));
+    ThreadPoolExecutor pool = sessionPool;
+    if (pool == null) return;
+    // the core size can never exceed the maximum size, so the order depends on the direction
+    if (threadLimit > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threadLimit);
+      pool.setCorePoolSize(threadLimit);
+    } else {
+      pool.setCorePoolSize(threadLimit);
+      pool.setMaximumPoolSize(threadLimit);
+    }
+    Log.info("Session threads set to " + threadLimit + ".");
+  }
+
+  private void applyHandshakeSettings() {
+    maxHandshakes = Math.max(1, Config.getInt("irc.server.maxHandshakes", 256));
+    handshakeTimeoutMillis = Math.max(100, Config.getInt("irc.server.handshakeTimeoutMillis", 10000));
+    idleTimeoutMillis = Math.max(0, Config.getInt("irc.server.idleTimeoutMillis", 90000));
+  }
+
+  /* Per user: irc.server.rateLimit commands per second (0 for no limit), in bursts of up to irc.server.rateBurst */
+  private void applyRateLimit() {
+    ChatEngine engine = this.engine;
+    if (engine == null) return;
+    engine.setRateLimit(Config.getDouble("irc.server.rateLimit", 0), Config.getInt("irc.server.rateBurst", 20));
+  }
+
+  private void applyFanOut() {
+    ChatEngine engine = this.engine;
+    if (engine == null) return;
+    engine.setFanOut(Config.getInt("irc.server.fanOutThreshold", 1024), Config.getInt("irc.server.fanOutChunk", 256));
+  }
+
+  private void applyRoomWindow() {
+    ChatEngine engine = this.engine;
+    if (engine == null) return;
+    engine.setRoomWindow(Config.getInt("irc.server.roomWindow", 256));
+  }
+
+  private void applyRoster() {
+    ChatEngine engine = this.engine;
+    if (engine == null) return;
+    engine.setRoster(Config.getBoolean("irc.server.rosterPush", true), Config.getInt("irc.server.listPageSize", 100));
+  }
+
+  private void applyGatewaySettings() {
+    SelectorLoop loop = gatewayLoop;
+    if (loop != null) {
+      loop.readBufferSize = gatewayReadBuffer();
+      loop.maxPendingBytes = gatewayMaxPendingBytes();
+    }
+    WebSocketGateway webSocket = webSocketGateway;
+    if (webSocket != null) webSocket.maxMessageBytes = Config.getInt("irc.gateway.maxMessageBytes", 65536);
+  }
+
+  private static int gatewayReadBuffer() {
+    return Math.max(512, Config.getInt("irc.gateway.readBuffer", 8192));
+  }
+
+  private static int gatewayMaxPendingBytes() {
+    return Math.max(4096, Config.getInt("irc.gateway.maxPendingBytes", 1 << 20));
   }
 
   
   /******************************************************************************************************
    * If a user closes the application window, this method will be called to shut down the server.
-   * @stopServer() method is used to close the infinite loop listening for incoming connection requests
+   * @stopServer() method is used to close the infinite loop listening for incoming connection requests,
+   * and returns once the server is down (within irc.server.shutdownMillis)
    *****************************************************************************************************/
   private void closeServerApplication() {
-    System.out.println("Closing server application...");
-    if (serverHosted) {
-      stopServer(); 
-      while (serverHosted) {
-        try {
-          Thread.sleep(1000);
-          System.out.print(".");
-        } catch (Exception e) {
-          System.out.println("Some exception has occured during shutting the server down. EXITING THE APPLICATION");
-          System.exit(1);
-        }
-      }
-      System.out.println();
-    }
-    System.out.println("See ya next time!");
+    Log.info("Closing server application...");
+    if (serverHosted) stopServer();
+    Log.info("See ya next time!");
     System.exit(0);
   }
 
   
   /**************************************************************************************************************************************************
    * Initializes the server to a clean state with the following attributes:
-   * 1) A functioning socket that can listen for incoming client connections 
-   * 2) A fresh thread pool-> Additionally, the GUI context will be switched from Login to Running.
-   * 3) ThreadLimit is used here to limit the number of threads using the Executors.newFixedThreadPool(Integer)
+   * 1) Functioning sockets that can listen for incoming client connections (see openServerSockets)
+   * 2) Fresh thread pools for the connection listeners, the handshakes and the sessions.
+   *    Additionally, the GUI context will be switched from Login to Running.
+   * 3) ThreadLimit is used here to limit the number of session threads using the Executors.newFixedThreadPool(Integer)
    * 4) resetChatGUI() - resetting the fields in the server GUI window to zero/ default values if assigned.
    * 5) setVisible() - for determining when to show the chat window
    * 6) loginMenu.setVisible(false) :- for determining when to hide the server opening window after a server connection has been established
    **************************************************************************************************************************************************/
   private boolean startServer(int port, String username) {
-    System.out.println("Attempting to host server...");
+    Log.info("Attempting to host server...");
     hostname = username;
     shutdown = false;
-    threadCount = 0;
-    roomCount = 0;
-    threadMap = new HashMap<>();
-    roomMap = new HashMap<>();
+    metrics = new ServerMetrics();
+    engine = new ChatEngine(metrics, new GUIView());
+    applyRateLimit();
+    applyFanOut();
+    applyRoomWindow();
+    applyRoster();
+    acceptors = Math.max(1, Config.getInt("irc.server.acceptors", 1));
     try {
-      serverSocket = new ServerSocket(port);
-      serverSocket.setSoTimeout(1000);
+      serverSockets = openServerSockets(port, acceptors);
     } catch (Exception e) {
-      e.printStackTrace();
+      Log.error("Unable to host server on port " + port + ".", e);
       return false;
     }
-    pool = Executors.newFixedThreadPool(threadLimit); 
-    System.out.println("Success! Server now hosted on port " + port + ".");
+    startStateSnapshots();
+    pool = Executors.newFixedThreadPool(acceptors, named("connection-listener"));
+    handshakePool =
+        Executors.newFixedThreadPool(Math.max(1, Config.getInt("irc.server.handshakeThreads", 8)), named("handshake"));
+    ThreadPoolExecutor sessions = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadLimit);
+    sessionPool = sessions;
+    metrics.registerGauge("sessionPool.active", sessions::getActiveCount);
+    metrics.registerGauge("sessionPool.queued", () -> sessions.getQueue().size());
+    metrics.registerGauge("sessionPool.max", sessions::getMaximumPoolSize);
+    handshaking.set(0);
+    handshakesTimedOut.reset();
+    handshakesRefused.reset();
+    metrics.registerGauge("handshakes.pending", handshaking::get);
+    metrics.registerGauge("handshakes.timedOut", handshakesTimedOut::sum);
+    metrics.registerGauge("handshakes.refused", handshakesRefused::sum);
+    metrics.start(metricsDumpSeconds, () -> Log.info(engine.metricsReport()));
+    engine.startRoomSummaries(Config.getLong("irc.server.roomSummaryMillis", 1000));
+    startMetricsEndpoint(port + metricsPortOffset);
+    startGateways(port);
+    Log.info("Success! Server now hosted on port " + port + ".");
     serverHosted = true;
     resetChatGUI(); 
     setVisible(true);
@@ -140,336 +287,275 @@ public class Server extends JFrame implements ActionListener {
 
   
   /****************************************************************************************************************************
-   * Once the server is started, a connection listener is executed to listen to incoming connection requests from the client.
+   * Puts the rooms saved under irc.state.dir back in the fresh engine, before the listeners take connections, then keeps
+   * saving them: a snapshot every irc.state.snapshotSeconds (60) and the changes in between appended to a journal every
+   * irc.state.journalMillis (200). The members of the restored rooms are awaited for irc.state.rejoinSeconds (600).
+   * An empty irc.state.dir turns this off; if the directory cannot be written the server runs without it.
    ****************************************************************************************************************************/
-  private void runConnectionListener() {
-    connectionListener = new ConnectionListener();
-    pool.execute(connectionListener);
-  }
-
-  
-  /*********************************************************************************************************
-   * Sets shutdown to true, thus exiting the infinite incoming connection loop and stopping the server.
-   *********************************************************************************************************/
-  private void stopServer() {
-    System.out.println("Stopping server...");
-    Packet packet = new Packet();
-    packet.shutdown();
-    sendPacketAll(packet);
-    shutdown = true;
-  }
-
-  
-  /********************************************************************************************************************
-   * Once the server is shut down, all fields are GUI properties are reset to their original state, or null values.
-   *******************************************************************************************************************/
-  private void serverShutdownCleanup() {
+  private void startStateSnapshots() {
+    String dir = Config.get("irc.state.dir", "state").trim();
+    if (dir.isEmpty()) return;
+    StateSnapshotter snapshotter = new StateSnapshotter(engine, Paths.get(dir));
+    snapshotter.restore();
     try {
-      threadMap = null;
-      roomMap = null;
-      pool.shutdown();
-      pool = null;
-      connectionListener = null;
-      serverSocket.close();
-      serverSocket = null;
-    } catch (Exception e) {
-      e.printStackTrace();
+      snapshotter.start(
+          Config.getLong("irc.state.snapshotSeconds", 60),
+          Config.getLong("irc.state.journalMillis", 200),
+          Config.getLong("irc.state.rejoinSeconds", 600));
+    } catch (IOException e) {
+      Log.warn("Unable to save the rooms in " + dir + ", they will not be kept across restarts: " + e);
+      snapshotter.stop(0);
+      return;
     }
-    serverHosted = false;
-    loginMenu.resetLoginGUI();
-    setVisible(false);
-    loginMenu.setVisible(true);
+    engine.setJournal(snapshotter);
+    stateSnapshotter = snapshotter;
   }
 
-  
-  /*********************************************************************************************************************
-   * Takes a packet from a specified client and determines what action to take given the packet's command value.
-   * @param packet packet containing data from the client
-   * @param senderid id number corresponding to the client that sent the packet
-   **********************************************************************************************************************/
-  private void packetHandler(Packet packet, int senderid) {
-    String command = packet.command;
-    switch (command) {
-      case "joinServer":
-        joinServer(senderid, packet.message);
-        break;
-      case "leaveServer":
-        disconnectClient(senderid);
-      case "sendMessageAll":
-        sendMessageAll(senderid, packet.message);
-        break;
-      case "sendMessageUser":
-        sendMessageUser(senderid, packet.targetid, packet.message);
-        break;
-      case "sendMessageRoom":
-        sendMessageRoom(senderid, packet.targetid, packet.message);
-        break;
-      case "createRoom":
-        createRoom(senderid, packet.message);
-        break;
-      case "joinRoom":
-        joinRoom(senderid, packet.targetid);
-        break;
-      case "leaveRoom":
-        leaveRoom(senderid, packet.targetid);
-        break;
-      default:
-        // TODO - error handling
-    }
-  }
 
   /****************************************************************************************************************************
-   * When a client connects to the server, or disconnects from the server, the user list is updated to reflect this change.
+   * Binds the listening sockets. With irc.server.reusePort, every listener gets its own socket bound with SO_REUSEPORT
+   * (where the platform supports it), otherwise one socket is shared by all the listeners.
+   * @param port the chat port
+   * @param acceptors the number of ConnectionListeners
+   * @return the sockets, at least one
+   * @throws IOException if the port cannot be bound
    ****************************************************************************************************************************/
-  private void userUpdate() {
-    StringBuilder sb = new StringBuilder();
-    sb.append(threadMap.size()).append(" USERS\n");
-    for (Map.Entry<Integer, ServerThread> entry : threadMap.entrySet())
-      sb.append("\n# ").append(entry.getKey()).append(" ").append(entry.getValue().username);
-    userDisplay.setText(sb.toString());
-    Packet packet = new Packet();
-    packet.userUpdate(sb.toString());
-    sendPacketAll(packet);
+  private ServerSocket[] openServerSockets(int port, int acceptors) throws IOException {
+    int backlog = Math.max(1, Config.getInt("irc.server.backlog", 256));
+    boolean reusePort = Config.getBoolean("irc.server.reusePort", false);
+    if (reusePort) {
+      try (ServerSocket probe = new ServerSocket()) {
+        if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+          Log.warn("SO_REUSEPORT is not supported here, the connection listeners share one socket.");
+          reusePort = false;
+        }
+      }
+    }
+    ServerSocket[] sockets = new ServerSocket[reusePort ? acceptors : 1];
+    try {
+      for (int i = 0; i < sockets.length; i++) {
+        sockets[i] = new ServerSocket();
+        if (reusePort) sockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        sockets[i].bind(new InetSocketAddress(port), backlog);
+      }
+    } catch (IOException e) {
+      closeServerSockets(sockets);
+      throw e;
+    }
+    return sockets;
   }
 
-  
-  /**********************************************************************************************************
-   * When a room is created, or is removed (this occurs when all users have disconnected from a
-   * particular room), the room list is updated to reflect this change.
-   **********************************************************************************************************/
-  private void roomUpdate() {
-    StringBuilder sb = new StringBuilder();
-    sb.append(" ROOMS\n");
-    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet()) {
-      if (entry.getValue().members.isEmpty()) {
-        roomMap.remove(entry.getKey());
-        continue;
+  private static void closeServerSockets(ServerSocket[] sockets) {
+    if (sockets == null) return;
+    for (ServerSocket socket : sockets) {
+      try {
+        if (socket != null) socket.close();
+      } catch (IOException e) {
+        Log.warn("Unable to close a listening socket: " + e.getMessage());
       }
-      sb.append("\n# ").append(entry.getKey()).append(" ").append(entry.getValue().roomName);
-      for (Integer i : entry.getValue().members)
-        sb.append("\n   # ").append(i).append(" ").append(threadMap.get(i).username);
     }
-    roomDisplay.setText(sb.toString());
-    Packet packet = new Packet();
-    packet.roomUpdate(roomMap.size() + sb.toString());
-    sendPacketAll(packet);
   }
 
-  
-  /***************************************************************************************************
-   * Sends the packet containing data from the client to every connected user. 
-   * The threadMap contains every user id, which corresponds to the server thread count.
-   * @param packet packet containing data from the client
-   ***************************************************************************************************/
-  private void sendPacketAll(Packet packet) {
-    for (Map.Entry<Integer, ServerThread> entry : threadMap.entrySet())
-      entry.getValue().sendPacket(packet);
+  /* @return a thread factory naming the threads prefix-1, prefix-2... */
+  private static ThreadFactory named(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> new Thread(r, prefix + "-" + count.incrementAndGet());
   }
 
-  
-  /******************************************************************************************************************
-   * Once a new client has connected to the server, the user id and user-name is stored, status
-   * messages are displayed to the user, and the user list and room list is updated to account for the new client.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param username the user-name entered by the client upon connecting to the server
-   *****************************************************************************************************************/
-  private void joinServer(int senderid, String username) {
-    displayToUser("System: User # " + senderid + " has joined the chat as " + username + ".");
-    ServerThread serverThread = threadMap.get(senderid);
-    serverThread.username = username;
-    Packet packet = new Packet();
-    packet.joinServer(
-        "System: Welcome to the server, " + username + "! Your user id # is " + senderid + ".");
-    serverThread.sendPacket(packet);
-    userUpdate();
-    roomUpdate();
-  }
 
-  
-  /**************************************************************************************************************
-   * Once a client disconnects from the server, the user id and user-name is removed, status messages ./n
-   * are displayed to the user, and the user list and room list is updated to account for the change.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   *************************************************************************************************************/
-  private void disconnectClient(int senderid) {
-    ServerThread serverThread = threadMap.get(senderid);
-    threadMap.remove(senderid);
-    displayToUser(
-        "System: User # " + senderid + " (" + serverThread.username + ") has left the chat.");
-    serverThread.shutdownThread = true;
-    for (Map.Entry<Integer, ServerRoom> entry : roomMap.entrySet())
-      entry.getValue().removeUser(senderid);
-    userUpdate();
-    roomUpdate();
+  /****************************************************************************************************************************
+   * Starts the local HTTP metrics and health endpoint. The server keeps running without it if the port cannot be bound.
+   * The engine is captured here so that a scrape racing with serverShutdownCleanup() never sees it as null.
+   * @param port the port number the endpoint listens on (localhost only)
+   ****************************************************************************************************************************/
+  private void startMetricsEndpoint(int port) {
+    Map<Integer, ServerSession> users = engine.threadMap;
+    Map<Integer, ServerRoom> rooms = engine.roomMap;
+    try {
+      metricsEndpoint =
+          new MetricsEndpoint(port, metrics, users::size, () -> rooms, () -> serverHosted && !shutdown);
+      metricsEndpoint.start();
+      Log.info("Metrics available at http://localhost:" + port + "/metrics");
+    } catch (Exception e) {
+      Log.warn("Unable to start the metrics endpoint on port " + port + ": " + e.getMessage());
+      metricsEndpoint = null;
+    }
   }
 
-  
-  /**********************************************************************************************************************
-   * Broadcasts a message to all connected users. This is the default behavior when text is entered without a command.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param message the text the client entered to send to all connected users
-   *********************************************************************************************************************/
-  private void sendMessageAll(int senderid, String message) {
-    Packet packet = new Packet();
-    String output = threadMap.get(senderid).username + " (# " + senderid + "): " + message;
-    displayToUser(output);
-    packet.displayToUser(output);
-    sendPacketAll(packet);
-  }
 
-  
-  /*******************************************************************************************************************************************
-   * Sends a message from the client (sender-id) to another user (target-id).
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param targetid the unique identification number corresponding to the target client (recipient) of the client's intended action)
-   * @param message the text the client entered to send to a specific user
-   ******************************************************************************************************************************************/
-  private void sendMessageUser(int senderid, int targetid, String message) {
-    ServerThread serverThread = threadMap.get(targetid);
-    if (serverThread == null) {
-      sendError(senderid, "System: User id # " + targetid + " not found.");
+  /****************************************************************************************************************************
+   * Starts the selector loop of the text protocol gateways, with the gateways listed in irc.gateways (irc and websocket
+   * by default). The server keeps running without a gateway whose port cannot be bound.
+   * @param port the chat port, to which the gateway port offsets are added
+   ****************************************************************************************************************************/
+  private void startGateways(int port) {
+    java.util.List<String> gateways = Config.getList("irc.gateways", "irc,websocket");
+    if (gateways.isEmpty()) return;
+    try {
+      gatewayLoop = new SelectorLoop("gateway-loop", metrics, gatewayReadBuffer(), gatewayMaxPendingBytes());
+    } catch (IOException e) {
+      Log.warn("Unable to start the gateways: " + e.getMessage());
+      gatewayLoop = null;
       return;
     }
-    String output = threadMap.get(senderid).username + " (# " + senderid + "): " + message;
-    displayToUser(output);
-    Packet packet = new Packet();
-    packet.displayToUser(output);
-    serverThread.sendPacket(packet);
-    threadMap.get(senderid).sendPacket(packet);
+    if (gateways.contains("irc")) startIrcGateway(port + ircPortOffset);
+    if (gateways.contains("websocket")) startWebSocketGateway(port + webSocketPortOffset);
+    gatewayLoop.start();
   }
 
-  
-  /**************************************************************************************************************
-   * Sends a message from the client (sender-id) to all connected users in a particular room (target-id).
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param targetid the unique identification number corresponding to a particular room
-   * @param message the text the client entered to send to users connected to a particular room
-   *************************************************************************************************************/
-  private void sendMessageRoom(int senderid, int targetid, String message) {
-    ServerRoom serverRoom = roomMap.get(targetid);
-    if (serverRoom == null) {
-      sendError(senderid, "System: Room id # " + targetid + " not found.");
-      return;
+  private void startIrcGateway(int ircPort) {
+    try {
+      IrcGateway irc = new IrcGateway(engine, gatewayLoop, Config.get("irc.gateway.name", "version2"));
+      irc.listen(ircPort);
+      metrics.registerGauge("gateway.irc.connections", irc::connections);
+      Log.info("IRC clients can connect on port " + ircPort + ".");
+    } catch (IOException e) {
+      Log.warn("Unable to start the IRC gateway on port " + ircPort + ": " + e.getMessage());
     }
-    if (!serverRoom.members.contains(senderid)) {
-      StringBuilder sb = new StringBuilder();
-      sb.append("System: You are not a member of room '").append(serverRoom.roomName);
-      sb.append("' (id # ").append(targetid).append("). ");
-      sb.append(" You cannot send a message to a room you aren't in.");
-      sendError(senderid, sb.toString());
-      return;
+  }
+
+  private void startWebSocketGateway(int webSocketPort) {
+    try {
+      WebSocketGateway webSocket =
+          new WebSocketGateway(engine, gatewayLoop, Config.getInt("irc.gateway.maxMessageBytes", 65536));
+      webSocket.listen(webSocketPort);
+      webSocketGateway = webSocket;
+      metrics.registerGauge("gateway.websocket.connections", webSocket::connections);
+      Log.info("WebSocket clients can connect on ws://<host>:" + webSocketPort + "/");
+    } catch (IOException e) {
+      Log.warn("Unable to start the WebSocket gateway on port " + webSocketPort + ": " + e.getMessage());
     }
-    String output = threadMap.get(senderid).username + " (# " + senderid + "): : " + message;
-    displayToUser(output);
-    Packet packet = new Packet();
-    packet.displayToUser(output);
-    for (Integer i : serverRoom.members) threadMap.get(i).sendPacket(packet);
+  }
+
+
+  /****************************************************************************************************************************
+   * Once the server is started, the connection listeners are executed to listen to incoming connection requests from the
+   * clients, spread over the listening sockets.
+   ****************************************************************************************************************************/
+  private void runConnectionListener() {
+    ServerSocket[] sockets = serverSockets;
+    for (int i = 0; i < acceptors; i++) pool.execute(new ConnectionListener(sockets[i % sockets.length]));
   }
 
   
-  /**************************************************************************************************************
-   * Creates a new virtual room, with the room name specified by the client.
-   * Once the room is created, the client automatically joins the room. 
-   * The room list is updated accordingly.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param roomName the room name the client entered
-   *************************************************************************************************************/
-  private void createRoom(int senderid, String roomName) {
-    ServerRoom serverRoom = new ServerRoom(senderid, roomName);
-    ++roomCount;
-    roomMap.put(roomCount, serverRoom);
-    roomUpdate();
-    Packet packet = new Packet();
-    packet.displayToUser(
-        "System: Room '"
-            + roomName
-            + "' has been created under id # "
-            + roomCount
-            + " with you in it.");
-    threadMap.get(senderid).sendPacket(packet);
-  }
-
-  /**************************************************************************************************************
-   * A client (sender-id) may join a specific room (target-id), which will allow them to send and
-   * receive messages to/from users connected to that room. 
-   * The room list is updated to reflect the new user who joined.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param targetid the unique identification number corresponding to a particular room
-   *************************************************************************************************************/
-  private void joinRoom(int senderid, int targetid) {
-    ServerRoom serverRoom = roomMap.get(targetid);
-    if (serverRoom == null) {
-      sendError(senderid, "System: Room id # " + targetid + " not found.");
-      return;
-    }
-    if (serverRoom.members.contains(senderid)) {
-      sendError(
-          senderid,
-          "System: You are already a member of room '"
-              + serverRoom.roomName
-              + "' (id # "
-              + targetid
-              + ").");
-      return;
+  /*********************************************************************************************************
+   * Stops the server within irc.server.shutdownMillis (1000 by default), paced by a ShutdownCoordinator:
+   * 1) Intake stops: shutdown is set and the listening sockets are closed, which wakes the connection
+   *    listeners blocked in accept() up, thus exiting the infinite incoming connection loop. Pending
+   *    handshakes are abandoned. The rooms are saved one last time, before the users are disconnected.
+   * 2) Drain, for up to half the budget: every user is sent the shutdown packet, in parallel, and the
+   *    session writers and gateway connections are given the time to write out what they have queued (the
+   *    shutdown packet travels in the control lane, ahead of the queued chat).
+   * 3) Close: the remaining sockets are closed in parallel, which ends the ServerThreads blocked in
+   *    readObject, and the threads are waited for until the end of the budget.
+   * What could not be delivered or stopped in time is logged, then the server is cleaned up.
+   *********************************************************************************************************/
+  private void stopServer() {
+    if (!serverHosted || shutdown) return;
+    Log.info("Stopping server...");
+    ShutdownCoordinator coordinator =
+        new ShutdownCoordinator(Math.max(10, Config.getLong("irc.server.shutdownMillis", 1000)), 16);
+    ChatEngine engine = this.engine;
+    SelectorLoop loop = gatewayLoop;
+
+    // 1) stop intake
+    shutdown = true;
+    closeServerSockets(serverSockets);
+    pool.shutdown();
+    handshakePool.shutdownNow();
+    if (loop != null) loop.closeListeners();
+    if (stateSnapshotter != null) {
+      stateSnapshotter.stop(TimeUnit.NANOSECONDS.toMillis(coordinator.drainDeadline() - System.nanoTime()) / 2);
+      engine.setJournal(StateJournal.NONE);
     }
-    serverRoom.members.add(senderid);
-    roomUpdate();
+
+    // 2) drain
     Packet packet = new Packet();
-    packet.displayToUser(
-        "System: You have joined room '" + serverRoom.roomName + "' with id # " + roomCount + ".");
-    threadMap.get(senderid).sendPacket(packet);
+    packet.shutdown();
+    int late = coordinator.forEach(engine.threadMap.values(), session -> session.sendPacket(packet),
+        coordinator.drainDeadline());
+    if (late > 0) coordinator.dropped("shutdown notice: " + late + " users did not take it in time");
+    java.util.List<ServerThread> threads = new ArrayList<>();
+    for (ServerSession session : engine.threadMap.values())
+      if (session instanceof ServerThread) threads.add((ServerThread) session);
+    long[] pending = loop == null ? new long[] {0, 0} : pendingOutput(loop, coordinator.drainDeadline());
+    while ((pending[1] != 0 || unsentPackets(threads) > 0) && System.nanoTime() < coordinator.drainDeadline()) {
+      sleepQuietly(5);
+      if (loop != null) pending = pendingOutput(loop, coordinator.drainDeadline());
+    }
+
+    // 3) close
+    LongAdder unsent = new LongAdder();
+    int stuck = coordinator.forEach(threads, thread -> unsent.add(thread.abandon()), coordinator.deadline());
+    stuck += coordinator.forEach(openSockets, Server::closeQuietly, coordinator.deadline());
+    if (stuck > 0) coordinator.dropped("sockets: " + stuck + " could not be closed in time");
+    if (unsent.sum() > 0) coordinator.dropped("sessions: " + unsent.sum() + " packets unwritten");
+    if (pending[1] > 0)
+      coordinator.dropped("gateways: " + pending[1] + " bytes unwritten on " + pending[0] + " connections");
+    else if (pending[1] < 0) coordinator.dropped("gateways: the selector loop did not answer, output unknown");
+    long left = TimeUnit.NANOSECONDS.toMillis(coordinator.deadline() - System.nanoTime());
+    if (loop != null) loop.stop(Math.max(1, left));
+    ThreadPoolExecutor sessions = sessionPool;
+    sessions.shutdownNow();
+    if (!coordinator.awaitTermination(sessions, coordinator.deadline()))
+      coordinator.dropped("session threads: " + sessions.getActiveCount() + " still running");
+    if (!coordinator.awaitTermination(pool, coordinator.deadline()))
+      coordinator.dropped("connection listeners: still running");
+
+    serverShutdownCleanup();
+    for (String line : coordinator.finish()) Log.info(line);
   }
 
-  
-  /******************************************************************************************************************************************************************
-   * A client (sender-id) may leave a specific room (target-id), which will disable them from sending and receiving messages to/from users connected to that room. 
-   * The room list is updated to remove the user who left. Once all users have disconnected from a room, the room is destroyed.
-   * @param senderid the unique identification number corresponding to the client that performed the action
-   * @param targetid the unique identification number corresponding to a particular room
-   ******************************************************************************************************************************************************************/
-  private void leaveRoom(int senderid, int targetid) {
-    ServerRoom serverRoom = roomMap.get(targetid);
-    if (serverRoom == null) {
-      sendError(senderid, "System: Room id # " + targetid + " not found.");
-      return;
-    }
-    if (!serverRoom.members.contains(senderid)) {
-      sendError(
-          senderid,
-          "System: You are not a member of room '"
-              + serverRoom.roomName
-              + "' (id # "
-              + targetid
-              + ").");
-      return;
+  private static long unsentPackets(java.util.List<ServerThread> threads) {
+    long packets = 0;
+    for (ServerThread thread : threads) packets += thread.writer.pending();
+    return packets;
+  }
+
+  /* @return {connections, bytes} of gateway output waiting, or {-1, -1} if the loop did not answer in time */
+  private static long[] pendingOutput(SelectorLoop loop, long until) {
+    try {
+      return loop.pendingOutput().get(Math.max(1, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException | ExecutionException e) {
+      return new long[] {-1, -1};
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new long[] {-1, -1};
     }
-    String roomName = serverRoom.roomName;
-    serverRoom.removeUser(senderid);
-    roomUpdate();
-    Packet packet = new Packet();
-    packet.displayToUser(
-        "System: You have left room '" + roomName + "' with id # " + targetid + ".");
-    threadMap.get(senderid).sendPacket(packet);
   }
 
   
-  /**************************************************************************************************************
-   * Graceful error handling, particularly useful in the event that a target user is not found.
-   * @param targetid the unique identification number corresponding to the target client
-   * @param message the text to display to the client
-   *************************************************************************************************************/
-  private void sendError(int targetid, String message) {
-    ServerThread serverThread = threadMap.get(targetid);
-    if (serverThread == null) {
-      System.out.println(
-          "Attempted to send error packet to id # "
-              + targetid
-              + ", but was not found in threadMap.");
-      return;
+  /********************************************************************************************************************
+   * Once the server is shut down, all fields are GUI properties are reset to their original state, or null values.
+   *******************************************************************************************************************/
+  private void serverShutdownCleanup() {
+    try {
+      metrics.stop();
+      if (engine != null) engine.stopRoomSummaries();
+      if (stateSnapshotter != null) stateSnapshotter.stop(0);
+      stateSnapshotter = null;
+      if (metricsEndpoint != null) metricsEndpoint.stop();
+      metricsEndpoint = null;
+      if (gatewayLoop != null) gatewayLoop.stop(0);
+      gatewayLoop = null;
+      webSocketGateway = null;
+      engine = null;
+      pool.shutdown();
+      pool = null;
+      handshakePool.shutdownNow();
+      handshakePool = null;
+      sessionPool.shutdownNow();
+      sessionPool = null;
+      closeServerSockets(serverSockets);
+      serverSockets = null;
+      openSockets.clear();
+    } catch (Exception e) {
+      Log.error("Error while cleaning up the server.", e);
     }
-    Packet packet = new Packet();
-    packet.displayToUser(message);
-    serverThread.sendPacket(packet);
+    serverHosted = false;
+    loginMenu.resetLoginGUI();
+    setVisible(false);
+    loginMenu.setVisible(true);
   }
 
   
@@ -553,6 +639,24 @@ public class Server extends JFrame implements ActionListener {
   }
 
   
+  /*****************************************************************************************
+   * Displays what the engine reports in the server GUI window.
+   *****************************************************************************************/
+  private class GUIView implements ServerView {
+    public void displayToUser(String message) {
+      Server.this.displayToUser(message);
+    }
+
+    public void userListChanged(String userList) {
+      userDisplay.setText(userList);
+    }
+
+    public void roomListChanged(String roomList) {
+      roomDisplay.setText(roomList);
+    }
+  }
+
+
   /*****************************************************
    * Displays message to user in GUI.
    * @param message the text to display
@@ -581,14 +685,31 @@ public class Server extends JFrame implements ActionListener {
     Packet packet = new Packet();
     if (userInput.startsWith("@")) {
       // TODO - implement special cases
+      if (userInput.equals("@metrics")) displayToUser(engine.metricsReport());
+      if (userInput.equals("@reload")) reloadSettings();
     } else {
       String message = hostname + ": " + userInput;
       packet.displayToUser(message);
-      sendPacketAll(packet);
+      engine.sendPacketAll(packet);
       displayToUser(message);
     }
   }
 
+  /*****************************************************************************************
+   * Reads irc.properties again at once (instead of waiting for the change to be noticed),
+   * and displays what changed.
+   *****************************************************************************************/
+  private void reloadSettings() {
+    java.util.List<String> changes = Config.reload();
+    if (changes.isEmpty()) {
+      displayToUser("System: No setting changed in " + Config.file() + ".");
+      return;
+    }
+    StringBuilder sb = new StringBuilder("System: Settings changed in " + Config.file() + ":");
+    for (String change : changes) sb.append("\n   ").append(change);
+    displayToUser(sb.toString());
+  }
+
   /***************************************************************************
    *  Returns if user input is blank; else, parses the user's textual input.
    ***************************************************************************/
@@ -601,69 +722,161 @@ public class Server extends JFrame implements ActionListener {
 
   
   /************************************************************************************************************
-   * Initializes thread pool and runs infinite loop to listen for incoming connection requests.
-   * Exits the loop upon call of stopServer, which sets shutdown to true, thus exiting the loop and cleaning up.
+   * Runs an infinite loop accepting connections on one listening socket, and hands each connection to the
+   * handshake pool straight away. Blocks in accept() until stopServer closes the socket, which ends the loop.
    *************************************************************************************************************/
   private class ConnectionListener implements Runnable {
+    private final ServerSocket serverSocket;
+
+    ConnectionListener(ServerSocket serverSocket) {
+      this.serverSocket = serverSocket;
+    }
 	
     /************************************************************************************************************** 
      * Runs an infinite loop to listen for incoming connection requests from the client. 
      *************************************************************************************************************/
     @Override
     public void run() {
-      ExecutorService pool = Executors.newFixedThreadPool(threadLimit);
-      
       // loop for accepting client connection requests
       while (!shutdown) {
+        Socket clientSocket;
         try {
-          Socket clientSocket = serverSocket.accept();
-          ++threadCount;
-          System.out.println("New user connected - id # " + threadCount);
-          displayToUser("System: User # " + threadCount + " connected to server.");
-          ServerThread serverThread = new ServerThread(clientSocket, threadCount);
-          pool.execute(serverThread);
-          threadMap.put(threadCount, serverThread);
-        } catch (Exception e) {
-          if (e instanceof SocketTimeoutException) continue;
-          e.printStackTrace();
-          if (!(e instanceof SocketException)) {
-            System.exit(1);
-          }
+          clientSocket = serverSocket.accept();
+        } catch (IOException e) {
+          if (shutdown || serverSocket.isClosed()) break;
+          // for example out of file descriptors: give the sessions a moment to release some
+          Log.error("Error while accepting a connection.", e);
+          sleepQuietly(100);
+          continue;
+        }
+        if (shutdown) {
+          closeQuietly(clientSocket);
+          break;
+        }
+        if (handshaking.incrementAndGet() > maxHandshakes) {
+          handshaking.decrementAndGet();
+          handshakesRefused.increment();
+          closeQuietly(clientSocket);
+          continue;
+        }
+        openSockets.add(clientSocket);
+        try {
+          handshakePool.execute(() -> openSession(clientSocket));
+        } catch (RejectedExecutionException e) {
+          handshaking.decrementAndGet();
+          dropConnection(clientSocket);
         }
       }
-      
-      // shutdown sequence once loop breaks
-      serverShutdownCleanup();
+    }
+  }
+
+
+  /**************************************************************************************************************************
+   * Runs on the handshake pool: gives the accepted connection its user id, sets its object streams up (reading the
+   * stream header sent by the client, which has handshakeTimeoutMillis to send it), then starts its ServerThread on
+   * the session pool. The connection stays counted in handshaking until its user joins (see ServerThread).
+   * @param clientSocket the accepted connection
+   **************************************************************************************************************************/
+  private void openSession(Socket clientSocket) {
+    ChatEngine engine = this.engine;
+    ThreadPoolExecutor sessions = sessionPool;
+    if (shutdown || engine == null || sessions == null) {
+      handshaking.decrementAndGet();
+      dropConnection(clientSocket);
+      return;
+    }
+    int id = engine.nextSessionId();
+    ServerThread serverThread;
+    try {
+      clientSocket.setSoTimeout(handshakeTimeoutMillis);
+      serverThread = new ServerThread(clientSocket, id);
+    } catch (IOException e) {
+      handshaking.decrementAndGet();
+      if (e instanceof SocketTimeoutException) {
+        handshakesTimedOut.increment();
+        Log.info("Connection # " + id + " sent no stream header within " + handshakeTimeoutMillis + " ms, closing.");
+      } else {
+        Log.warn("Unable to open the streams of user id # " + id + ": " + e.getMessage());
+      }
+      dropConnection(clientSocket);
+      return;
+    }
+    metrics.connectionOpened();
+    Log.info("New user connected - id # " + id);
+    displayToUser("System: User # " + id + " connected to server.");
+    // registered before its thread runs, so a joinServer sent at once finds the session
+    engine.addSession(serverThread);
+    try {
+      sessions.execute(serverThread);
+    } catch (RejectedExecutionException e) {
+      engine.removeSession(serverThread);
+      serverThread.writer.close(0);
+      handshaking.decrementAndGet();
+      dropConnection(clientSocket);
+      metrics.connectionClosed();
+    }
+  }
+
+  private void dropConnection(Socket socket) {
+    openSockets.remove(socket);
+    closeQuietly(socket);
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+
+  private static void sleepQuietly(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
   
   /**************************************************************************************************************************
    * Invoked by the ConnectionListener class, the Server Thread class runs an infinite loop to listen for incoming packets. 
-   * Server threads store unique identification numbers corresponding to connected users and rooms.
+   * Server threads are the ServerSessions of clients connected through the socket, exchanging serialized Packets.
+   * The packets to the client go through a PacketWriter, so the engine never blocks on a slow client, and control
+   * packets overtake queued chat (see PacketWriter). A client which lets more than irc.server.sendQueue packets pile
+   * up in a lane is disconnected.
+   * Until its user joins, a thread reads with a socket timeout so that the user has handshakeTimeoutMillis from the
+   * start of the thread to join, whatever else it sends meanwhile.
    **************************************************************************************************************************/
-  private class ServerThread implements Runnable {
+  private class ServerThread extends ServerSession implements Runnable {
     Socket clientSocket;
-    int id;
-    String username;
     ObjectOutputStream out;
     ObjectInputStream in;
-    boolean shutdownThread;
+    final PacketWriter writer;
+    volatile boolean shutdownThread;
+    private boolean handshakeDone;
+    private int idleMillis;
 
-    /* Constructor */
-    ServerThread(Socket clientSocket, int id) {
-      System.out.println("Initializing user id # " + id + "...");
+    /* Constructor, blocks until the client's stream header arrives */
+    ServerThread(Socket clientSocket, int id) throws IOException {
+      super(id);
+      Log.debug("Initializing user id # " + id + "...");
       shutdownThread = false;
       this.clientSocket = clientSocket;
-      this.id = id;
-      try {
-        out = new ObjectOutputStream(this.clientSocket.getOutputStream());
-        in = new ObjectInputStream(this.clientSocket.getInputStream());
-      } catch (Exception e) {
-        System.out.println(e.getMessage());
-        e.printStackTrace();
-      }
-      System.out.println("Done.");
+      out =
+          new ObjectOutputStream(
+              new CountingOutputStream(this.clientSocket.getOutputStream(), metrics));
+      in = new ObjectInputStream(this.clientSocket.getInputStream());
+      writer =
+          new PacketWriter(
+              "session-writer-" + id,
+              out,
+              Math.max(16, Config.getInt("irc.server.sendQueue", 1024)),
+              Math.max(1, Config.getInt("irc.server.sendBatch", 64)),
+              Config.getInt("irc.server.controlWeight", 4),
+              Config.getInt("irc.server.bulkWeight", 1),
+              (lost, cause) -> closeQuietly(clientSocket));
+      Log.debug("Done.");
     }
 
     
@@ -672,69 +885,105 @@ public class Server extends JFrame implements ActionListener {
      ********************************************************/
     @Override
     public void run() {
-    	
+      ChatEngine engine = Server.this.engine;
+      long joinDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeoutMillis);
+      
       // listening loop
       while (!shutdownThread) {
         try {
+          if (!handshakeDone) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(joinDeadline - System.nanoTime());
+            if (remaining <= 0) throw new SocketTimeoutException();
+            clientSocket.setSoTimeout((int) remaining);
+          }
           Packet packet = (Packet) in.readObject();
-          System.out.println(packet.command + " packet received from user id # " + id + ".");
-          packetHandler(packet, id);
+          if (Log.isTraceEnabled())
+            Log.trace(packet.command + " packet received from user id # " + id + ".");
+          packetsHandled.increment();
+          engine.packetHandler(packet, id);
+          if (!handshakeDone && username != null) {
+            endHandshake();
+            idleMillis = idleTimeoutMillis;
+            clientSocket.setSoTimeout(idleMillis);
+          }
+        } catch (SocketTimeoutException e) {
+          if (handshakeDone) {
+            // the client pings while connected, so its connection is dead: free its user-name
+            Log.info("User id # " + id + " sent nothing for " + idleMillis + " ms, closing.");
+          } else {
+            handshakesTimedOut.increment();
+            Log.info("User id # " + id + " did not join within " + handshakeTimeoutMillis + " ms, closing.");
+          }
+          shutdownThread = true;
         } catch (Exception e) {
-          if (e instanceof EOFException) shutdownThread = true;
-          else e.printStackTrace();
+          // a broken stream cannot be read from again
+          if (e instanceof IOException) shutdownThread = true;
+          if (!(e instanceof EOFException))
+            Log.error("Error while reading a packet from user id # " + id + ".", e);
         }
       }
+
+      // the client went away without sending leaveServer (when the server stops, the engine is dropped as a whole)
+      endHandshake();
+      if (!shutdown) engine.disconnectClient(id);
       
-      // thread shutdown sequence
-      System.out.println("Closing connection to user id # " + id + "...");
+      // thread shutdown sequence: the last packets (such as the reply to leaveServer) are written out first
+      Log.info("Closing connection to user id # " + id + "...");
+      writer.close(1000);
       try {
         out.close();
         in.close();
         clientSocket.close();
       } catch (Exception e) {
-        e.printStackTrace();
+        Log.error("Error while closing the connection to user id # " + id + ".", e);
       }
-      System.out.println("Done.");
+      openSockets.remove(clientSocket);
+      metrics.connectionClosed();
+      Log.debug("Done.");
+    }
+
+    
+    /* Moves the connection from the handshaking count to the live sessions, once */
+    private void endHandshake() {
+      if (handshakeDone) return;
+      handshakeDone = true;
+      handshaking.decrementAndGet();
     }
 
     
     /*********************************************************
-     * Writes data contained in packet to an output stream.
-     * @param packet packet containing data from the client
+     * Queues the packet on the writer of the connection.
+     * @param packet packet containing data for the client
      *********************************************************/
-    private void sendPacket(Packet packet) {
-      try {
-        out.writeObject(packet);
-        out.flush();
-      } catch (Exception e) {
-        e.printStackTrace();
+    @Override
+    void sendPacket(Packet packet) {
+      if (writer.send(packet)) {
+        metrics.packetSent(packet.command);
+        if (Log.isTraceEnabled()) Log.trace(packet.command + " packet queued for user id # " + id + ".");
+        return;
       }
-      System.out.println(packet.command + " packet sent to user id # " + id + ".");
+      if (shutdownThread || shutdown || writer.hasFailed()) return;
+      // the lane is full: the client does not keep up
+      Log.warn("Closing the connection to user id # " + id + ": too many packets waiting to be sent.");
+      shutdownThread = true;
+      closeQuietly(clientSocket);
     }
-  }
 
-  
-  /*********************************************************************************************
-   *  Object holding user identification numbers for users that are members of a given room. 
-   **********************************************************************************************/
-  private static class ServerRoom {
-    String roomName;
-    Vector<Integer> members;
 
-    /* Constructor */
-    ServerRoom(int initialMember, String roomName) {
-      this.roomName = roomName;
-      members = new Vector<>();
-      members.add(initialMember);
+    /* Discards the packets still queued and closes the socket, when the server stops. @return the packets dropped */
+    int abandon() {
+      int dropped = writer.close(0);
+      closeQuietly(clientSocket);
+      return dropped;
     }
 
-    
-    /**************************************************************************
-     * Removes the client corresponding to the given id number from a room.
-     * @param targetid
-     **************************************************************************/
-    void removeUser(int targetid) {
-      members.removeIf(i -> i == targetid);
+
+    /*********************************************************************************
+     * Ends the listening loop once the current packet is handled.
+     *********************************************************************************/
+    @Override
+    void disconnect() {
+      shutdownThread = true;
     }
   }
 
@@ -797,7 +1046,7 @@ public class Server extends JFrame implements ActionListener {
       panel.add(new JLabel("Port Number"));
       portField = new JTextField();
       portField.setColumns(33);
-      portField.setText("8080");
+      portField.setText(String.valueOf(Config.getInt("irc.port", 8080)));
       panel.add(portField);
 
       // initialize username field
@@ -877,6 +1126,7 @@ public class Server extends JFrame implements ActionListener {
    *************************************************************************/
   @SuppressWarnings("unused")
   public static void main(String[] args) {
+    Config.load(args);
 	Server server = new Server();
   }
 }
\ No newline at end of file
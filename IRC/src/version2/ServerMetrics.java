@@ -0,0 +1,270 @@
+package version2;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import logging.Log;
+
+
+/*****************************************************************************************************************
+ * Registry of the server's runtime metrics.
+ * Counters are LongAdders and distributions are lock-free Histograms, so recording a metric never blocks a
+ * ServerThread. The registry covers:
+ * packetsIn / packetsOut:- number of packets received from and sent to clients, per command
+ * handlerLatency:- time spent in packetHandler(), per command, in nanoseconds
+ * fanOut:- number of recipients each outgoing broadcast was written to
+ * bytesWritten:- number of bytes written to all client sockets
+ * connectionsOpened / connectionsClosed:- number of client connections accepted and closed
+ * gauges:- named values read on demand (for example thread pool queue depths)
+ * messageRate / packetInRate / packetOutRate:- per second rates, sampled once a second in the background so that
+ * readers (the metrics endpoint) only read a volatile field
+ *****************************************************************************************************************/
+class ServerMetrics {
+
+  private final Map<String, LongAdder> packetsIn = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> packetsOut = new ConcurrentHashMap<>();
+  private final Map<String, Histogram> handlerLatency = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+  private final Histogram fanOut = new Histogram();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final long startNanos = System.nanoTime();
+  private ScheduledExecutorService scheduler;
+  private long lastMessages;
+  private long lastIn;
+  private long lastOut;
+  private volatile double messageRate;
+  private volatile double packetInRate;
+  private volatile double packetOutRate;
+
+
+  /*****************************************************************************************
+   * Records that a packet was received and handled by packetHandler().
+   * @param command the command of the packet
+   * @param nanos time spent handling the packet
+   *****************************************************************************************/
+  void packetHandled(String command, long nanos) {
+    packetsIn.computeIfAbsent(command, k -> new LongAdder()).increment();
+    handlerLatency.computeIfAbsent(command, k -> new Histogram()).record(nanos);
+  }
+
+  /*****************************************************************************************
+   * Records that a packet was written to a client.
+   * @param command the command of the packet
+   *****************************************************************************************/
+  void packetSent(String command) {
+    packetsOut.computeIfAbsent(command, k -> new LongAdder()).increment();
+  }
+
+  /*****************************************************************************************
+   * Records the number of recipients a single message was sent to.
+   * @param recipients number of clients the packet was written to
+   *****************************************************************************************/
+  void fanOut(int recipients) {
+    fanOut.record(recipients);
+  }
+
+  void bytesWritten(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  long activeConnections() {
+    return connectionsOpened.sum() - connectionsClosed.sum();
+  }
+
+  /*****************************************************************************************
+   * Registers a gauge, a value which is read only when the metrics are reported.
+   * Registering a gauge under an existing name replaces the previous one.
+   * @param name the name the gauge is reported under
+   * @param supplier supplies the current value of the gauge
+   *****************************************************************************************/
+  void registerGauge(String name, LongSupplier supplier) {
+    gauges.put(name, supplier);
+  }
+
+  void removeGauge(String name) {
+    gauges.remove(name);
+  }
+
+
+  /*****************************************************************************************
+   * Read-only views used by the metrics endpoint to export the registry.
+   *****************************************************************************************/
+  Map<String, LongAdder> packetsIn() {
+    return Collections.unmodifiableMap(packetsIn);
+  }
+
+  Map<String, LongAdder> packetsOut() {
+    return Collections.unmodifiableMap(packetsOut);
+  }
+
+  Map<String, Histogram> handlerLatency() {
+    return Collections.unmodifiableMap(handlerLatency);
+  }
+
+  Map<String, LongSupplier> gauges() {
+    return Collections.unmodifiableMap(gauges);
+  }
+
+  Histogram fanOut() {
+    return fanOut;
+  }
+
+  long bytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  long connectionsOpened() {
+    return connectionsOpened.sum();
+  }
+
+  long connectionsClosed() {
+    return connectionsClosed.sum();
+  }
+
+  double uptimeSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  /* chat messages (sendMessageAll, sendMessageUser, sendMessageRoom) received per second */
+  double messageRate() {
+    return messageRate;
+  }
+
+  double packetInRate() {
+    return packetInRate;
+  }
+
+  double packetOutRate() {
+    return packetOutRate;
+  }
+
+
+  /*****************************************************************************************
+   * Computes the per second rates from the counters. Runs once a second on the scheduler.
+   *****************************************************************************************/
+  private void sampleRates() {
+    long messages = 0;
+    long in = 0;
+    for (Map.Entry<String, LongAdder> entry : packetsIn.entrySet()) {
+      long n = entry.getValue().sum();
+      in += n;
+      if (entry.getKey().startsWith("sendMessage")) messages += n;
+    }
+    long out = 0;
+    for (LongAdder adder : packetsOut.values()) out += adder.sum();
+    messageRate = messages - lastMessages;
+    packetInRate = in - lastIn;
+    packetOutRate = out - lastOut;
+    lastMessages = messages;
+    lastIn = in;
+    lastOut = out;
+  }
+
+
+  /******************************************************************************************************
+   * Builds a human readable report of every metric. Used by the @metrics admin command and the
+   * periodic dump.
+   * @return the report as multi-line text
+   ******************************************************************************************************/
+  String report() {
+    double uptime = uptimeSeconds();
+    StringBuilder sb = new StringBuilder();
+    sb.append("METRICS (uptime ").append(String.format("%.1f", uptime)).append(" s)");
+    sb.append("\nconnections: active ").append(activeConnections());
+    sb.append(", opened ").append(connectionsOpened.sum());
+    sb.append(", closed ").append(connectionsClosed.sum());
+    sb.append("\nbytes written: ").append(bytesWritten.sum());
+    sb.append(String.format("\nrates: %.0f messages/s, %.0f packets in/s, %.0f packets out/s",
+        messageRate, packetInRate, packetOutRate));
+    sb.append("\nfan-out: ").append(describe(fanOut, 1));
+    sb.append("\npackets in (handler latency in us):");
+    for (Map.Entry<String, LongAdder> entry : new ConcurrentSkipListMap<>(packetsIn).entrySet()) {
+      long n = entry.getValue().sum();
+      sb.append("\n   ").append(entry.getKey()).append(": ").append(n);
+      sb.append(String.format(" (%.1f/s) ", n / uptime));
+      sb.append(describe(handlerLatency.get(entry.getKey()), 1000));
+    }
+    sb.append("\npackets out:");
+    for (Map.Entry<String, LongAdder> entry : new ConcurrentSkipListMap<>(packetsOut).entrySet())
+      sb.append("\n   ").append(entry.getKey()).append(": ").append(entry.getValue().sum());
+    if (!gauges.isEmpty()) sb.append("\ngauges:");
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+      sb.append("\n   ").append(entry.getKey()).append(": ").append(entry.getValue().getAsLong());
+    return sb.toString();
+  }
+
+  /*****************************************************************************************
+   * @param histogram the histogram to describe
+   * @param scale divisor applied to every value (1000 to turn nanoseconds into microseconds)
+   * @return count, mean, p50, p99 and max of the histogram on one line
+   *****************************************************************************************/
+  private static String describe(Histogram histogram, long scale) {
+    if (histogram == null || histogram.count() == 0) return "n/a";
+    return String.format(
+        "n=%d mean=%.1f p50=%d p99=%d max=%d",
+        histogram.count(),
+        histogram.mean() / scale,
+        histogram.percentile(0.50) / scale,
+        histogram.percentile(0.99) / scale,
+        histogram.max() / scale);
+  }
+
+
+  /*****************************************************************************************
+   * Starts the background scheduler, which samples the rates every second and runs the
+   * given dump task at a fixed interval.
+   * @param periodSeconds interval between two dumps
+   * @param dump task which writes out the report
+   *****************************************************************************************/
+  synchronized void start(long periodSeconds, Runnable dump) {
+    stop();
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleAtFixedRate(guarded(this::sampleRates), 1, 1, TimeUnit.SECONDS);
+    scheduler.scheduleAtFixedRate(guarded(dump), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /*****************************************************************************************
+   * An exception would cancel every later run of a periodic task, so it is reported and
+   * swallowed instead.
+   *****************************************************************************************/
+  private static Runnable guarded(Runnable task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        Log.error("Periodic metrics task failed.", e);
+      }
+    };
+  }
+
+  /*****************************************************************************************
+   * Stops the background scheduler, if it is running.
+   *****************************************************************************************/
+  synchronized void stop() {
+    if (scheduler == null) return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+}
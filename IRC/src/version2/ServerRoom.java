@@ -0,0 +1,172 @@
+package version2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*********************************************************************************************
+ *  Object holding user identification numbers for users that are members of a given room. 
+ *  The members are kept in a concurrent set, so membership checks are O(1) and the member
+ *  count can be read by the metrics endpoint without taking a lock.
+ *  Fan-out reads the members as an array, which is built once per change of the room rather
+ *  than once per message; members must therefore be added and removed through the methods
+ *  below, which invalidate it.
+ *  The room is also the sequencer of its messages: each one is stamped with the next sequence
+ *  number while holding the room's lock, and handed to the members before the lock is let go,
+ *  so every member receives the room's messages in the same order. The latest ones are kept
+ *  in a window, from which a member which missed some can have them sent again.
+ *  A room restored when the server starts again has no members at first: the users who were in
+ *  it are awaited, by name, and put back in the room as they join the server.
+ **********************************************************************************************/
+class ServerRoom {
+  
+  /************************************************************************************************
+   * Data Members
+   * version / snapshot:- count of the membership changes, and the member ids as of one of them
+   * window:- the latest messages, the message with sequence number n at index n % window.length
+   * lastSeq:- sequence number of the latest message, 0 before the first; guarded by the room
+   * joinedAt:- lastSeq when each member joined: a member is not sent the messages from before
+   * awaited:- folded user-names (see NicknameRegistry.fold) of the users of a restored room who
+   *   have not joined the server again yet
+   * removed:- set once the room is taken out of the room map, after which nobody can join it;
+   *   guarded by the room, like the emptiness check that leads to it
+   ************************************************************************************************/
+  String roomName;
+  Set<Integer> members;
+  private final AtomicInteger version = new AtomicInteger();
+  private volatile Snapshot snapshot = new Snapshot(-1, new int[0]);
+  private final Packet[] window;
+  private long lastSeq;
+  private final Map<Integer, Long> joinedAt = new ConcurrentHashMap<>();
+  final Set<String> awaited = ConcurrentHashMap.newKeySet();
+  private boolean removed;
+
+  /* The member ids as of a version of the room */
+  private static final class Snapshot {
+    final int version;
+    final int[] ids;
+
+    Snapshot(int version, int[] ids) {
+      this.version = version;
+      this.ids = ids;
+    }
+  }
+
+  /* Constructor */
+  ServerRoom(int initialMember, String roomName) {
+    this(initialMember, roomName, 256);
+  }
+
+  /* Constructor, keeping the latest windowSize messages for retransmission */
+  ServerRoom(int initialMember, String roomName, int windowSize) {
+    this(roomName, windowSize);
+    addUser(initialMember);
+  }
+
+  /* Constructor of a room without members, for a restored room */
+  ServerRoom(String roomName, int windowSize) {
+    this.roomName = roomName;
+    members = ConcurrentHashMap.newKeySet();
+    window = new Packet[Math.max(1, windowSize)];
+  }
+
+
+  /**************************************************************************
+   * Adds the client corresponding to the given id number to a room.
+   * Waits for the message being handed out, if any.
+   * @param targetid
+   * @return true if the client was added: it was not a member of the room
+   *   yet, and the room has not been removed
+   **************************************************************************/
+  synchronized boolean addUser(int targetid) {
+    if (removed || !members.add(targetid)) return false;
+    joinedAt.put(targetid, lastSeq);
+    version.incrementAndGet();
+    return true;
+  }
+
+  
+  /**************************************************************************
+   * Removes the client corresponding to the given id number from a room.
+   * @param targetid
+   * @return true if the client was a member of the room
+   **************************************************************************/
+  synchronized boolean removeUser(int targetid) {
+    if (!members.remove(targetid)) return false;
+    joinedAt.remove(targetid);
+    version.incrementAndGet();
+    return true;
+  }
+
+
+  /**************************************************************************
+   * Marks the room as removed if it has no members, nor awaited ones. The
+   * caller holds the room's lock while taking it out of the room map too,
+   * so no user can join it in between.
+   * @return true if the room was empty and is now removed
+   **************************************************************************/
+  synchronized boolean markRemovedIfEmpty() {
+    if (removed || !isEmpty()) return false;
+    removed = true;
+    return true;
+  }
+
+
+  /* @return the number of members, counting the awaited ones */
+  int memberCount() {
+    return members.size() + awaited.size();
+  }
+
+  /* @return true if the room has no members, nor awaited ones: it can be removed */
+  boolean isEmpty() {
+    return members.isEmpty() && awaited.isEmpty();
+  }
+
+
+  /**************************************************************************
+   * @return the member ids, shared between callers and not to be modified;
+   *   rebuilt only if the room changed since the last call
+   **************************************************************************/
+  int[] memberIds() {
+    int current = version.get();
+    Snapshot cached = snapshot;
+    if (cached.version == current) return cached.ids;
+    // read the version first: a change made while copying moves it on, so the next call copies again
+    int[] ids = members.stream().mapToInt(Integer::intValue).toArray();
+    snapshot = new Snapshot(current, ids);
+    return ids;
+  }
+
+
+  /**************************************************************************
+   * Stamps the next sequence number into a message and keeps it in the
+   * window. The caller holds the room's lock until it has handed the
+   * message to every member.
+   * @param packet the message, not changed afterwards
+   **************************************************************************/
+  void stamp(Packet packet) {
+    packet.seq = ++lastSeq;
+    window[(int) (lastSeq % window.length)] = packet;
+  }
+
+
+  /**************************************************************************
+   * @param targetid the member asking
+   * @param from the first sequence number asked for
+   * @param count the number of messages asked for
+   * @return the messages of the range still in the window and sent after
+   *   the member joined, in order; they end the range when there are any
+   **************************************************************************/
+  synchronized List<Packet> retained(int targetid, long from, int count) {
+    Long joined = joinedAt.get(targetid);
+    long first = Math.max(from, Math.max(lastSeq - window.length + 1, joined == null ? lastSeq + 1 : joined + 1));
+    long last = Math.min(from + Math.max(0, count) - 1, lastSeq);
+    List<Packet> packets = new ArrayList<>((int) Math.max(0, last - first + 1));
+    for (long seq = first; seq <= last; seq++) packets.add(window[(int) (seq % window.length)]);
+    return packets;
+  }
+}
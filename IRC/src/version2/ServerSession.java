@@ -0,0 +1,59 @@
+package version2;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**************************************************************************************************************************
+ * A user connected to the ChatEngine, independent of how the user is connected.
+ * The engine only ever talks to a user through sendPacket() and disconnect(); the transport behind it (the
+ * ObjectOutputStream of a ServerThread, an in-memory sink in the benchmarks...) is up to the subclass.
+ * Data Members:-
+ * id:- the user id # assigned by the engine
+ * username:- the user-name sent by the client in its joinServer packet
+ * resumeToken:- secret sent to the client in the joinServer reply; a reconnect under the same user-name which
+ *   shows it takes the name over from this session, which may not have noticed yet that its connection is dead
+ * packetsHandled / connectedAt:- used to report the packet rate of each session in the metrics report
+ * tokens / tokensAt:- token bucket of the engine's rate limit, only touched by the thread handling the session's packets
+ **************************************************************************************************************************/
+abstract class ServerSession {
+  final int id;
+  volatile String username;
+  volatile String resumeToken;
+  final LongAdder packetsHandled = new LongAdder();
+  final long connectedAt = System.nanoTime();
+  private double tokens = -1;
+  private long tokensAt;
+
+  /* Constructor */
+  ServerSession(int id) {
+    this.id = id;
+  }
+
+
+  /*********************************************************************************
+   * Takes one token from the bucket, which refills at perSecond tokens per second
+   * and holds at most burst tokens (it starts full).
+   * @return false if the bucket is empty: the user is sending too fast
+   *********************************************************************************/
+  boolean takeToken(double perSecond, double burst, long now) {
+    if (tokens < 0) tokens = burst;
+    else tokens = Math.min(burst, tokens + (now - tokensAt) * perSecond / 1e9);
+    tokensAt = now;
+    if (tokens < 1) return false;
+    tokens -= 1;
+    return true;
+  }
+
+  
+  /*********************************************************
+   * Delivers a packet to the user.
+   * @param packet packet to be sent to the user
+   *********************************************************/
+  abstract void sendPacket(Packet packet);
+
+  
+  /*********************************************************************************
+   * Asks the transport to close the connection once the current packet is handled.
+   *********************************************************************************/
+  abstract void disconnect();
+}
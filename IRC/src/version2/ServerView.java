@@ -0,0 +1,27 @@
+package version2;
+
+
+/************************************************************************************************************
+ * Callbacks through which the ChatEngine reports to whoever hosts it (the server GUI window).
+ * A headless host, such as a benchmark, can pass NONE.
+ ************************************************************************************************************/
+interface ServerView {
+
+  /* Displays a chat or status message to the host */
+  void displayToUser(String message);
+
+  /* Called with the new user list each time a user joins or leaves */
+  void userListChanged(String userList);
+
+  /* Called with the new room list each time a room or its members change */
+  void roomListChanged(String roomList);
+
+  ServerView NONE =
+      new ServerView() {
+        public void displayToUser(String message) {}
+
+        public void userListChanged(String userList) {}
+
+        public void roomListChanged(String roomList) {}
+      };
+}
@@ -0,0 +1,125 @@
+package version2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Paces the shutdown of a server within a time budget, and keeps a record of what could not be done in time.
+ * The budget is split in two: the drain phase (telling the users and letting their output be written) may use the
+ * first half, the close phase (closing the sockets and waiting for the threads) runs until the end. Every wait is
+ * bounded by the deadline of its phase, so a stuck client can delay the shutdown by no more than the budget.
+ * Work on many targets (sending the shutdown notice, closing sockets) is spread over a few daemon threads, so one
+ * socket blocked in a write does not hold up the others.
+ ******************************************************************************************************************/
+final class ShutdownCoordinator {
+
+  /************************************************************************************************
+   * Data Members
+   * startedAt / drainDeadline / deadline:- System.nanoTime() at the start, the end of the drain
+   *   phase and the end of the budget
+   * workers:- the threads running forEach, started on first use
+   * dropped:- one line per thing left undone, for the report
+   ************************************************************************************************/
+  private final long startedAt = System.nanoTime();
+  private final long drainDeadline;
+  private final long deadline;
+  private final ExecutorService workers;
+  private final List<String> dropped = new ArrayList<>();
+
+  /* Constructor */
+  ShutdownCoordinator(long budgetMillis, int parallelism) {
+    long budget = TimeUnit.MILLISECONDS.toNanos(Math.max(1, budgetMillis));
+    drainDeadline = startedAt + budget / 2;
+    deadline = startedAt + budget;
+    AtomicInteger count = new AtomicInteger();
+    workers =
+        Executors.newFixedThreadPool(
+            Math.max(1, parallelism),
+            r -> {
+              Thread thread = new Thread(r, "shutdown-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  long drainDeadline() {
+    return drainDeadline;
+  }
+
+  long deadline() {
+    return deadline;
+  }
+
+
+  /*****************************************************************************************
+   * Runs the action on every target, on the worker threads, and waits for them until the
+   * given deadline. Actions still running then are left to finish on their own.
+   * @param targets the targets, copied before the call returns
+   * @param action run once for each target; its exceptions are logged
+   * @param until System.nanoTime() deadline of the wait
+   * @return the number of targets whose action had not finished by the deadline
+   *****************************************************************************************/
+  <T> int forEach(Collection<T> targets, Consumer<T> action, long until) {
+    if (targets.isEmpty()) return 0;
+    List<T> copy = new ArrayList<>(targets);
+    CountDownLatch done = new CountDownLatch(copy.size());
+    for (T target : copy) {
+      workers.execute(
+          () -> {
+            try {
+              action.accept(target);
+            } catch (RuntimeException e) {
+              Log.warn("Error during the shutdown: " + e);
+            } finally {
+              done.countDown();
+            }
+          });
+    }
+    try {
+      done.await(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return (int) done.getCount();
+  }
+
+
+  /* @return true if the pool, already shut down, terminated before the deadline */
+  boolean awaitTermination(ExecutorService pool, long until) {
+    try {
+      return pool.awaitTermination(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return pool.isTerminated();
+    }
+  }
+
+
+  /* Records something left undone */
+  synchronized void dropped(String what) {
+    dropped.add(what);
+  }
+
+
+  /*****************************************************************************************
+   * Stops the worker threads.
+   * @return the report: the time taken, then one line per thing dropped
+   *****************************************************************************************/
+  synchronized List<String> finish() {
+    workers.shutdownNow();
+    List<String> report = new ArrayList<>(dropped.size() + 1);
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    report.add("Server stopped in " + millis + " ms" + (dropped.isEmpty() ? ", nothing dropped." : ", dropped:"));
+    for (String line : dropped) report.add("  " + line);
+    return report;
+  }
+}
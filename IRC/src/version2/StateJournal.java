@@ -0,0 +1,34 @@
+package version2;
+
+
+/************************************************************************************************************
+ * Receives the changes to the durable state of a ChatEngine (its rooms and who is in them), so that they can
+ * be recorded and the rooms restored when the server is started again. The methods are called on the threads
+ * handling the packets, and must not block.
+ * An engine whose state is not kept, such as in a benchmark, uses NONE.
+ ************************************************************************************************************/
+interface StateJournal {
+
+  /* A room was created */
+  void roomCreated(int roomid, String roomName);
+
+  /* A room was removed */
+  void roomRemoved(int roomid);
+
+  /* A user joined a room */
+  void memberAdded(int roomid, String username);
+
+  /* A user left a room */
+  void memberRemoved(int roomid, String username);
+
+  StateJournal NONE =
+      new StateJournal() {
+        public void roomCreated(int roomid, String roomName) {}
+
+        public void roomRemoved(int roomid) {}
+
+        public void memberAdded(int roomid, String username) {}
+
+        public void memberRemoved(int roomid, String username) {}
+      };
+}
@@ -0,0 +1,412 @@
+package version2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Keeps the rooms of a ChatEngine (ids, names, the user-names of their members) and its id counters over a restart.
+ * Two files in the state directory hold them:
+ * rooms.snap:- the whole state at one point, written every snapshotSeconds to a temporary file which then replaces
+ *   the previous snapshot (the file, then the directory, synced), so a crash while writing leaves the previous one whole
+ * rooms.journal:- the changes since that snapshot, one record each, appended every journalMillis; started afresh
+ *   after each snapshot
+ * Both are DataOutput streams: a magic number, the version and the generation, then for the snapshot the counters
+ * and every room (id, name, member count, user-names), for the journal records of a type byte, a room id and a name.
+ * Each snapshot has a new generation, which the journal started after it carries too. A crash between the
+ * replacement of the snapshot and the start of its journal leaves the journal of the previous generation, whose
+ * changes the new snapshot already holds: it is skipped, as replaying it could undo later ones.
+ *
+ * As the engine's StateJournal, the snapshotter only queues each change (a lock-free queue), so handling packets
+ * never waits for the disk. Its own thread writes the queue out, and takes the snapshots by reading the engine's
+ * concurrent maps and the members arrays of the rooms, which are copy-on-write (see ServerRoom.memberIds): nothing
+ * is locked while it reads. A change made while the snapshot is read may be in both the snapshot and the new
+ * journal. Replaying it is harmless because the records are replayed in the order they were made and each one
+ * sets one room or one membership whatever it was before: the last record about a membership decides it, and
+ * room ids are never handed out again, so a room once removed stays removed. Records are not idempotent in any
+ * other order, nor over the snapshot of another generation.
+ *
+ * At startup, restore reads the snapshot and replays the journal (a record cut short by a crash ends it), then
+ * hands the rooms to the engine, where their members are awaited until they join again.
+ ******************************************************************************************************************/
+final class StateSnapshotter implements StateJournal {
+  private static final int SNAPSHOT_MAGIC = 0x49524353;
+  private static final int JOURNAL_MAGIC = 0x4952434a;
+  private static final int VERSION = 2;
+  private static final byte ROOM_CREATED = 1;
+  private static final byte ROOM_REMOVED = 2;
+  private static final byte MEMBER_ADDED = 3;
+  private static final byte MEMBER_REMOVED = 4;
+
+  /* A change waiting to be written to the journal */
+  private static final class Change {
+    final byte type;
+    final int roomid;
+    final String name;
+
+    Change(byte type, int roomid, String name) {
+      this.type = type;
+      this.roomid = roomid;
+      this.name = name;
+    }
+  }
+
+  /* A room as read back from the files */
+  private static final class RoomRecord {
+    final String name;
+    final Set<String> members = new LinkedHashSet<>();
+
+    RoomRecord(String name) {
+      this.name = name;
+    }
+  }
+
+  /************************************************************************************************
+   * Data Members
+   * changes:- the changes not written to the journal yet
+   * journal:- the open journal file, used on the snapshot thread only
+   * thread:- writes the journal and the snapshots, started by start()
+   * generation:- that of the latest snapshot read or written, which its journal carries too
+   * closed:- set by stop(): changes are no longer queued
+   ************************************************************************************************/
+  private final ChatEngine engine;
+  private final Path snapshotFile;
+  private final Path journalFile;
+  private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+  private DataOutputStream journal;
+  private ScheduledExecutorService thread;
+  private long generation;
+  private volatile boolean closed;
+
+  /* Constructor */
+  StateSnapshotter(ChatEngine engine, Path directory) {
+    this.engine = engine;
+    snapshotFile = directory.resolve("rooms.snap");
+    journalFile = directory.resolve("rooms.journal");
+  }
+
+
+  @Override
+  public void roomCreated(int roomid, String roomName) {
+    record(ROOM_CREATED, roomid, roomName);
+  }
+
+  @Override
+  public void roomRemoved(int roomid) {
+    record(ROOM_REMOVED, roomid, "");
+  }
+
+  @Override
+  public void memberAdded(int roomid, String username) {
+    record(MEMBER_ADDED, roomid, username);
+  }
+
+  @Override
+  public void memberRemoved(int roomid, String username) {
+    record(MEMBER_REMOVED, roomid, username);
+  }
+
+  private void record(byte type, int roomid, String name) {
+    if (!closed) changes.add(new Change(type, roomid, name == null ? "" : name));
+  }
+
+
+  /*****************************************************************************************
+   * Reads the snapshot and the journal, if any, and puts the rooms which had members back in
+   * the engine. Must be called before the server takes connections. Unreadable files are
+   * logged and ignored: the server then starts without rooms.
+   * @return the number of rooms restored
+   *****************************************************************************************/
+  int restore() {
+    long start = System.nanoTime();
+    Map<Integer, RoomRecord> rooms = new LinkedHashMap<>();
+    int[] counters = new int[2];
+    int replayed = 0;
+    try {
+      if (Files.exists(snapshotFile)) generation = readSnapshot(rooms, counters);
+      if (Files.exists(journalFile)) replayed = replayJournal(rooms, counters);
+    } catch (IOException e) {
+      Log.warn("Could not read the saved rooms in " + snapshotFile.getParent() + ", starting without them: " + e);
+      rooms.clear();
+    }
+    int restored = 0;
+    int members = 0;
+    for (Map.Entry<Integer, RoomRecord> entry : rooms.entrySet()) {
+      RoomRecord room = entry.getValue();
+      if (room.members.isEmpty()) continue;
+      engine.restoreRoom(entry.getKey(), room.name, room.members);
+      restored++;
+      members += room.members.size();
+    }
+    engine.restoreCounters(counters[0], counters[1]);
+    if (restored > 0 || replayed > 0) {
+      Log.info(
+          "Restored "
+              + restored
+              + " rooms with "
+              + members
+              + " members ("
+              + replayed
+              + " journal records) in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+              + " ms.");
+    }
+    return restored;
+  }
+
+  /* @return the generation of the snapshot */
+  private long readSnapshot(Map<Integer, RoomRecord> rooms, int[] counters) throws IOException {
+    try (DataInputStream in = open(snapshotFile)) {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION)
+        throw new IOException(snapshotFile + " is not a room snapshot of this version");
+      long snapshotGeneration = in.readLong();
+      counters[0] = in.readInt();
+      counters[1] = in.readInt();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        int roomid = in.readInt();
+        RoomRecord room = new RoomRecord(in.readUTF());
+        int members = in.readInt();
+        for (int m = 0; m < members; m++) room.members.add(NicknameRegistry.fold(in.readUTF()));
+        rooms.put(roomid, room);
+      }
+      return snapshotGeneration;
+    }
+  }
+
+  /* @return the number of records replayed, 0 if the journal does not follow the snapshot read */
+  private int replayJournal(Map<Integer, RoomRecord> rooms, int[] counters) throws IOException {
+    int replayed = 0;
+    try (DataInputStream in = open(journalFile)) {
+      long journalGeneration;
+      try {
+        if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION)
+          throw new IOException(journalFile + " is not a room journal of this version");
+        journalGeneration = in.readLong();
+      } catch (EOFException e) {
+        return 0; // cut short while being started afresh: no records yet
+      }
+      if (journalGeneration != generation) {
+        Log.info("Skipping " + journalFile + ", which does not follow the snapshot (generation "
+            + journalGeneration + " instead of " + generation + ").");
+        return 0;
+      }
+      while (true) {
+        byte type;
+        int roomid;
+        String name;
+        try {
+          type = in.readByte();
+          roomid = in.readInt();
+          name = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        replayed++;
+        switch (type) {
+          case ROOM_CREATED:
+            rooms.putIfAbsent(roomid, new RoomRecord(name));
+            counters[1] = Math.max(counters[1], roomid);
+            break;
+          case ROOM_REMOVED:
+            rooms.remove(roomid);
+            break;
+          case MEMBER_ADDED:
+          case MEMBER_REMOVED:
+            RoomRecord room = rooms.get(roomid);
+            if (room == null) break;
+            if (type == MEMBER_ADDED) room.members.add(NicknameRegistry.fold(name));
+            else room.members.remove(NicknameRegistry.fold(name));
+            break;
+          default:
+            throw new IOException("Unknown record type " + type + " in " + journalFile);
+        }
+      }
+    }
+    return replayed;
+  }
+
+  private static DataInputStream open(Path file) throws IOException {
+    InputStream in = Files.newInputStream(file);
+    return new DataInputStream(new BufferedInputStream(in, 1 << 16));
+  }
+
+
+  /*****************************************************************************************
+   * Writes a first snapshot at once (so the journal restored from is not replayed twice),
+   * then starts the snapshot thread.
+   * @param snapshotSeconds interval between two snapshots
+   * @param journalMillis interval between two writes of the journal
+   * @param rejoinSeconds how long the members of the restored rooms are awaited
+   * @throws IOException if the state directory or the files cannot be written
+   *****************************************************************************************/
+  synchronized void start(long snapshotSeconds, long journalMillis, long rejoinSeconds) throws IOException {
+    Files.createDirectories(snapshotFile.getParent());
+    snapshot();
+    thread =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "state-snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long journalPeriod = Math.max(1, journalMillis);
+    long snapshotPeriod = TimeUnit.SECONDS.toMillis(Math.max(1, snapshotSeconds));
+    thread.scheduleWithFixedDelay(guarded(this::writeJournal), journalPeriod, journalPeriod, TimeUnit.MILLISECONDS);
+    thread.scheduleWithFixedDelay(guarded(this::snapshot), snapshotPeriod, snapshotPeriod, TimeUnit.MILLISECONDS);
+    thread.schedule(guarded(engine::expireAwaited), Math.max(0, rejoinSeconds), TimeUnit.SECONDS);
+  }
+
+
+  /*****************************************************************************************
+   * Takes a last snapshot and stops the thread. Changes made afterwards (such as the users
+   * being disconnected by the shutdown) are not kept, so the members are awaited again at
+   * the next start.
+   * @param timeoutMillis how long to wait for the snapshot
+   *****************************************************************************************/
+  synchronized void stop(long timeoutMillis) {
+    closed = true;
+    ScheduledExecutorService thread = this.thread;
+    this.thread = null;
+    if (thread == null) return;
+    try {
+      thread.submit(guarded(this::snapshot)).get(Math.max(1, timeoutMillis), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      Log.warn("The last room snapshot was not written in time; the journal covers the changes since the one before.");
+    } catch (ExecutionException e) {
+      Log.error("Error while saving the rooms.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread.shutdownNow();
+    changes.clear();
+  }
+
+  private Runnable guarded(IoTask task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (IOException | RuntimeException e) {
+        Log.error("Error while saving the rooms.", e);
+      }
+    };
+  }
+
+  private interface IoTask {
+    void run() throws IOException;
+  }
+
+
+  /*****************************************************************************************
+   * Appends the queued changes to the journal and flushes it. Snapshot thread only.
+   *****************************************************************************************/
+  private void writeJournal() throws IOException {
+    if (changes.isEmpty()) return;
+    if (journal == null) journal = openJournal(true);
+    for (Change change; (change = changes.poll()) != null; ) {
+      journal.writeByte(change.type);
+      journal.writeInt(change.roomid);
+      journal.writeUTF(change.name);
+    }
+    journal.flush();
+  }
+
+  private DataOutputStream openJournal(boolean append) throws IOException {
+    boolean fresh = !append || !Files.exists(journalFile) || Files.size(journalFile) == 0;
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile.toFile(), !fresh), 1 << 16));
+    if (fresh) {
+      out.writeInt(JOURNAL_MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(generation);
+      out.flush();
+    }
+    return out;
+  }
+
+
+  /*****************************************************************************************
+   * Writes the journal out, then the whole state to a new snapshot file of the next generation,
+   * which replaces the previous one once synced, and starts the journal of that generation.
+   * Changes made from the moment the rooms are read on go to the new journal. Snapshot thread,
+   * or start().
+   *****************************************************************************************/
+  private void snapshot() throws IOException {
+    writeJournal();
+    List<Integer> ids = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    List<List<String>> members = new ArrayList<>();
+    int lastSessionId = engine.lastSessionId();
+    int lastRoomId = engine.lastRoomId();
+    for (Map.Entry<Integer, ServerRoom> entry : engine.roomMap.entrySet()) {
+      ServerRoom room = entry.getValue();
+      List<String> usernames = new ArrayList<>(room.awaited);
+      for (int id : room.memberIds()) {
+        ServerSession session = engine.threadMap.get(id);
+        if (session != null && session.username != null) usernames.add(session.username);
+      }
+      if (usernames.isEmpty()) continue;
+      ids.add(entry.getKey());
+      names.add(room.roomName == null ? "" : room.roomName);
+      members.add(usernames);
+    }
+    // unique across restarts too, even if the snapshot restored from was unreadable
+    long next = Math.max(generation + 1, System.currentTimeMillis());
+    Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(next);
+      out.writeInt(lastSessionId);
+      out.writeInt(lastRoomId);
+      out.writeInt(ids.size());
+      for (int i = 0; i < ids.size(); i++) {
+        out.writeInt(ids.get(i));
+        out.writeUTF(names.get(i));
+        out.writeInt(members.get(i).size());
+        for (String username : members.get(i)) out.writeUTF(username);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(snapshotFile.getParent());
+    generation = next;
+    if (journal != null) journal.close();
+    journal = openJournal(false);
+  }
+
+  /* Makes the rename of the snapshot durable */
+  private static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened on every platform (Windows), where the rename is durable on its own
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package version2;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.swing.AbstractListModel;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * List model of the client chat transcript, backed by a ring buffer of at most capacity lines.
+ * Once the buffer is full, every new line evicts the oldest one, which is appended to the spill file if one is
+ * configured (otherwise it is forgotten). Appending and evicting are constant time, and a JList with a fixed cell
+ * size only lays out the visible rows, so the view stays fast no matter how long the session has been running.
+ * Messages spanning several lines are stored as one row per line. Must only be used on the EDT.
+ ******************************************************************************************************************/
+final class TranscriptModel extends AbstractListModel<String> {
+  private static final long serialVersionUID = 1L;
+
+  /************************************************************************************************
+   * Data Members
+   * lines:- the ring buffer, the oldest line being at index head
+   * size:- number of lines held
+   * spillFile:- where evicted lines are appended, null to discard them (also once writing it failed)
+   ************************************************************************************************/
+  private final String[] lines;
+  private int head;
+  private int size;
+  private final File spillFile;
+  private transient Writer spill;
+  private boolean spillFailed;
+
+
+  /*****************************************************************************************
+   * @param capacity the most lines kept in memory
+   * @param spillFile file receiving the evicted lines, or null to discard them
+   *****************************************************************************************/
+  TranscriptModel(int capacity, File spillFile) {
+    lines = new String[Math.max(1, capacity)];
+    this.spillFile = spillFile;
+  }
+
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public String getElementAt(int index) {
+    return lines[(head + index) % lines.length];
+  }
+
+
+  /*****************************************************************************************
+   * Appends a message, one row per line of text.
+   *****************************************************************************************/
+  void add(String message) {
+    int before = size;
+    int evicted = 0;
+    for (String line : message.split("\n", -1)) if (push(line)) ++evicted;
+    fireChanges(before, evicted);
+  }
+
+
+  /*****************************************************************************************
+   * Appends several messages with a single pair of list events.
+   *****************************************************************************************/
+  void addAll(List<String> messages) {
+    int before = size;
+    int evicted = 0;
+    for (String message : messages)
+      for (String line : message.split("\n", -1)) if (push(line)) ++evicted;
+    fireChanges(before, evicted);
+  }
+
+  /* Removes every line, spilling them if a spill file is configured */
+  void clear() {
+    if (size == 0) return;
+    int removed = size;
+    while (size > 0) evict();
+    fireIntervalRemoved(this, 0, removed - 1);
+  }
+
+  /* Flushes and closes the spill file */
+  void close() {
+    if (spill == null) return;
+    try {
+      spill.close();
+    } catch (IOException e) {
+      Log.warn("Unable to close transcript file " + spillFile + ".", e);
+    }
+    spill = null;
+  }
+
+
+  /* Stores a line at the tail, evicting the oldest line if the buffer is full. @return true if a line was evicted */
+  private boolean push(String line) {
+    boolean evicted = false;
+    if (size == lines.length) {
+      evict();
+      evicted = true;
+    }
+    lines[(head + size) % lines.length] = line;
+    ++size;
+    return evicted;
+  }
+
+  private void evict() {
+    String oldest = lines[head];
+    lines[head] = null;
+    head = (head + 1) % lines.length;
+    --size;
+    spill(oldest);
+  }
+
+  private void spill(String line) {
+    if (spillFile == null || spillFailed) return;
+    try {
+      if (spill == null) {
+        File dir = spillFile.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        spill =
+            new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8));
+      }
+      spill.write(line);
+      spill.write(System.lineSeparator());
+    } catch (IOException e) {
+      Log.warn("Unable to write transcript file " + spillFile + ", older lines are discarded.", e);
+      spillFailed = true;
+      close();
+    }
+  }
+
+  /*
+   * Of the lines held before the append, the evicted ones left the front of the list; the new lines which are
+   * still held joined the end. (When more lines than the capacity are added, some new lines are evicted too.)
+   */
+  private void fireChanges(int before, int evicted) {
+    int removed = Math.min(evicted, before);
+    if (removed > 0) fireIntervalRemoved(this, 0, removed - 1);
+    int kept = size - (before - removed);
+    if (kept > 0) fireIntervalAdded(this, size - kept, size - 1);
+  }
+}
@@ -0,0 +1,61 @@
+package version2;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * Lets browsers use the server over WebSocket (RFC 6455), next to the Swing and IRC clients.
+ * The gateway listens on its own port of a SelectorLoop and gives every connection a WebSocketSession, which does
+ * the HTTP upgrade handshake, then turns each text message into a Packet for the same ChatEngine, and the engine's
+ * packets back into text messages. The text format is described in WebSocketSession.
+ ******************************************************************************************************************/
+final class WebSocketGateway {
+
+  /************************************************************************************************
+   * Data Members
+   * engine:- the engine the sessions talk to
+   * maxMessageBytes:- the longest message accepted from a browser, fragments included (can be changed while running)
+   * connections:- the number of open WebSocket connections
+   ************************************************************************************************/
+  final ChatEngine engine;
+  volatile int maxMessageBytes;
+  private final SelectorLoop loop;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  WebSocketGateway(ChatEngine engine, SelectorLoop loop, int maxMessageBytes) {
+    this.engine = engine;
+    this.loop = loop;
+    this.maxMessageBytes = maxMessageBytes;
+  }
+
+
+  /*****************************************************************************************
+   * Starts accepting WebSocket clients.
+   * @param port the port to listen on
+   * @throws IOException if the port cannot be bound
+   *****************************************************************************************/
+  void listen(int port) throws IOException {
+    loop.listen(port, this::accept);
+  }
+
+  int connections() {
+    return connections.get();
+  }
+
+  private NioConnection.Handler accept(NioConnection connection) {
+    int id = engine.nextSessionId();
+    connections.incrementAndGet();
+    engine.metrics.connectionOpened();
+    Log.info("New WebSocket connection from " + connection.remoteAddress + " - id # " + id);
+    return new WebSocketSession(this, connection, id);
+  }
+
+  /* Called once by each session when its connection is closed */
+  void sessionClosed(WebSocketSession session) {
+    connections.decrementAndGet();
+    engine.metrics.connectionClosed();
+    Log.info("WebSocket user id # " + session.id + " disconnected.");
+  }
+}
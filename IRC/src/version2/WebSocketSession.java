@@ -0,0 +1,558 @@
+package version2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import logging.Log;
+
+
+/*******************************************************************************************************************
+ * A browser connected through the WebSocketGateway.
+ * The connection starts with the HTTP upgrade handshake; after that the read buffer holds frames, which are
+ * unmasked in place (the payload of a frame too long for the read buffer is unmasked as it arrives and gathered
+ * with the fragments, up to irc.gateway.maxMessageBytes). Text messages (possibly fragmented) are commands, handed to the engine on the loop thread in
+ * a reused Packet. Ping, pong and close frames are answered as RFC 6455 requires; a protocol error closes the
+ * connection with the matching status code.
+ *
+ * Commands sent by the browser, one per text message; a request id may follow the command after a '#', and the
+ * engine then confirms the command with an ack (or error) message carrying it:
+ *   joinServer <username>            (must come first; may be sent again if the name is refused)
+ *   sendMessageAll <message>
+ *   sendMessageUser <userid or username> <message>
+ *   sendMessageRoom <roomid> <message>
+ *   createRoom <room name>
+ *   joinRoom <roomid>
+ *   leaveRoom <roomid>
+ *   leaveServer
+ * Messages sent to the browser: the packet command (and #requestid), then its fields, names and text last:
+ *   joinServer <userid> <welcome>      displayToUser <text>        ack <result> [<text>]       error <text>
+ *   userAdded <userid> <name>          userRemoved <userid> <name>
+ *   roomMemberAdded <roomid> <userid>           roomMemberRemoved <roomid> <userid>
+ *   roomMembers <roomid> <member,member,...> <name>   (the rooms joined or created, whose changes follow)
+ *   userSnapshot, then a line "<userid> <name>" per user
+ *   roomSnapshot, then a line "<roomid> <count> <member,member,...> <name>" per room, members only for the
+ *     rooms joined, '-' for the others
+ *   roomSummary, then a line "<roomid> <count> <name>" per room changed since the last one, "<roomid> 0" for
+ *     a removed room
+ ******************************************************************************************************************/
+final class WebSocketSession extends ServerSession implements NioConnection.Handler {
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int OP_CONTINUATION = 0x0;
+  private static final int OP_TEXT = 0x1;
+  private static final int OP_BINARY = 0x2;
+  private static final int OP_CLOSE = 0x8;
+  private static final int OP_PING = 0x9;
+  private static final int OP_PONG = 0xA;
+  private static final ThreadLocal<ByteBuffer> headers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(10));
+
+  /************************************************************************************************
+   * Data Members
+   * open:- set once the handshake is done; frames are only read and written after it
+   * joined:- set once the joinServer command has been handed to the engine
+   * request:- the packet handed to the engine for every command, reused
+   * fragments / fragmentsLength / fragmentsOpcode:- the frames of a fragmented message so far
+   * streamRemaining / streamMask / streamMaskIndex / streamFin:- the frame being gathered across reads, if any:
+   *   the payload bytes still to come, its mask and the position in it, and whether it ends its message
+   ************************************************************************************************/
+  private final WebSocketGateway gateway;
+  private final ChatEngine engine;
+  private final NioConnection connection;
+  private final Packet request = new Packet();
+  private volatile boolean open;
+  private boolean joined;
+  private byte[] fragments;
+  private int fragmentsLength;
+  private int fragmentsOpcode = -1;
+  private long streamRemaining;
+  private final byte[] streamMask = new byte[4];
+  private int streamMaskIndex;
+  private boolean streamFin;
+
+  WebSocketSession(WebSocketGateway gateway, NioConnection connection, int id) {
+    super(id);
+    this.gateway = gateway;
+    this.engine = gateway.engine;
+    this.connection = connection;
+  }
+
+  @Override
+  public void received(NioConnection connection, ByteBuffer in) {
+    if (!open && !handshake(in)) return;
+    while (!connection.isClosed() && readFrame(in)) {
+      // one complete frame handled per turn
+    }
+    if (!in.hasRemaining() || connection.isClosed()) return;
+    if (in.position() == 0 && in.limit() == in.capacity()) {
+      in.position(in.limit());
+      fail(1009, "Message too big");
+    }
+  }
+
+  @Override
+  public void closed(NioConnection connection) {
+    gateway.sessionClosed(this);
+    if (joined) engine.disconnectClient(id);
+  }
+
+  @Override
+  void disconnect() {
+    sendClose(1000, "");
+  }
+
+
+  /*****************************************************************************************
+   * Answers the HTTP upgrade request once its headers have all arrived.
+   * @return true if the connection is now open, false if the request is incomplete or was
+   *   refused
+   *****************************************************************************************/
+  private boolean handshake(ByteBuffer in) {
+    byte[] data = in.array();
+    int start = in.arrayOffset() + in.position();
+    int end = in.arrayOffset() + in.limit();
+    int headersEnd = -1;
+    for (int i = start; i + 3 < end; i++) {
+      if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+        headersEnd = i;
+        break;
+      }
+    }
+    if (headersEnd < 0) {
+      if (in.limit() == in.capacity()) {
+        in.position(in.limit());
+        refuse("431 Request Header Fields Too Large", "");
+      }
+      return false;
+    }
+    in.position(headersEnd + 4 - in.arrayOffset());
+    String[] lines = new String(data, start, headersEnd - start, StandardCharsets.ISO_8859_1).split("\r\n");
+    String key = null;
+    String version = null;
+    boolean upgrade = false;
+    boolean connectionUpgrade = false;
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon < 0) continue;
+      String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+      String value = lines[i].substring(colon + 1).trim();
+      if (name.equals("sec-websocket-key")) key = value;
+      else if (name.equals("sec-websocket-version")) version = value;
+      else if (name.equals("upgrade")) upgrade = value.toLowerCase(Locale.ROOT).contains("websocket");
+      else if (name.equals("connection")) connectionUpgrade = value.toLowerCase(Locale.ROOT).contains("upgrade");
+    }
+    if (!lines[0].startsWith("GET ") || !upgrade || !connectionUpgrade || key == null) {
+      refuse("400 Bad Request", "");
+      return false;
+    }
+    if (!"13".equals(version)) {
+      refuse("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+      return false;
+    }
+    String accept;
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+      accept = Base64.getEncoder().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      Log.error("SHA-1 is not available for the WebSocket handshake.", e);
+      refuse("500 Internal Server Error", "");
+      return false;
+    }
+    String response =
+        "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: "
+            + accept
+            + "\r\n\r\n";
+    connection.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+    open = true;
+    return true;
+  }
+
+  private void refuse(String status, String extraHeaders) {
+    String response =
+        "HTTP/1.1 " + status + "\r\n" + extraHeaders + "Connection: close\r\nContent-Length: 0\r\n\r\n";
+    connection.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+    connection.close();
+  }
+
+
+  /*****************************************************************************************
+   * Reads one frame from the buffer, if it has all arrived, unmasks its payload in place
+   * and handles it.
+   * @return true if a frame was consumed
+   *****************************************************************************************/
+  private boolean readFrame(ByteBuffer in) {
+    if (streamRemaining > 0) return readStreamed(in);
+    byte[] data = in.array();
+    int p = in.arrayOffset() + in.position();
+    int available = in.remaining();
+    if (available < 2) return false;
+    boolean fin = (data[p] & 0x80) != 0;
+    int opcode = data[p] & 0x0F;
+    if ((data[p] & 0x70) != 0) return fail(in, 1002, "Reserved bits are set");
+    if ((data[p + 1] & 0x80) == 0) return fail(in, 1002, "Client frames must be masked");
+    long length = data[p + 1] & 0x7F;
+    int header = 2;
+    if (length == 126) {
+      if (available < 4) return false;
+      length = (data[p + 2] & 0xFF) << 8 | (data[p + 3] & 0xFF);
+      header = 4;
+    } else if (length == 127) {
+      if (available < 10) return false;
+      length = 0;
+      for (int i = 2; i < 10; i++) length = length << 8 | (data[p + i] & 0xFF);
+      header = 10;
+    }
+    header += 4;
+    if (length < 0 || length > gateway.maxMessageBytes) return fail(in, 1009, "Message too big");
+    if (opcode >= OP_CLOSE && length > 125) return fail(in, 1002, "Control frame too long");
+    if (available < header + length) {
+      if (header + length <= in.capacity()) return false;
+      // too long for the read buffer: gather the payload with the fragments as it arrives
+      if (!startStream(fin, opcode, length)) return false;
+      System.arraycopy(data, p + header - 4, streamMask, 0, 4);
+      in.position(in.position() + header);
+      return true;
+    }
+    int start = p + header;
+    int end = start + (int) length;
+    for (int i = start, k = p + header - 4; i < end; i++) data[i] ^= data[k + ((i - start) & 3)];
+    in.position(end - in.arrayOffset());
+    frame(fin, opcode, data, start, end);
+    return true;
+  }
+
+  private void frame(boolean fin, int opcode, byte[] data, int start, int end) {
+    switch (opcode) {
+      case OP_TEXT:
+      case OP_BINARY:
+        if (fragmentsOpcode >= 0) {
+          fail(1002, "Expected a continuation frame");
+        } else if (fin) {
+          message(opcode, data, start, end);
+        } else {
+          fragmentsOpcode = opcode;
+          fragmentsLength = 0;
+          appendFragment(data, start, end);
+        }
+        break;
+      case OP_CONTINUATION:
+        if (fragmentsOpcode < 0) {
+          fail(1002, "Unexpected continuation frame");
+        } else if (appendFragment(data, start, end) && fin) {
+          fragmentsDone();
+        }
+        break;
+      case OP_PING:
+        if (!fin || end - start > 125) fail(1002, "Invalid ping frame");
+        else sendFrame(OP_PONG, ByteBuffer.wrap(data, start, end - start));
+        break;
+      case OP_PONG:
+        break;
+      case OP_CLOSE:
+        int code = end - start >= 2 ? (data[start] & 0xFF) << 8 | (data[start + 1] & 0xFF) : 1000;
+        sendClose(code, "");
+        break;
+      default:
+        fail(1002, "Unknown opcode " + opcode);
+    }
+  }
+
+  /* Starts gathering a text, binary or continuation frame across reads; false if it was refused */
+  private boolean startStream(boolean fin, int opcode, long length) {
+    if (opcode == OP_CONTINUATION ? fragmentsOpcode < 0 : fragmentsOpcode >= 0 || opcode > OP_BINARY) {
+      fail(1002, opcode == OP_CONTINUATION ? "Unexpected continuation frame" : "Expected a continuation frame");
+      return false;
+    }
+    if (opcode != OP_CONTINUATION) {
+      fragmentsOpcode = opcode;
+      fragmentsLength = 0;
+    }
+    if (fragmentsLength + length > gateway.maxMessageBytes) {
+      fail(1009, "Message too big");
+      return false;
+    }
+    streamRemaining = length;
+    streamMaskIndex = 0;
+    streamFin = fin;
+    return true;
+  }
+
+  /* Unmasks and gathers what has arrived of the frame started by startStream */
+  private boolean readStreamed(ByteBuffer in) {
+    int count = (int) Math.min(in.remaining(), streamRemaining);
+    if (count == 0) return false;
+    byte[] data = in.array();
+    int start = in.arrayOffset() + in.position();
+    for (int i = 0; i < count; i++) data[start + i] ^= streamMask[(streamMaskIndex + i) & 3];
+    in.position(in.position() + count);
+    streamMaskIndex += count;
+    streamRemaining -= count;
+    if (!appendFragment(data, start, start + count)) return false;
+    if (streamRemaining == 0 && streamFin) fragmentsDone();
+    return true;
+  }
+
+  /* Hands the gathered message over, once its last frame has arrived */
+  private void fragmentsDone() {
+    int messageOpcode = fragmentsOpcode;
+    fragmentsOpcode = -1;
+    message(messageOpcode, fragments, 0, fragmentsLength);
+    if (fragments.length > 4096) fragments = null;
+  }
+
+  private boolean appendFragment(byte[] data, int start, int end) {
+    int length = end - start;
+    if (fragmentsLength + length > gateway.maxMessageBytes) {
+      fail(1009, "Message too big");
+      return false;
+    }
+    if (fragments == null) fragments = new byte[Math.max(256, length * 2)];
+    if (fragments.length < fragmentsLength + length)
+      fragments = Arrays.copyOf(fragments, (fragmentsLength + length) * 2);
+    System.arraycopy(data, start, fragments, fragmentsLength, length);
+    fragmentsLength += length;
+    return true;
+  }
+
+
+  /*****************************************************************************************
+   * Carries out the command in a text message.
+   *****************************************************************************************/
+  private void message(int opcode, byte[] data, int start, int end) {
+    if (opcode != OP_TEXT) {
+      fail(1003, "Only text messages are accepted");
+      return;
+    }
+    packetsHandled.increment();
+    String text = new String(data, start, end - start, StandardCharsets.UTF_8);
+    int space = text.indexOf(' ');
+    String command = space < 0 ? text : text.substring(0, space);
+    String args = space < 0 ? "" : text.substring(space + 1);
+    int requestid = 0;
+    int hash = command.indexOf('#');
+    if (hash >= 0) {
+      requestid = parseId(command.substring(hash + 1));
+      command = command.substring(0, hash);
+      if (requestid <= 0) {
+        reply("error", 0, "System: Invalid request id.");
+        return;
+      }
+    }
+    if (!joined && !command.equals("joinServer") && !command.equals("leaveServer")) {
+      reply("error", requestid, "System: Send joinServer <username> first.");
+      return;
+    }
+    switch (command) {
+      case "joinServer":
+        if (joined || args.isEmpty()) {
+          reply("error", requestid, joined ? "System: Already joined." : "System: A user-name is needed.");
+          return;
+        }
+        joined = true;
+        engine.addSession(this);
+        request.joinServer(args);
+        break;
+      case "leaveServer":
+        if (!joined) {
+          sendClose(1000, "");
+          return;
+        }
+        request.leaveServer();
+        break;
+      case "sendMessageAll":
+        request.sendMessageAll(args);
+        break;
+      case "createRoom":
+        if (args.isEmpty()) {
+          reply("error", requestid, "System: A room name is needed.");
+          return;
+        }
+        request.createRoom(args);
+        break;
+      case "sendMessageUser":
+      case "sendMessageRoom":
+      case "joinRoom":
+      case "leaveRoom":
+        int split = args.indexOf(' ');
+        int targetid = parseId(split < 0 ? args : args.substring(0, split));
+        String message = split < 0 ? "" : args.substring(split + 1);
+        if (targetid < 0 && command.equals("sendMessageUser") && split > 0) {
+          request.sendMessageUser(args.substring(0, split), message);
+          break;
+        }
+        if (targetid < 0) {
+          reply("error", requestid, "System: " + command + " needs a numeric id.");
+          return;
+        }
+        if (command.equals("sendMessageUser")) request.sendMessageUser(targetid, message);
+        else if (command.equals("sendMessageRoom")) request.sendMessageRoom(targetid, message);
+        else if (command.equals("joinRoom")) request.joinRoom(targetid);
+        else request.leaveRoom(targetid);
+        break;
+      default:
+        reply("error", requestid, "System: Unrecognized command '" + command + "'.");
+        return;
+    }
+    request.requestid = requestid;
+    engine.packetHandler(request, id);
+    if (joined && username == null) {
+      // the engine refused the user-name, and has told the browser why
+      joined = false;
+      engine.removeSession(this);
+    }
+  }
+
+  /* @return the non-negative number in s, or -1 */
+  private static int parseId(String s) {
+    if (s.isEmpty() || s.length() > 9) return -1;
+    int value = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private void reply(String command, int requestid, String message) {
+    StringBuilder sb = new StringBuilder(command);
+    if (requestid > 0) sb.append('#').append(requestid);
+    sendText(sb.append(' ').append(message));
+  }
+
+
+  /*****************************************************************************************
+   * Writes a packet from the engine as a text message. Called from any thread.
+   * @param packet packet to be sent to the user
+   *****************************************************************************************/
+  @Override
+  void sendPacket(Packet packet) {
+    if (!open) return;
+    if (packet.command.equals("shutdown")) {
+      sendClose(1001, "Server shutting down");
+      return;
+    }
+    StringBuilder sb = new StringBuilder(64).append(packet.command);
+    if (packet.requestid > 0) sb.append('#').append(packet.requestid);
+    switch (packet.command) {
+      case "joinServer":
+      case "ack":
+      case "userAdded":
+      case "userRemoved":
+        sb.append(' ').append(packet.targetid);
+        break;
+      case "roomMemberAdded":
+      case "roomMemberRemoved":
+        sb.append(' ').append(packet.targetid).append(' ').append(packet.subjectid);
+        break;
+      case "userSnapshot":
+        for (int i = 0; i < packet.ids.length; i++) {
+          sb.append('\n').append(packet.ids[i]).append(' ');
+          appendName(sb, packet.names[i]);
+        }
+        break;
+      case "roomMembers":
+        sb.append(' ').append(packet.targetid).append(' ');
+        appendMembers(sb, packet.ids);
+        break;
+      case "roomSnapshot":
+        for (int i = 0; i < packet.ids.length; i++) {
+          sb.append('\n').append(packet.ids[i]).append(' ').append(packet.counts[i]).append(' ');
+          appendMembers(sb, packet.members[i]);
+          sb.append(' ');
+          appendName(sb, packet.names[i]);
+        }
+        break;
+      case "roomSummary":
+        for (int i = 0; i < packet.ids.length; i++) {
+          sb.append('\n').append(packet.ids[i]).append(' ').append(packet.counts[i]);
+          if (packet.names[i] == null) continue;
+          sb.append(' ');
+          appendName(sb, packet.names[i]);
+        }
+        break;
+      default:
+        break;
+    }
+    if (packet.message != null) {
+      sb.append(' ');
+      if (packet.command.startsWith("user") || packet.command.startsWith("room")) appendName(sb, packet.message);
+      else sb.append(packet.message);
+    }
+    sendText(sb);
+    engine.metrics.packetSent(packet.command);
+  }
+
+  private static void appendMembers(StringBuilder sb, int[] members) {
+    if (members.length == 0) sb.append('-');
+    for (int m = 0; m < members.length; m++) sb.append(m == 0 ? "" : ",").append(members[m]);
+  }
+
+  /* Names are the last field of a line, so they may hold spaces but not line breaks */
+  private static void appendName(StringBuilder sb, String name) {
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      sb.append(c == '\n' || c == '\r' ? ' ' : c);
+    }
+  }
+
+  private void sendText(CharSequence text) {
+    sendFrame(OP_TEXT, StandardCharsets.UTF_8.encode(text.toString()));
+  }
+
+
+  /*****************************************************************************************
+   * Writes a frame: the header from the calling thread's scratch buffer and the payload,
+   * queued together. Server frames are never masked.
+   *****************************************************************************************/
+  private void sendFrame(int opcode, ByteBuffer payload) {
+    ByteBuffer header = headers.get();
+    header.clear();
+    header.put((byte) (0x80 | opcode));
+    int length = payload.remaining();
+    if (length < 126) {
+      header.put((byte) length);
+    } else if (length < 65536) {
+      header.put((byte) 126);
+      header.putShort((short) length);
+    } else {
+      header.put((byte) 127);
+      header.putLong(length);
+    }
+    header.flip();
+    connection.write(header, payload);
+  }
+
+  /* Starts the closing handshake (or answers the browser's), then closes the connection */
+  private void sendClose(int code, String reason) {
+    if (!open) {
+      connection.close();
+      return;
+    }
+    byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(text.length, 123));
+    payload.putShort((short) code);
+    payload.put(text, 0, payload.remaining());
+    payload.flip();
+    sendFrame(OP_CLOSE, payload);
+    open = false;
+    connection.close();
+  }
+
+  private void fail(int code, String reason) {
+    Log.warn("Closing WebSocket connection of user id # " + id + ": " + reason + ".");
+    sendClose(code, reason);
+  }
+
+  private boolean fail(ByteBuffer in, int code, String reason) {
+    in.position(in.limit());
+    fail(code, reason);
+    return false;
+  }
+}
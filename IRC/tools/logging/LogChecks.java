@@ -0,0 +1,157 @@
+package logging;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+
+/******************************************************************************************************************
+ * Self-checking tests of the log's ring buffer and of the hand-over between the threads logging and the writer
+ * thread, runnable with nothing but the JDK (see version2.Checks for the rest). The exit status is 1 if a check
+ * failed.
+ * ring.mpsc:- events published by many threads at once while the consumer drains reach it exactly once, each
+ *   thread's in the order it published them
+ * ring.full:- a full buffer refuses events without blocking, and takes them again once drained, in order
+ * log.wakeup:- an event logged while the writer thread is parked (or about to park) is written at once: the writer
+ *   does not sleep until the 1 second safety net because a wake-up was lost
+ *
+ *   java -cp bin logging.LogChecks [regex]
+ ******************************************************************************************************************/
+final class LogChecks {
+
+  private LogChecks() {}
+
+  public static void main(String[] args) {
+    Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+    String[] names = {"ring.mpsc", "ring.full", "log.wakeup"};
+    int failed = 0;
+    int run = 0;
+    for (String name : names) {
+      if (!filter.matcher(name).find()) continue;
+      run++;
+      long start = System.nanoTime();
+      try {
+        switch (name) {
+          case "ring.mpsc": mpsc(); break;
+          case "ring.full": full(); break;
+          default: wakeup();
+        }
+        System.out.printf("ok    %-40s %6d ms%n", name, (System.nanoTime() - start) / 1_000_000);
+      } catch (Throwable e) {
+        failed++;
+        System.out.printf("FAIL  %-40s %s%n", name, e);
+        if (!(e instanceof AssertionError)) e.printStackTrace(System.out);
+      }
+    }
+    System.out.println(run + " checks, " + failed + " failed");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  private static void check(boolean condition, String what) {
+    if (!condition) throw new AssertionError(what);
+  }
+
+
+  private static void mpsc() throws Exception {
+    int producers = 4;
+    int events = 50_000;
+    RingBuffer buffer = new RingBuffer(1024);
+    long[] next = new long[producers];
+    AtomicReference<String> error = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      String name = Integer.toString(p);
+      Thread producer =
+          new Thread(
+              () -> {
+                for (long i = 0; i < events; i++) {
+                  while (!buffer.publish(i, Log.Level.INFO, name, "event", null)) Thread.yield();
+                }
+              },
+              "producer-" + p);
+      threads.add(producer);
+    }
+    for (Thread producer : threads) producer.start();
+    long expected = (long) producers * events;
+    long received = 0;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+    RingBuffer.Sink sink =
+        event -> {
+          int p = Integer.parseInt(event.thread);
+          if (event.millis != next[p] && error.get() == null)
+            error.set("producer " + p + ": expected event " + next[p] + " but got " + event.millis);
+          next[p] = event.millis + 1;
+        };
+    while (received < expected && System.nanoTime() < deadline) {
+      int drained = buffer.drain(sink, 256);
+      if (drained == 0) Thread.yield();
+      received += drained;
+    }
+    for (Thread producer : threads) producer.join(1000);
+    check(error.get() == null, String.valueOf(error.get()));
+    check(received == expected, "received " + received + " of " + expected + " events");
+    check(buffer.isEmpty() && buffer.drain(sink, 1) == 0, "nothing left over");
+  }
+
+  private static void full() {
+    RingBuffer buffer = new RingBuffer(8);
+    for (int i = 0; i < 8; i++) check(buffer.publish(i, Log.Level.INFO, "t", "e", null), "event " + i + " fits");
+    check(!buffer.publish(8, Log.Level.INFO, "t", "e", null), "a full buffer refuses the event");
+    List<Long> drained = new ArrayList<>();
+    check(buffer.drain(event -> drained.add(event.millis), 3) == 3, "drain takes at most its limit");
+    for (int i = 8; i < 11; i++) check(buffer.publish(i, Log.Level.INFO, "t", "e", null), "event " + i + " fits again");
+    check(!buffer.publish(11, Log.Level.INFO, "t", "e", null), "full again");
+    buffer.drain(event -> drained.add(event.millis), Integer.MAX_VALUE);
+    for (int i = 0; i < 11; i++) check(drained.get(i) == i, "order kept across the wrap: " + drained);
+    check(drained.size() == 11 && buffer.isEmpty(), "everything drained once");
+  }
+
+
+  /* Stands in for the console, and tells when each line is printed */
+  private static final class Lines extends PrintStream {
+    final BlockingQueue<String> printed = new LinkedBlockingQueue<>();
+
+    Lines() {
+      super(OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public void println(String line) {
+      printed.add(line);
+    }
+  }
+
+  private static void wakeup() throws Exception {
+    PrintStream console = System.out;
+    Lines lines = new Lines();
+    Random random = new Random(42);
+    Log.setLevel(Log.Level.INFO);
+    Log.setConsole(true);
+    System.setOut(lines);
+    try {
+      for (int i = 0; i < 300; i++) {
+        // from at once to well after the writer ran out of events and parked
+        Thread.sleep(random.nextInt(4));
+        String marker = "wake-up check " + i;
+        long start = System.nanoTime();
+        Log.info(marker);
+        String line;
+        do {
+          line = lines.printed.poll(5, TimeUnit.SECONDS);
+        } while (line != null && !line.endsWith(marker));
+        check(line != null, "event " + i + " was never written");
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(millis < 500, "event " + i + " took " + millis + " ms to be written, as if the writer missed its wake-up");
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+}
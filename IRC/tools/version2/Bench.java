@@ -0,0 +1,168 @@
+package version2;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+/******************************************************************************************************************
+ * Self-contained micro-benchmark harness for the version2 protocol and server hot paths.
+ * The tree has no build manifest to pull JMH from, so this harness follows the same recipe with nothing but the JDK:
+ * every case runs a number of warm-up iterations, then a number of measured iterations of a fixed duration, and
+ * reports the mean time per operation with its standard deviation. Results of the operations are passed to
+ * consume() so that the JIT cannot eliminate them.
+ *
+ * Case names and parameters are stable, so results written with --out can be compared across commits:
+ *   java -cp bin version2.Bench [regex] [--out results.csv] [--quick]
+ *   java -cp bin version2.Bench --compare baseline.csv results.csv
+ ******************************************************************************************************************/
+final class Bench {
+
+  /*************************************************************************
+   * One benchmarked operation. run() is called millions of times.
+   *************************************************************************/
+  interface Op {
+    void run() throws Exception;
+  }
+
+  /*************************************************************************
+   * A named operation with its parameters (recipients=1000, bytes=16...)
+   *************************************************************************/
+  static final class Case {
+    final String name;
+    final String params;
+    final Op op;
+
+    Case(String name, String params, Op op) {
+      this.name = name;
+      this.params = params;
+      this.op = op;
+    }
+  }
+
+  private static volatile Object marker = new Object();
+  private static volatile long sink;
+
+  /* Keeps the result of an operation alive, at the cost of one volatile read */
+  static void consume(Object value) {
+    if (value == marker) sink++;
+  }
+
+  static void consume(long value) {
+    if (value == Long.MIN_VALUE + 7) sink++;
+  }
+
+  private Bench() {}
+
+
+  /******************************************************************************************************
+   * Entry point. Registers every benchmark class, then runs the cases whose name matches the filter.
+   ******************************************************************************************************/
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && args[0].equals("--compare")) {
+      compare(args[1], args[2]);
+      return;
+    }
+    Pattern filter = Pattern.compile(".*");
+    String out = null;
+    int warmups = 5;
+    int iterations = 10;
+    long iterationMillis = 500;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--out")) out = args[++i];
+      else if (args[i].equals("--quick")) {
+        warmups = 2;
+        iterations = 3;
+        iterationMillis = 200;
+      } else filter = Pattern.compile(args[i]);
+    }
+
+    List<Case> cases = new ArrayList<>();
+    PacketBenchmarks.register(cases);
+    EngineBenchmarks.register(cases);
+
+    PrintWriter csv = out == null ? null : new PrintWriter(new FileWriter(out));
+    if (csv != null) csv.println("benchmark,params,ns_per_op,error,ops_per_s");
+    System.out.printf("%-34s %-26s %14s %10s %14s%n", "benchmark", "params", "ns/op", "+/-", "ops/s");
+    for (Case c : cases) {
+      if (!filter.matcher(c.name).find()) continue;
+      double[] result = measure(c.op, warmups, iterations, iterationMillis);
+      double opsPerSecond = 1e9 / result[0];
+      System.out.printf(
+          "%-34s %-26s %14.1f %10.1f %14.0f%n", c.name, c.params, result[0], result[1], opsPerSecond);
+      if (csv != null)
+        csv.printf("%s,%s,%.3f,%.3f,%.0f%n", c.name, c.params, result[0], result[1], opsPerSecond);
+    }
+    if (csv != null) csv.close();
+  }
+
+
+  /******************************************************************************************************
+   * Runs an operation in batches until each iteration's time is up.
+   * The batch size is calibrated first so that System.nanoTime() is read about once per millisecond.
+   * @return the mean and the standard deviation of the nanoseconds per operation over the measured iterations
+   ******************************************************************************************************/
+  static double[] measure(Op op, int warmups, int iterations, long iterationMillis) throws Exception {
+    int batch = 1;
+    while (true) {
+      long start = System.nanoTime();
+      for (int i = 0; i < batch; i++) op.run();
+      if (System.nanoTime() - start > 1_000_000 || batch >= 1 << 24) break;
+      batch <<= 1;
+    }
+    double[] samples = new double[iterations];
+    for (int iteration = -warmups; iteration < iterations; iteration++) {
+      long ops = 0;
+      long start = System.nanoTime();
+      long deadline = start + iterationMillis * 1_000_000;
+      long now;
+      do {
+        for (int i = 0; i < batch; i++) op.run();
+        ops += batch;
+      } while ((now = System.nanoTime()) < deadline);
+      if (iteration >= 0) samples[iteration] = (double) (now - start) / ops;
+    }
+    double mean = 0;
+    for (double sample : samples) mean += sample;
+    mean /= iterations;
+    double variance = 0;
+    for (double sample : samples) variance += (sample - mean) * (sample - mean);
+    return new double[] {mean, Math.sqrt(variance / Math.max(1, iterations - 1))};
+  }
+
+
+  /******************************************************************************************************
+   * Prints the change in ns/op of every case present in both result files.
+   ******************************************************************************************************/
+  private static void compare(String baselineFile, String currentFile) throws IOException {
+    Map<String, Double> baseline = read(baselineFile);
+    Map<String, Double> current = read(currentFile);
+    System.out.printf("%-62s %12s %12s %9s%n", "benchmark", "baseline", "current", "change");
+    for (Map.Entry<String, Double> entry : current.entrySet()) {
+      Double before = baseline.get(entry.getKey());
+      if (before == null) continue;
+      double change = (entry.getValue() - before) / before * 100;
+      System.out.printf("%-62s %12.1f %12.1f %+8.1f%%%n", entry.getKey(), before, entry.getValue(), change);
+    }
+  }
+
+  private static Map<String, Double> read(String file) throws IOException {
+    Map<String, Double> results = new LinkedHashMap<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      in.readLine();
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(",");
+        results.put(fields[0] + " " + fields[1], Double.parseDouble(fields[2]));
+      }
+    }
+    return results;
+  }
+}
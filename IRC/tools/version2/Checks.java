@@ -0,0 +1,77 @@
+package version2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+
+/******************************************************************************************************************
+ * Self-checking tests of the version2 server, runnable with nothing but the JDK (the tree has no build manifest to
+ * pull a test framework from). Each check drives the real classes, as the server wires them, and throws on the
+ * first result that is not the expected one; the others still run. The exit status is 1 if any check failed.
+ *
+ *   java -cp bin version2.Checks [regex]
+ ******************************************************************************************************************/
+final class Checks {
+
+  /*************************************************************************
+   * One check. Throws (an AssertionError from the helpers below) if the
+   * behaviour is not the expected one.
+   *************************************************************************/
+  interface Body {
+    void run() throws Exception;
+  }
+
+  static final class Check {
+    final String name;
+    final Body body;
+
+    Check(String name, Body body) {
+      this.name = name;
+      this.body = body;
+    }
+  }
+
+  private Checks() {}
+
+
+  /******************************************************************************************************
+   * Entry point. Registers every check class, then runs the checks whose name matches the filter.
+   ******************************************************************************************************/
+  public static void main(String[] args) {
+    Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+    List<Check> checks = new ArrayList<>();
+    WebSocketChecks.register(checks);
+    NicknameChecks.register(checks);
+    PacketWriterChecks.register(checks);
+
+    int failed = 0;
+    int run = 0;
+    for (Check check : checks) {
+      if (!filter.matcher(check.name).find()) continue;
+      run++;
+      long start = System.nanoTime();
+      try {
+        check.body.run();
+        System.out.printf("ok    %-40s %6d ms%n", check.name, (System.nanoTime() - start) / 1_000_000);
+      } catch (Throwable e) {
+        failed++;
+        System.out.printf("FAIL  %-40s %s%n", check.name, e);
+        if (!(e instanceof AssertionError)) e.printStackTrace(System.out);
+      }
+    }
+    System.out.println(run + " checks, " + failed + " failed");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+
+  static void check(boolean condition, String what) {
+    if (!condition) throw new AssertionError(what);
+  }
+
+  static void equal(Object expected, Object actual, String what) {
+    if (!Objects.equals(expected, actual))
+      throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+  }
+}
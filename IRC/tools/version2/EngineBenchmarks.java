@@ -0,0 +1,128 @@
+package version2;
+
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+
+
+/******************************************************************************************************************
+ * ChatEngine hot paths, run headless against in-memory sessions.
+ * fanout.sendPacketAll:- one broadcast to every user; sink=count only counts the packet, sink=encode serializes it
+ * into a per-session ObjectOutputStream as a ServerThread would
+ * roster.userList / roster.roomList:- building the user and room list text shown on the host as users grow
+ * room.contains:- the membership check done before every room message
+ * engine.packetHandler:- dispatch of a direct message (two recipients) and of an unrecognized command
+ ******************************************************************************************************************/
+final class EngineBenchmarks {
+
+  private EngineBenchmarks() {}
+
+  /* Session which only counts the packets it receives */
+  static class CountingSession extends ServerSession {
+    long received;
+
+    CountingSession(int id) {
+      super(id);
+    }
+
+    @Override
+    void sendPacket(Packet packet) {
+      received++;
+    }
+
+    @Override
+    void disconnect() {}
+  }
+
+  /* Session which serializes what it receives, like a ServerThread writing to its socket */
+  static class EncodingSession extends ServerSession {
+    private final ObjectOutputStream out;
+
+    EncodingSession(int id) throws Exception {
+      super(id);
+      out = new ObjectOutputStream(new PacketBenchmarks.NullOutputStream());
+    }
+
+    @Override
+    void sendPacket(Packet packet) {
+      try {
+        out.writeObject(packet);
+        out.flush();
+        out.reset();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    void disconnect() {}
+  }
+
+  /*****************************************************************************************
+   * @param users number of sessions to register
+   * @param encode whether the sessions serialize the packets they receive
+   * @return an engine with the given number of joined users, named user1, user2...
+   *****************************************************************************************/
+  static ChatEngine engine(int users, boolean encode) throws Exception {
+    ChatEngine engine = new ChatEngine(new ServerMetrics(), ServerView.NONE);
+    for (int i = 0; i < users; i++) {
+      int id = engine.nextSessionId();
+      ServerSession session = encode ? new EncodingSession(id) : new CountingSession(id);
+      session.username = "user" + id;
+      engine.addSession(session);
+    }
+    return engine;
+  }
+
+  /*****************************************************************************************
+   * Puts the users in rooms of ten, in order: users 1-10 in room 1, 11-20 in room 2...
+   *****************************************************************************************/
+  static void fillRooms(ChatEngine engine, int users) {
+    for (int first = 1; first <= users; first += 10) {
+      ServerRoom room = new ServerRoom(first, "room" + first);
+      for (int id = first + 1; id < first + 10 && id <= users; id++) room.addUser(id);
+      engine.roomMap.put(engine.roomMap.size() + 1, room);
+    }
+  }
+
+  static void register(List<Bench.Case> cases) throws Exception {
+    for (int recipients : new int[] {10, 1000, 10000}) {
+      for (boolean encode : new boolean[] {false, true}) {
+        ChatEngine engine = engine(recipients, encode);
+        Packet packet = PacketBenchmarks.chatPacket(64);
+        cases.add(
+            new Bench.Case(
+                "fanout.sendPacketAll",
+                "recipients=" + recipients + " sink=" + (encode ? "encode" : "count"),
+                () -> engine.sendPacketAll(packet)));
+      }
+    }
+
+    for (int users : new int[] {10, 1000, 10000}) {
+      ChatEngine engine = engine(users, false);
+      fillRooms(engine, users);
+      cases.add(new Bench.Case("roster.userList", "users=" + users, () -> Bench.consume(engine.userList())));
+      cases.add(new Bench.Case("roster.roomList", "users=" + users, () -> Bench.consume(engine.roomList())));
+    }
+
+    for (int members : new int[] {10, 1000, 10000}) {
+      ServerRoom room = new ServerRoom(1, "room");
+      for (int id = 2; id <= members; id++) room.addUser(id);
+      int[] probes = new Random(42).ints(1024, 1, members * 2).toArray();
+      int[] next = {0};
+      cases.add(
+          new Bench.Case(
+              "room.contains",
+              "members=" + members,
+              () -> Bench.consume(room.members.contains(probes[next[0]++ & 1023]) ? 1 : 0)));
+    }
+
+    ChatEngine engine = engine(1000, false);
+    Packet direct = new Packet();
+    direct.sendMessageUser(2, "@user 2 hello");
+    cases.add(new Bench.Case("engine.packetHandler", "command=sendMessageUser", () -> engine.packetHandler(direct, 1)));
+    Packet unknown = new Packet();
+    unknown.command = "noSuchCommand";
+    cases.add(new Bench.Case("engine.packetHandler", "command=unrecognized", () -> engine.packetHandler(unknown, 1)));
+  }
+}
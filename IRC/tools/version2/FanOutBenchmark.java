@@ -0,0 +1,149 @@
+package version2;
+
+import java.io.ObjectOutputStream;
+
+
+/******************************************************************************************************************
+ * Delivery latency of room messages in large rooms, with fan-out on the sender's thread (serial) and split over
+ * the engine's fan-out pool (parallel).
+ * Every case fills one room with --sizes members and has member 1 send --messages room messages through the
+ * ChatEngine, one at a time. Each member records when its session was handed the packet, relative to the moment
+ * the message was given to the engine, which shows:
+ * recipient p50 / p99:- the delivery latency over every recipient of every message
+ * last p50 / p99 / max:- the latency of the last recipient of each message, that is the time the sender is held up
+ * With --sink encode the sessions serialize each packet as a ServerThread writing to its socket would, with
+ * --sink count they only take the timestamp, which leaves the cost of the fan-out itself.
+ *
+ *   java -cp bin version2.FanOutBenchmark --sizes 1000,10000,50000 --messages 50 --sink encode
+ ******************************************************************************************************************/
+public class FanOutBenchmark {
+
+  /*****************************************************************************************************
+   * Options (all can be set on the command line as --name value)
+   *****************************************************************************************************/
+  private int[] sizes = {1000, 10000, 50000};
+  private int messages = 50;
+  private int warmup = 10;
+  private String sink = "encode";
+  private int chunk = 256;
+
+  /* Time the message being sent was handed to the engine */
+  private static volatile long sentAt;
+
+  /* Session which keeps the delay between the send and its copy of the packet */
+  static class TimedSession extends ServerSession {
+    private final ObjectOutputStream out;
+    long latency = -1;
+
+    TimedSession(int id, boolean encode) throws Exception {
+      super(id);
+      out = encode ? new ObjectOutputStream(new PacketBenchmarks.NullOutputStream()) : null;
+    }
+
+    @Override
+    void sendPacket(Packet packet) {
+      if (out != null) {
+        try {
+          out.writeObject(packet);
+          out.flush();
+          out.reset();
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      latency = System.nanoTime() - sentAt;
+    }
+
+    @Override
+    void disconnect() {}
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    FanOutBenchmark benchmark = new FanOutBenchmark();
+    for (int i = 0; i + 1 < args.length; i += 2) benchmark.option(args[i], args[i + 1]);
+    benchmark.run();
+  }
+
+  private void option(String name, String value) {
+    switch (name) {
+      case "--sizes":
+        String[] parts = value.split(",");
+        sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+        break;
+      case "--messages": messages = Integer.parseInt(value); break;
+      case "--warmup": warmup = Integer.parseInt(value); break;
+      case "--sink": sink = value; break;
+      case "--chunk": chunk = Integer.parseInt(value); break;
+      default: throw new IllegalArgumentException("Unknown option " + name);
+    }
+  }
+
+
+  private void run() throws Exception {
+    System.out.printf(
+        "Fan-out: %d messages per case, sink %s, %d cores, chunks of %d%n",
+        messages, sink, Runtime.getRuntime().availableProcessors(), chunk);
+    System.out.printf(
+        "%-8s %-9s %10s %14s %14s %14s %14s %14s%n",
+        "members", "mode", "msg/s", "recipient p50", "recipient p99", "last p50", "last p99", "last max");
+    for (int size : sizes) {
+      for (boolean parallel : new boolean[] {false, true}) runCase(size, parallel);
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Runs one room size in one mode and prints its line. Parallel cases use a threshold of 1, so every
+   * message goes through the pool.
+   *****************************************************************************************************/
+  private void runCase(int size, boolean parallel) throws Exception {
+    ChatEngine engine = new ChatEngine(new ServerMetrics(), ServerView.NONE);
+    engine.setFanOut(parallel ? 1 : 0, chunk);
+    TimedSession[] sessions = new TimedSession[size];
+    for (int i = 0; i < size; i++) {
+      sessions[i] = new TimedSession(engine.nextSessionId(), sink.equals("encode"));
+      sessions[i].username = "user" + sessions[i].id;
+      engine.addSession(sessions[i]);
+    }
+    ServerRoom room = new ServerRoom(sessions[0].id, "room");
+    for (int i = 1; i < size; i++) room.addUser(sessions[i].id);
+    engine.roomMap.put(1, room);
+    Packet packet = new Packet();
+    packet.sendMessageRoom(1, "fan-out benchmark message");
+
+    LoadGenerator.Latency recipients = new LoadGenerator.Latency();
+    LoadGenerator.Latency last = new LoadGenerator.Latency();
+    long elapsed = 0;
+    for (int m = -warmup; m < messages; m++) {
+      long start = System.nanoTime();
+      sentAt = start;
+      engine.packetHandler(packet, sessions[0].id);
+      if (m < 0) continue;
+      elapsed += System.nanoTime() - start;
+      long slowest = 0;
+      // the sender is skipped: its copy is overwritten by the reply to its command
+      for (int i = 1; i < size; i++) {
+        long latency = sessions[i].latency;
+        recipients.record(latency);
+        slowest = Math.max(slowest, latency);
+      }
+      last.record(slowest);
+    }
+    System.out.printf(
+        "%-8d %-9s %10.0f %14s %14s %14s %14s %14s%n",
+        size,
+        parallel ? "parallel" : "serial",
+        messages / (elapsed / 1e9),
+        micros(recipients.percentile(0.50)),
+        micros(recipients.percentile(0.99)),
+        micros(last.percentile(0.50)),
+        micros(last.percentile(0.99)),
+        micros(last.max()));
+  }
+
+  private static String micros(long nanos) {
+    return String.format("%.1f us", nanos / 1e3);
+  }
+}
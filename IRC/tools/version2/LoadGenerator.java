@@ -0,0 +1,401 @@
+package version2;
+
+import java.io.EOFException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/******************************************************************************************************************
+ * Headless synthetic load generator for version2.Server.
+ * Opens many protocol-compatible connections (serialized Packets over the socket, like the Swing Client) and runs
+ * one of the following scenarios at a target total message rate:
+ * broadcast:- every bot sends sendMessageAll, so every message reaches every bot
+ * room:- bots are grouped in rooms of --room-size, and send sendMessageRoom to their room
+ * direct:- bots send sendMessageUser to a random other bot
+ * churn:- bots repeatedly create or join a room, leave it, leave the server and reconnect
+ *
+ * Each message body carries the System.nanoTime() at which it was sent ("LG <nanos>"). Senders and receivers live
+ * in this JVM, so the receiving bot computes the end-to-end latency directly. A progress line is printed every
+ * second, and the throughput and p50/p99/p999 latencies are printed at the end (for churn, the latency is the time
+ * taken by a whole cycle).
+ *
+ *   java -cp bin version2.LoadGenerator --port 8080 --clients 500 --scenario room --rate 2000 --duration 30
+ ******************************************************************************************************************/
+public class LoadGenerator {
+
+  /*****************************************************************************************************
+   * Options (all can be set on the command line as --name value)
+   *****************************************************************************************************/
+  private String host = "localhost";
+  private int port = 8080;
+  private int clients = 100;
+  private String scenario = "room";
+  private int rate = 1000;
+  private int durationSeconds = 30;
+  private int roomSize = 10;
+  private int connectRate = 200;
+
+  private final List<Bot> bots = new ArrayList<>();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder churnCycles = new LongAdder();
+  private final Latency latency = new Latency();
+  private volatile boolean running = true;
+  private ExecutorService senders;
+
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = new LoadGenerator();
+    for (int i = 0; i + 1 < args.length; i += 2) generator.option(args[i], args[i + 1]);
+    generator.run();
+  }
+
+  private void option(String name, String value) {
+    switch (name) {
+      case "--host": host = value; break;
+      case "--port": port = Integer.parseInt(value); break;
+      case "--clients": clients = Integer.parseInt(value); break;
+      case "--scenario": scenario = value; break;
+      case "--rate": rate = Integer.parseInt(value); break;
+      case "--duration": durationSeconds = Integer.parseInt(value); break;
+      case "--room-size": roomSize = Integer.parseInt(value); break;
+      case "--connect-rate": connectRate = Integer.parseInt(value); break;
+      default: throw new IllegalArgumentException("Unknown option " + name);
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Connects the bots, sets up the scenario, drives the target rate for the configured duration and
+   * prints the report.
+   *****************************************************************************************************/
+  private void run() throws Exception {
+    System.out.printf(
+        "Load: %d clients -> %s:%d, scenario %s, %d msg/s for %d s%n",
+        clients, host, port, scenario, rate, durationSeconds);
+    senders = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+    long connectStart = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      Bot bot = new Bot(i);
+      try {
+        bot.connect();
+        bots.add(bot);
+      } catch (Exception e) {
+        errors.increment();
+        System.out.println("Bot " + i + " could not connect: " + e.getMessage());
+      }
+      pace(connectStart, i + 1, connectRate);
+    }
+    int joined = 0;
+    for (Bot bot : bots) {
+      try {
+        bot.userid.get(10, TimeUnit.SECONDS);
+        ++joined;
+      } catch (Exception e) {
+        errors.increment();
+      }
+    }
+    System.out.printf("%d of %d bots joined in %.1f s%n", joined, clients, (System.nanoTime() - connectStart) / 1e9);
+    if (joined < bots.size())
+      System.out.println("Bots which did not join are probably queued behind the server's session thread limit.");
+    if (scenario.equals("room")) setUpRooms();
+
+    latency.reset();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+    long lastSent = 0;
+    long lastReceived = 0;
+    long issued = 0;
+    Random random = new Random(1);
+    while (System.nanoTime() < end && !bots.isEmpty()) {
+      long due = (long) ((System.nanoTime() - start) / 1e9 * rate);
+      for (; issued < due; issued++) {
+        Bot bot = bots.get(random.nextInt(bots.size()));
+        senders.execute(scenario.equals("churn") ? bot::churn : bot::sendOne);
+      }
+      long now = System.nanoTime();
+      if (now >= nextReport) {
+        long s = sent.sum();
+        long r = received.sum();
+        System.out.printf(
+            "%3.0f s  sent %7d/s  received %8d/s  p50 %6.2f ms  p99 %7.2f ms  errors %d%n",
+            (now - start) / 1e9, s - lastSent, r - lastReceived,
+            latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6, errors.sum());
+        lastSent = s;
+        lastReceived = r;
+        nextReport += TimeUnit.SECONDS.toNanos(1);
+      }
+      LockSupport.parkNanos(200_000);
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    // give in-flight messages a moment to arrive before reporting
+    Thread.sleep(1000);
+    running = false;
+    senders.shutdownNow();
+    System.out.println();
+    System.out.printf("Sent:       %d messages (%.0f/s)%n", sent.sum(), sent.sum() / elapsed);
+    System.out.printf("Delivered:  %d messages (%.0f/s)%n", received.sum(), received.sum() / elapsed);
+    if (scenario.equals("churn")) System.out.printf("Churn:      %d cycles%n", churnCycles.sum());
+    System.out.printf("Errors:     %d%n", errors.sum());
+    System.out.printf(
+        "Latency:    p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms (%d samples)%n",
+        latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+        latency.percentile(0.999) / 1e6, latency.max() / 1e6, latency.count());
+    for (Bot bot : bots) bot.close();
+    System.exit(0);
+  }
+
+  /* Sleeps until the given number of actions is due at the given rate */
+  private static void pace(long start, long done, int perSecond) {
+    long due = start + (long) (done * 1e9 / perSecond);
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+  }
+
+  /*****************************************************************************************************
+   * Groups the bots in rooms of roomSize: the first bot of each group creates the room, the others join it.
+   *****************************************************************************************************/
+  private void setUpRooms() throws Exception {
+    for (int first = 0; first < bots.size(); first += roomSize) {
+      Bot creator = bots.get(first);
+      creator.createRoom("lg-room-" + first);
+      int roomid = creator.roomid.get(10, TimeUnit.SECONDS);
+      creator.room = roomid;
+      for (int i = first + 1; i < Math.min(first + roomSize, bots.size()); i++) bots.get(i).joinRoom(roomid);
+    }
+    Thread.sleep(500);
+    System.out.println("Rooms set up: " + (bots.size() + roomSize - 1) / roomSize);
+  }
+
+
+  /*****************************************************************************************************
+   * One simulated client connection, with its own reader thread.
+   *****************************************************************************************************/
+  private class Bot {
+    final int index;
+    Socket socket;
+    ObjectOutputStream out;
+    ObjectInputStream in;
+    volatile CompletableFuture<Integer> userid = new CompletableFuture<>();
+    volatile CompletableFuture<Integer> roomid = new CompletableFuture<>();
+    volatile int room = -1;
+    int joins;
+
+    Bot(int index) {
+      this.index = index;
+    }
+
+    void connect() throws Exception {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      out = new ObjectOutputStream(socket.getOutputStream());
+      out.flush();
+      in = new ObjectInputStream(socket.getInputStream());
+      Socket connection = socket;
+      ObjectInputStream stream = in;
+      Thread reader = new Thread(null, () -> listen(connection, stream), "bot-" + index, 256 * 1024);
+      reader.setDaemon(true);
+      reader.start();
+      // user-names are unique, and the server may not have handled the previous leaveServer yet
+      Packet packet = new Packet();
+      packet.joinServer(joins++ == 0 ? "bot" + index : "bot" + index + "-" + joins);
+      send(packet);
+    }
+
+    synchronized void send(Packet packet) {
+      try {
+        out.writeObject(packet);
+        out.flush();
+        out.reset();
+      } catch (Exception e) {
+        errors.increment();
+      }
+    }
+
+    void createRoom(String name) {
+      Packet packet = new Packet();
+      packet.createRoom(name);
+      send(packet);
+    }
+
+    void joinRoom(int roomid) {
+      room = roomid;
+      Packet packet = new Packet();
+      packet.joinRoom(roomid);
+      send(packet);
+    }
+
+    /* Sends one chat message stamped with the current time, according to the scenario */
+    void sendOne() {
+      if (!userid.isDone()) return;
+      String body = "LG " + System.nanoTime();
+      Packet packet = new Packet();
+      switch (scenario) {
+        case "broadcast":
+          packet.sendMessageAll(body);
+          break;
+        case "direct":
+          Bot peer = bots.get(ThreadLocalRandom.current().nextInt(bots.size()));
+          if (peer == this || !peer.userid.isDone()) return;
+          packet.sendMessageUser(peer.userid.join(), body);
+          break;
+        default:
+          if (room < 0) return;
+          packet.sendMessageRoom(room, body);
+      }
+      send(packet);
+      sent.increment();
+    }
+
+    /* One join/leave cycle: create a room, leave it, leave the server and reconnect. Its duration is recorded as the latency */
+    synchronized void churn() {
+      try {
+        if (!userid.isDone()) return;
+        long start = System.nanoTime();
+        roomid = new CompletableFuture<>();
+        createRoom("lg-churn-" + index);
+        int id = roomid.get(5, TimeUnit.SECONDS);
+        Packet leave = new Packet();
+        leave.leaveRoom(id);
+        send(leave);
+        Packet quit = new Packet();
+        quit.leaveServer();
+        send(quit);
+        close();
+        userid = new CompletableFuture<>();
+        roomid = new CompletableFuture<>();
+        connect();
+        userid.get(5, TimeUnit.SECONDS);
+        latency.record(System.nanoTime() - start);
+        churnCycles.increment();
+      } catch (Exception e) {
+        errors.increment();
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (Exception e) {
+        // already closed
+      }
+    }
+
+    /* Reader loop: completes the join/create futures and records the latency of every LG message */
+    private void listen(Socket connection, ObjectInputStream stream) {
+      while (running) {
+        try {
+          Packet packet = (Packet) stream.readObject();
+          String message = packet.message;
+          if (message == null) continue;
+          switch (packet.command) {
+            case "joinServer":
+              userid.complete(parseId(message, "user id # is "));
+              break;
+            case "displayToUser":
+              int marker = message.indexOf("LG ");
+              if (marker >= 0) {
+                int end = message.indexOf(' ', marker + 3);
+                long sentAt = Long.parseLong(message.substring(marker + 3, end < 0 ? message.length() : end));
+                latency.record(System.nanoTime() - sentAt);
+                received.increment();
+              } else if (message.contains("has been created under id # ")) {
+                roomid.complete(parseId(message, "created under id # "));
+              }
+              break;
+            default:
+          }
+        } catch (EOFException e) {
+          return;
+        } catch (Exception e) {
+          if (running && !connection.isClosed()) errors.increment();
+          return;
+        }
+      }
+    }
+  }
+
+  /* Parses the number following the given prefix in a server message */
+  private static int parseId(String message, String prefix) {
+    int start = message.indexOf(prefix) + prefix.length();
+    int end = start;
+    while (end < message.length() && Character.isDigit(message.charAt(end))) end++;
+    return Integer.parseInt(message.substring(start, end));
+  }
+
+
+  /*****************************************************************************************************
+   * Lock-free log-linear latency recorder: 16 linear sub-buckets per power of two of nanoseconds,
+   * which keeps percentiles within about 6% of the true value.
+   *****************************************************************************************************/
+  static class Latency {
+    private static final int SUB = 16;
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+    private final LongAdder total = new LongAdder();
+    private volatile long max;
+
+    void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      counts.incrementAndGet(index(nanos));
+      total.increment();
+      if (nanos > max) max = nanos;
+    }
+
+    static int index(long value) {
+      if (value < SUB) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - 4)) & (SUB - 1);
+      return (exponent - 3) * SUB + sub;
+    }
+
+    static long lowerBound(int index) {
+      if (index < SUB) return index;
+      int exponent = index / SUB + 3;
+      int sub = index % SUB;
+      return (1L << exponent) + ((long) sub << (exponent - 4));
+    }
+
+    long percentile(double quantile) {
+      long n = total.sum();
+      if (n == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(quantile * n));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank) return lowerBound(i);
+      }
+      return max;
+    }
+
+    long max() {
+      return max;
+    }
+
+    long count() {
+      return total.sum();
+    }
+
+    void reset() {
+      for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+      total.reset();
+      max = 0;
+    }
+  }
+}
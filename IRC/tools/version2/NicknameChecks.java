@@ -0,0 +1,254 @@
+package version2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/******************************************************************************************************************
+ * User-name folding and the claim/release races of NicknameRegistry, and the engine's joins built on them.
+ * nick.fold:- RFC 1459 folding ([]\~ against {}|^, letters outside ASCII too), and IrcLine.equalsFolded agrees
+ * nick.claimRace:- of many threads claiming spellings of one name at once, exactly one gets it, every round
+ * nick.churn:- claims and releases from many threads never let two users hold a name at the same time, and a user
+ *   cannot release a name it does not hold
+ * nick.joinRace:- two sessions joining the engine at once under spellings of one name: one joins, one is refused
+ * nick.takeOver:- a reconnect showing the resume token takes the name and the rooms over from the old session;
+ *   a wrong or used token does not
+ ******************************************************************************************************************/
+final class NicknameChecks {
+  private static final int THREADS = 8;
+
+  private NicknameChecks() {}
+
+  static void register(List<Checks.Check> checks) {
+    checks.add(new Checks.Check("nick.fold", NicknameChecks::fold));
+    checks.add(new Checks.Check("nick.claimRace", NicknameChecks::claimRace));
+    checks.add(new Checks.Check("nick.churn", NicknameChecks::churn));
+    checks.add(new Checks.Check("nick.joinRace", NicknameChecks::joinRace));
+    checks.add(new Checks.Check("nick.takeOver", NicknameChecks::takeOver));
+  }
+
+  /* Session which keeps the packets it is sent */
+  static final class RecordingSession extends ServerSession {
+    final List<Packet> received = new ArrayList<>();
+    volatile boolean disconnected;
+
+    RecordingSession(int id) {
+      super(id);
+    }
+
+    @Override
+    synchronized void sendPacket(Packet packet) {
+      received.add(packet);
+    }
+
+    @Override
+    void disconnect() {
+      disconnected = true;
+    }
+  }
+
+
+  private static void fold() {
+    Checks.equal("nick{a}|^", NicknameRegistry.fold("NICK[A]\\~"), "rfc1459 folding");
+    Checks.equal(NicknameRegistry.fold("\u00c4RGER"), NicknameRegistry.fold("\u00e4rger"), "letters outside ASCII");
+    String folded = "already{folded}";
+    Checks.check(NicknameRegistry.fold(folded) == folded, "a folded name is returned as it is");
+
+    String alphabet = "aAzZ[]{}\\|~^-_0\u00c9\u00e9";
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      String a = spelling(random, alphabet);
+      String b = random.nextBoolean() ? respell(random, a) : spelling(random, alphabet);
+      byte[] x = a.getBytes(StandardCharsets.UTF_8);
+      byte[] y = b.getBytes(StandardCharsets.UTF_8);
+      boolean same = NicknameRegistry.fold(a).equals(NicknameRegistry.fold(b));
+      Checks.equal(same, IrcLine.equalsFolded(x, 0, x.length, y, 0, y.length), "equalsFolded(" + a + ", " + b + ")");
+    }
+  }
+
+  private static String spelling(Random random, String alphabet) {
+    char[] name = new char[1 + random.nextInt(6)];
+    for (int i = 0; i < name.length; i++) name[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+    return new String(name);
+  }
+
+  /* @return the same name with the case of some of its characters swapped */
+  private static String respell(Random random, String name) {
+    String lower = "az{}|^\u00e9";
+    String upper = "AZ[]\\~\u00c9";
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      if (!random.nextBoolean()) continue;
+      int l = lower.indexOf(chars[i]);
+      int u = upper.indexOf(chars[i]);
+      if (l >= 0) chars[i] = upper.charAt(l);
+      else if (u >= 0) chars[i] = lower.charAt(u);
+    }
+    return new String(chars);
+  }
+
+
+  private static void claimRace() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      String[] spellings = {"Guest[1]", "guest{1}", "GUEST[1]", "gUeSt{1}"};
+      for (int round = 0; round < 500; round++) {
+        NicknameRegistry registry = new NicknameRegistry();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> claims = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+          int userid = t + 1;
+          claims.add(
+              pool.submit(
+                  () -> {
+                    start.await();
+                    return registry.claim(spellings[userid % spellings.length], userid);
+                  }));
+        }
+        start.countDown();
+        int winners = 0;
+        int winner = -1;
+        for (int t = 0; t < THREADS; t++) {
+          if (claims.get(t).get(5, TimeUnit.SECONDS)) {
+            winners++;
+            winner = t + 1;
+          }
+        }
+        Checks.equal(1, winners, "claims won in round " + round);
+        Checks.equal(winner, registry.lookup("GUEST{1}"), "holder of round " + round);
+        Checks.equal(1, registry.size(), "names held in round " + round);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void churn() throws Exception {
+    NicknameRegistry registry = new NicknameRegistry();
+    AtomicInteger holders = new AtomicInteger();
+    AtomicInteger most = new AtomicInteger();
+    AtomicInteger stolen = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int userid = t + 1;
+      workers.add(
+          pool.submit(
+              () -> {
+                for (int i = 0; i < 20000; i++) {
+                  if (registry.claim(i % 2 == 0 ? "Shared[x]" : "shared{X}", userid)) {
+                    most.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                    holders.decrementAndGet();
+                    registry.release("SHARED[X]", userid);
+                  } else {
+                    // someone else holds it: releasing must leave it to them
+                    registry.release("shared{x}", userid);
+                    int owner = registry.lookup("shared{x}");
+                    if (owner == userid) stolen.incrementAndGet();
+                  }
+                }
+              }));
+    }
+    for (Future<?> worker : workers) worker.get(60, TimeUnit.SECONDS);
+    pool.shutdown();
+    Checks.equal(1, most.get(), "most users holding the name at once");
+    Checks.equal(0, stolen.get(), "names gained by releasing");
+    Checks.equal(0, registry.size(), "names left once everyone released");
+  }
+
+
+  private static void joinRace() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      for (int round = 0; round < 500; round++) {
+        ChatEngine engine = new ChatEngine(new ServerMetrics(), ServerView.NONE);
+        RecordingSession[] sessions = new RecordingSession[2];
+        for (int i = 0; i < 2; i++) {
+          sessions[i] = new RecordingSession(engine.nextSessionId());
+          engine.addSession(sessions[i]);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> joins = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+          RecordingSession session = sessions[i];
+          String name = i == 0 ? "Dup[e]" : "dup{E}";
+          joins.add(
+              pool.submit(
+                  () -> {
+                    start.await();
+                    Packet packet = new Packet();
+                    packet.joinServer(name);
+                    packet.requestid = 1;
+                    engine.packetHandler(packet, session.id);
+                    return null;
+                  }));
+        }
+        start.countDown();
+        for (Future<?> join : joins) join.get(5, TimeUnit.SECONDS);
+        int joined = 0;
+        for (RecordingSession session : sessions) if (session.username != null) joined++;
+        Checks.equal(1, joined, "sessions joined in round " + round);
+        for (RecordingSession session : sessions) {
+          if (session.username != null) continue;
+          Checks.equal("error", reply(session).command, "reply to the refused join");
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /* @return the packet answering request 1 */
+  private static Packet reply(RecordingSession session) {
+    synchronized (session) {
+      for (Packet packet : session.received) if (packet.requestid == 1) return packet;
+    }
+    throw new AssertionError("no reply to the request");
+  }
+
+
+  private static void takeOver() {
+    ChatEngine engine = new ChatEngine(new ServerMetrics(), ServerView.NONE);
+    RecordingSession old = join(engine, "Alice", null);
+    String token = old.resumeToken;
+    Checks.check(token != null && reply(old).targetname.equals(token), "the join reply carries the resume token");
+    Packet create = new Packet();
+    create.createRoom("lobby");
+    engine.packetHandler(create, old.id);
+    int roomid = engine.roomId("lobby");
+
+    RecordingSession thief = join(engine, "alice", "not the token");
+    Checks.check(thief.username == null && !old.disconnected, "a wrong token is refused");
+    engine.removeSession(thief);
+
+    RecordingSession back = join(engine, "ALICE", token);
+    Checks.check(old.disconnected, "the old session is disconnected");
+    Checks.equal("ALICE", back.username, "user-name of the new session");
+    ServerRoom room = engine.roomMap.get(roomid);
+    Checks.check(room != null && room.members.contains(back.id), "the new session is back in the room");
+    Checks.check(!room.members.contains(old.id) && room.awaited.isEmpty(), "the old session is gone from the room");
+    Checks.check(back.resumeToken != null && !back.resumeToken.equals(token), "a new token is given");
+
+    RecordingSession replay = join(engine, "alice", token);
+    Checks.check(replay.username == null && !back.disconnected, "a used token is refused");
+  }
+
+  private static RecordingSession join(ChatEngine engine, String name, String resumeToken) {
+    RecordingSession session = new RecordingSession(engine.nextSessionId());
+    engine.addSession(session);
+    Packet packet = new Packet();
+    packet.joinServer(name);
+    packet.targetname = resumeToken;
+    packet.requestid = 1;
+    engine.packetHandler(packet, session.id);
+    return session;
+  }
+}
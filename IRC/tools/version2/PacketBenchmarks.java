@@ -0,0 +1,122 @@
+package version2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+
+/******************************************************************************************************************
+ * Packet encode/decode through the ObjectOutputStream/ObjectInputStream path used by the Client and Server.
+ * packet.encode.stream:- writeObject() + flush() on a long-lived stream, as ServerThread.sendPacket() does
+ * packet.encode.streamReset:- the same, with reset() after every packet so the stream's handle table cannot grow
+ * packet.encode.standalone:- a new stream per packet (stream header + class descriptor every time)
+ * packet.decode.stream / packet.decode.standalone:- reading back what the matching encoder wrote
+ ******************************************************************************************************************/
+final class PacketBenchmarks {
+
+  private PacketBenchmarks() {}
+
+  /* Discards everything written to it, standing in for the socket */
+  static final class NullOutputStream extends OutputStream {
+    long written;
+
+    @Override
+    public void write(int b) {
+      written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      written += len;
+    }
+  }
+
+  static Packet chatPacket(int length) {
+    StringBuilder sb = new StringBuilder("anon (# 1): ");
+    while (sb.length() < length) sb.append('x');
+    Packet packet = new Packet();
+    packet.displayToUser(sb.toString());
+    return packet;
+  }
+
+  static void register(List<Bench.Case> cases) throws Exception {
+    for (int length : new int[] {16, 256}) {
+      String params = "message=" + length;
+
+      // without reset() the stream keeps every packet alive, so it is replaced every 64k packets
+      ObjectOutputStream[] stream = {new ObjectOutputStream(new NullOutputStream())};
+      int[] written = {0};
+      cases.add(
+          new Bench.Case(
+              "packet.encode.stream",
+              params,
+              () -> {
+                if (++written[0] == 1 << 16) {
+                  stream[0] = new ObjectOutputStream(new NullOutputStream());
+                  written[0] = 0;
+                }
+                stream[0].writeObject(chatPacket(length));
+                stream[0].flush();
+              }));
+
+      ObjectOutputStream resetStream = new ObjectOutputStream(new NullOutputStream());
+      cases.add(
+          new Bench.Case(
+              "packet.encode.streamReset",
+              params,
+              () -> {
+                resetStream.writeObject(chatPacket(length));
+                resetStream.flush();
+                resetStream.reset();
+              }));
+
+      Packet packet = chatPacket(length);
+      cases.add(
+          new Bench.Case(
+              "packet.encode.standalone",
+              params + " bytes=" + standalone(packet).length,
+              () -> Bench.consume(standalone(packet))));
+
+      byte[] frame = standalone(packet);
+      cases.add(
+          new Bench.Case(
+              "packet.decode.standalone",
+              params,
+              () -> Bench.consume(new ObjectInputStream(new ByteArrayInputStream(frame)).readObject())));
+
+      int count = 1024;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream writer = new ObjectOutputStream(bytes);
+      for (int i = 0; i < count; i++) {
+        writer.writeObject(chatPacket(length));
+        writer.reset();
+      }
+      writer.flush();
+      byte[] streamed = bytes.toByteArray();
+      ObjectInputStream[] reader = {new ObjectInputStream(new ByteArrayInputStream(streamed))};
+      int[] remaining = {count};
+      cases.add(
+          new Bench.Case(
+              "packet.decode.stream",
+              params,
+              () -> {
+                if (remaining[0]-- == 0) {
+                  reader[0] = new ObjectInputStream(new ByteArrayInputStream(streamed));
+                  remaining[0] = count - 1;
+                }
+                Bench.consume(reader[0].readObject());
+              }));
+    }
+  }
+
+  static byte[] standalone(Packet packet) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(packet);
+    out.flush();
+    return bytes.toByteArray();
+  }
+}
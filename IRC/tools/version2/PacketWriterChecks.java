@@ -0,0 +1,212 @@
+package version2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/******************************************************************************************************************
+ * The two lanes of PacketWriter. The writer is held in its first write while both lanes fill up, then let go; the
+ * bytes it wrote are read back to see the order the packets went out in.
+ * writer.lanes:- which packets go to the bulk lane: chat, leaveServer, and the acks and displays marked with via
+ * writer.weighting:- while both lanes have packets, each batch takes them by turns of controlWeight control and
+ *   bulkWeight chat packets (4:1 and 2:3), then whatever is left; each lane keeps its order
+ * writer.resendAck:- the ack of resendRoom goes out behind the messages queued before it, even with control
+ *   packets queued after them
+ * writer.bounds:- each lane is bounded on its own: a full chat lane refuses chat but still takes control packets
+ ******************************************************************************************************************/
+final class PacketWriterChecks {
+
+  private PacketWriterChecks() {}
+
+  static void register(List<Checks.Check> checks) {
+    checks.add(new Checks.Check("writer.lanes", PacketWriterChecks::lanes));
+    checks.add(new Checks.Check("writer.weighting", PacketWriterChecks::weighting));
+    checks.add(new Checks.Check("writer.resendAck", PacketWriterChecks::resendAck));
+    checks.add(new Checks.Check("writer.bounds", PacketWriterChecks::bounds));
+  }
+
+
+  /* Keeps what is written, and can hold the writer in its next write until opened */
+  private static final class GatedStream extends OutputStream {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch open = new CountDownLatch(1);
+    volatile boolean gated;
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (gated) {
+        entered.countDown();
+        try {
+          open.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      synchronized (bytes) {
+        bytes.write(b, off, len);
+      }
+    }
+
+    /* @return the packets written so far, in order */
+    List<Packet> packets() throws Exception {
+      byte[] written;
+      synchronized (bytes) {
+        written = bytes.toByteArray();
+      }
+      List<Packet> packets = new ArrayList<>();
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(written))) {
+        while (true) packets.add((Packet) in.readObject());
+      } catch (EOFException e) {
+        return packets;
+      }
+    }
+  }
+
+  /* A writer whose stream holds it in the write of the first packet, which is a control one */
+  private static PacketWriter held(GatedStream stream, int capacity, int maxBatch, int controlWeight, int bulkWeight)
+      throws Exception {
+    ObjectOutputStream out = new ObjectOutputStream(stream);
+    out.flush();
+    stream.gated = true;
+    PacketWriter writer = new PacketWriter("checks-writer", out, capacity, maxBatch, controlWeight, bulkWeight, null);
+    Checks.check(writer.send(control(0)), "first packet queued");
+    Checks.check(stream.entered.await(5, TimeUnit.SECONDS), "writer busy with the first packet");
+    return writer;
+  }
+
+  /* Lets the writer go, and waits until it has written everything */
+  private static List<Packet> release(GatedStream stream, PacketWriter writer, int expected) throws Exception {
+    stream.gated = false;
+    stream.open.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (writer.sent() < expected && System.nanoTime() < deadline) Thread.sleep(1);
+    writer.close(1000);
+    List<Packet> packets = stream.packets();
+    Checks.equal(expected, packets.size(), "packets written");
+    return packets.subList(1, packets.size());
+  }
+
+  private static Packet control(int n) {
+    Packet packet = new Packet();
+    packet.ack(n, 0, null);
+    return packet;
+  }
+
+  private static Packet chat(int n) {
+    Packet packet = new Packet();
+    packet.sendMessageAll("m" + n);
+    return packet;
+  }
+
+  /* @return the packets as a string of C (control) and B (bulk), checking that each lane kept its order */
+  private static String lanesOf(List<Packet> packets) {
+    StringBuilder lanes = new StringBuilder();
+    int nextControl = 1;
+    int nextChat = 0;
+    for (Packet packet : packets) {
+      if (PacketWriter.isBulk(packet)) {
+        Checks.equal("m" + nextChat++, packet.message, "chat order");
+        lanes.append('B');
+      } else {
+        Checks.equal(nextControl++, packet.requestid, "control order");
+        lanes.append('C');
+      }
+    }
+    return lanes.toString();
+  }
+
+  private static String repeat(String text, int times) {
+    StringBuilder repeated = new StringBuilder();
+    for (int i = 0; i < times; i++) repeated.append(text);
+    return repeated.toString();
+  }
+
+
+  private static void lanes() {
+    for (String command : new String[] {"sendMessageAll", "sendMessageUser", "sendMessageRoom", "leaveServer"}) {
+      Packet packet = new Packet();
+      packet.command = command;
+      Checks.check(PacketWriter.isBulk(packet), command + " is chat");
+    }
+    for (String command : new String[] {"displayToUser", "ack"}) {
+      Packet packet = new Packet();
+      packet.command = command;
+      Checks.check(!PacketWriter.isBulk(packet), command + " is control");
+      packet.via = command.equals("ack") ? "resendRoom" : "sendMessageRoom";
+      Checks.check(PacketWriter.isBulk(packet), command + " with via is chat");
+    }
+    for (String command : new String[] {"error", "joinServer", "userAdded", "roomSummary", "shutdown", "ping"}) {
+      Packet packet = new Packet();
+      packet.command = command;
+      Checks.check(!PacketWriter.isBulk(packet), command + " is control");
+    }
+  }
+
+  private static void weighting() throws Exception {
+    GatedStream stream = new GatedStream();
+    PacketWriter writer = held(stream, 100, 64, 4, 1);
+    for (int i = 0; i < 40; i++) {
+      writer.send(chat(i));
+      writer.send(control(i + 1));
+    }
+    // batch of 64: 4 control and 1 chat until control runs out (50), then chat; the rest in the next batch
+    String expected = repeat("CCCCB", 10) + repeat("B", 30);
+    Checks.equal(expected, lanesOf(release(stream, writer, 81)), "lanes at 4:1");
+
+    stream = new GatedStream();
+    writer = held(stream, 100, 1000, 2, 3);
+    for (int i = 0; i < 30; i++) {
+      writer.send(control(i + 1));
+      writer.send(chat(i));
+    }
+    expected = repeat("CCBBB", 10) + repeat("C", 10);
+    Checks.equal(expected, lanesOf(release(stream, writer, 61)), "lanes at 2:3");
+  }
+
+  private static void resendAck() throws Exception {
+    GatedStream stream = new GatedStream();
+    PacketWriter writer = held(stream, 100, 64, 4, 1);
+    for (int i = 0; i < 3; i++) {
+      Packet message = new Packet();
+      message.chatMessage("m" + i, "sendMessageRoom", 7, 2, "m" + i);
+      writer.send(message);
+    }
+    Packet ack = new Packet();
+    ack.ack(99, 0, null);
+    ack.via = "resendRoom";
+    writer.send(ack);
+    for (int i = 0; i < 8; i++) writer.send(control(i + 1));
+    List<Packet> packets = release(stream, writer, 13);
+    int ackAt = -1;
+    int lastMessage = -1;
+    for (int i = 0; i < packets.size(); i++) {
+      if (packets.get(i).requestid == 99) ackAt = i;
+      if ("displayToUser".equals(packets.get(i).command)) lastMessage = i;
+    }
+    Checks.check(ackAt > lastMessage, "resendRoom ack after the messages, at " + ackAt + " and " + lastMessage);
+  }
+
+  private static void bounds() throws Exception {
+    GatedStream stream = new GatedStream();
+    PacketWriter writer = held(stream, 8, 64, 4, 1);
+    for (int i = 0; i < 8; i++) Checks.check(writer.send(chat(i)), "chat " + i + " fits");
+    Checks.check(!writer.send(chat(8)), "chat refused once its lane is full");
+    Checks.check(writer.send(control(1)), "control still taken");
+    Checks.equal(1L, writer.failed(), "packets counted as failed");
+    release(stream, writer, 10);
+  }
+}
@@ -0,0 +1,264 @@
+package version2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/******************************************************************************************************************
+ * WebSocket frame parsing and masking, against a WebSocketGateway on a free local port whose read buffer (512
+ * bytes) is smaller than its longest message (4096 bytes).
+ * websocket.handshake:- the upgrade is answered with the right Sec-WebSocket-Accept, and server frames are unmasked
+ * websocket.split:- a frame arriving one byte at a time is read once complete
+ * websocket.fragments:- a fragmented message, with a ping between its frames, is answered and handled once whole
+ * websocket.longFrame:- one frame longer than the read buffer is gathered across reads
+ * websocket.tooBig:- a message longer than the limit, in one frame or in fragments, is closed with 1009
+ * websocket.protocolErrors:- unmasked frames, reserved bits, stray continuations and long pings close with 1002
+ ******************************************************************************************************************/
+final class WebSocketChecks {
+  private static final int READ_BUFFER = 512;
+  private static final int MAX_MESSAGE = 4096;
+
+  private WebSocketChecks() {}
+
+  static void register(List<Checks.Check> checks) {
+    checks.add(new Checks.Check("websocket.handshake", WebSocketChecks::handshake));
+    checks.add(new Checks.Check("websocket.split", WebSocketChecks::split));
+    checks.add(new Checks.Check("websocket.fragments", WebSocketChecks::fragments));
+    checks.add(new Checks.Check("websocket.longFrame", WebSocketChecks::longFrame));
+    checks.add(new Checks.Check("websocket.tooBig", WebSocketChecks::tooBig));
+    checks.add(new Checks.Check("websocket.protocolErrors", WebSocketChecks::protocolErrors));
+  }
+
+
+  private static int port;
+
+  /* Starts the gateway the first time, and reuses it for every check */
+  private static int gateway() throws IOException {
+    if (port > 0) return port;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    ChatEngine engine = new ChatEngine(new ServerMetrics(), ServerView.NONE);
+    SelectorLoop loop = new SelectorLoop("checks-websocket", engine.metrics, READ_BUFFER, 1 << 20);
+    new WebSocketGateway(engine, loop, MAX_MESSAGE).listen(port);
+    loop.start();
+    return port;
+  }
+
+  private static Peer joined(String name) throws Exception {
+    Peer peer = new Peer(gateway());
+    peer.send(0x1, true, "joinServer#1 " + name);
+    peer.expect("joinServer#1 ");
+    return peer;
+  }
+
+
+  private static void handshake() throws Exception {
+    try (Peer peer = new Peer(gateway())) {
+      peer.send(0x1, true, "joinServer#1 hands");
+      // Peer checks the accept key, and that no server frame is masked
+      peer.expect("joinServer#1 ");
+    }
+  }
+
+  private static void split() throws Exception {
+    try (Peer peer = new Peer(gateway())) {
+      byte[] frame = Peer.frame(0x1, true, true, "joinServer#1 split".getBytes(StandardCharsets.UTF_8));
+      for (byte b : frame) {
+        peer.out.write(b);
+        peer.out.flush();
+        Thread.sleep(1);
+      }
+      peer.expect("joinServer#1 ");
+    }
+  }
+
+  private static void fragments() throws Exception {
+    try (Peer peer = joined("frag")) {
+      peer.send(0x1, false, "sendMessageAll#2 ");
+      peer.send(0x9, true, "still there?");
+      peer.send(0x0, false, "hello, ");
+      peer.send(0x0, true, "world");
+      Checks.equal("still there?", peer.expectPong(), "pong payload");
+      Checks.check(peer.expect("displayToUser ").endsWith(": hello, world"), "message put together");
+      peer.expect("ack#2");
+    }
+  }
+
+  private static void longFrame() throws Exception {
+    try (Peer peer = joined("long")) {
+      char[] body = new char[3 * READ_BUFFER];
+      Arrays.fill(body, 'x');
+      byte[] frame = Peer.frame(0x1, true, true, ("sendMessageAll#2 " + new String(body)).getBytes(StandardCharsets.UTF_8));
+      for (int i = 0; i < frame.length; i += 100) {
+        peer.out.write(frame, i, Math.min(100, frame.length - i));
+        peer.out.flush();
+      }
+      Checks.check(peer.expect("displayToUser ").endsWith(": " + new String(body)), "whole payload unmasked");
+      peer.expect("ack#2");
+    }
+  }
+
+  private static void tooBig() throws Exception {
+    char[] body = new char[MAX_MESSAGE + 1];
+    Arrays.fill(body, 'x');
+    try (Peer peer = joined("big1")) {
+      peer.send(0x1, true, "sendMessageAll " + new String(body));
+      Checks.equal(1009, peer.expectClose(), "close code of one long frame");
+    }
+    try (Peer peer = joined("big2")) {
+      peer.send(0x1, false, "sendMessageAll ");
+      for (int i = 0; i < 5; i++) peer.send(0x0, false, new String(body, 0, MAX_MESSAGE / 4));
+      Checks.equal(1009, peer.expectClose(), "close code of long fragments");
+    }
+  }
+
+  private static void protocolErrors() throws Exception {
+    byte[] payload = "leaveServer".getBytes(StandardCharsets.UTF_8);
+    byte[][] frames = {
+      Peer.frame(0x1, true, false, payload),
+      reserved(Peer.frame(0x1, true, true, payload)),
+      Peer.frame(0x0, true, true, payload),
+      Peer.frame(0x9, true, true, new byte[126]),
+    };
+    String[] names = {"unmasked", "reserved bits", "stray continuation", "long ping"};
+    for (int i = 0; i < frames.length; i++) {
+      try (Peer peer = joined("bad" + i)) {
+        peer.out.write(frames[i]);
+        peer.out.flush();
+        Checks.equal(1002, peer.expectClose(), "close code of " + names[i]);
+      }
+    }
+  }
+
+  private static byte[] reserved(byte[] frame) {
+    frame[0] |= 0x40;
+    return frame;
+  }
+
+
+  /*****************************************************************************************************
+   * A browser, as far as the gateway can tell: upgrades the connection, then writes masked frames and
+   * reads the server's frames, which must not be masked.
+   *****************************************************************************************************/
+  private static final class Peer implements AutoCloseable {
+    final Socket socket = new Socket();
+    final OutputStream out;
+    final DataInputStream in;
+    private int lastOpcode;
+
+    Peer(int port) throws Exception {
+      socket.connect(new InetSocketAddress("localhost", port), 5000);
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(5000);
+      out = socket.getOutputStream();
+      in = new DataInputStream(socket.getInputStream());
+      byte[] nonce = new byte[16];
+      ThreadLocalRandom.current().nextBytes(nonce);
+      String key = Base64.getEncoder().encodeToString(nonce);
+      String request =
+          "GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+              + "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n";
+      out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+      StringBuilder headers = new StringBuilder();
+      while (headers.length() < 4 || !headers.substring(headers.length() - 4).equals("\r\n\r\n"))
+        headers.append((char) in.readUnsignedByte());
+      String accept =
+          Base64.getEncoder()
+              .encodeToString(
+                  MessageDigest.getInstance("SHA-1")
+                      .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.ISO_8859_1)));
+      Checks.check(headers.toString().startsWith("HTTP/1.1 101 "), "upgrade answered with 101: " + headers);
+      Checks.check(headers.toString().contains("Sec-WebSocket-Accept: " + accept + "\r\n"), "accept key");
+    }
+
+    /* @return a frame, masked with a random key if asked */
+    static byte[] frame(int opcode, boolean fin, boolean masked, byte[] payload) {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+      frame.write((fin ? 0x80 : 0) | opcode);
+      int mask = masked ? 0x80 : 0;
+      if (payload.length < 126) {
+        frame.write(mask | payload.length);
+      } else if (payload.length < 65536) {
+        frame.write(mask | 126);
+        frame.write(payload.length >> 8);
+        frame.write(payload.length);
+      } else {
+        frame.write(mask | 127);
+        for (int shift = 56; shift >= 0; shift -= 8) frame.write((int) ((long) payload.length >> shift));
+      }
+      if (!masked) {
+        frame.write(payload, 0, payload.length);
+        return frame.toByteArray();
+      }
+      byte[] key = new byte[4];
+      ThreadLocalRandom.current().nextBytes(key);
+      frame.write(key, 0, 4);
+      for (int i = 0; i < payload.length; i++) frame.write(payload[i] ^ key[i & 3]);
+      return frame.toByteArray();
+    }
+
+    void send(int opcode, boolean fin, String text) throws IOException {
+      out.write(frame(opcode, fin, true, text.getBytes(StandardCharsets.UTF_8)));
+      out.flush();
+    }
+
+    /* Reads the next frame; its opcode is left in lastOpcode */
+    byte[] read() throws IOException {
+      int first = in.readUnsignedByte();
+      int second = in.readUnsignedByte();
+      Checks.check((second & 0x80) == 0, "server frames are not masked");
+      Checks.check((first & 0x80) != 0, "server frames are not fragmented");
+      long length = second & 0x7F;
+      if (length == 126) length = in.readUnsignedShort();
+      else if (length == 127) length = in.readLong();
+      byte[] payload = new byte[(int) length];
+      in.readFully(payload);
+      lastOpcode = first & 0x0F;
+      return payload;
+    }
+
+    /* @return the next text message starting with prefix, skipping the others */
+    String expect(String prefix) throws IOException {
+      while (true) {
+        byte[] payload = read();
+        Checks.check(lastOpcode != 0x8, "expected \"" + prefix + "\" before the close frame");
+        String text = new String(payload, StandardCharsets.UTF_8);
+        if (lastOpcode == 0x1 && text.startsWith(prefix)) return text;
+      }
+    }
+
+    String expectPong() throws IOException {
+      while (true) {
+        byte[] payload = read();
+        Checks.check(lastOpcode != 0x8, "expected a pong before the close frame");
+        if (lastOpcode == 0xA) return new String(payload, StandardCharsets.UTF_8);
+      }
+    }
+
+    /* @return the status code of the close frame which ends the connection */
+    int expectClose() throws IOException {
+      while (true) {
+        byte[] payload = read();
+        if (lastOpcode == 0x8) return payload.length >= 2 ? (payload[0] & 0xFF) << 8 | (payload[1] & 0xFF) : 1005;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package version2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/******************************************************************************************************************
+ * Small scripted WebSocket client, for trying the WebSocket gateway of version2.Server on localhost.
+ * Connects with the HTTP upgrade handshake, then runs the script: every line is sent as a text message (see
+ * WebSocketSession for the commands), except for these directives:
+ * sleep <ms>:- pauses the script
+ * expect <prefix>:- waits up to 5 seconds for a message starting with prefix, and fails the script otherwise
+ * Blank lines and lines starting with "//" are skipped. Every message received is printed as "< text".
+ * The script comes from --script <file>, or from the remaining arguments, one line each. The exit status is 1 if an
+ * expect failed.
+ *
+ *   java -cp bin version2.WebSocketScript --port 8083 "joinServer#1 alice" "expect joinServer#1" "createRoom lobby"
+ ******************************************************************************************************************/
+public class WebSocketScript {
+
+  /*****************************************************************************************************
+   * Options (all can be set on the command line as --name value)
+   *****************************************************************************************************/
+  private String host = "localhost";
+  private int port = 8083;
+  private long waitMillis = 1000;
+  private final List<String> script = new ArrayList<>();
+
+  private Socket socket;
+  private OutputStream out;
+  private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+
+  public static void main(String[] args) throws Exception {
+    WebSocketScript client = new WebSocketScript();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--") && i + 1 < args.length) client.option(args[i], args[++i]);
+      else client.script.add(args[i]);
+    }
+    System.exit(client.run() ? 0 : 1);
+  }
+
+  private void option(String name, String value) throws IOException {
+    switch (name) {
+      case "--host": host = value; break;
+      case "--port": port = Integer.parseInt(value); break;
+      case "--wait": waitMillis = Long.parseLong(value); break;
+      case "--script": script.addAll(Files.readAllLines(Paths.get(value), StandardCharsets.UTF_8)); break;
+      default: throw new IllegalArgumentException("Unknown option " + name);
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Connects, runs the script, waits --wait milliseconds for the last replies and closes.
+   * @return false if an expect directive failed
+   *****************************************************************************************************/
+  private boolean run() throws Exception {
+    connect();
+    Thread reader = new Thread(this::readLoop, "websocket-script-reader");
+    reader.setDaemon(true);
+    reader.start();
+    boolean passed = true;
+    for (String line : script) {
+      if (line.isBlank() || line.startsWith("//")) continue;
+      if (line.startsWith("sleep ")) {
+        Thread.sleep(Long.parseLong(line.substring(6).trim()));
+      } else if (line.startsWith("expect ")) {
+        if (!expect(line.substring(7))) {
+          System.out.println("!! expected a message starting with \"" + line.substring(7) + "\"");
+          passed = false;
+          break;
+        }
+      } else {
+        System.out.println("> " + line);
+        sendFrame(0x1, line.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    Thread.sleep(waitMillis);
+    sendFrame(0x8, new byte[] {0x03, (byte) 0xE8});
+    reader.join(2000);
+    socket.close();
+    return passed;
+  }
+
+  private boolean expect(String prefix) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      String message = received.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (message == null) return false;
+      if (message.startsWith(prefix)) return true;
+    }
+  }
+
+
+  /*****************************************************************************************************
+   * Opens the socket and does the upgrade handshake, checking the server's Sec-WebSocket-Accept.
+   *****************************************************************************************************/
+  private void connect() throws Exception {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port), 5000);
+    socket.setTcpNoDelay(true);
+    out = socket.getOutputStream();
+    byte[] nonce = new byte[16];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    String key = Base64.getEncoder().encodeToString(nonce);
+    String request =
+        "GET / HTTP/1.1\r\n"
+            + "Host: " + host + ":" + port + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + key + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+    out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+    out.flush();
+
+    StringBuilder headers = new StringBuilder();
+    int previous = -1;
+    int current;
+    int newlines = 0;
+    while (newlines < 2 && (current = socket.getInputStream().read()) >= 0) {
+      headers.append((char) current);
+      if (current == '\n') newlines = previous == '\r' || previous == '\n' ? newlines + 1 : 1;
+      else if (current != '\r') newlines = 0;
+      previous = current;
+    }
+    String expected =
+        Base64.getEncoder()
+            .encodeToString(
+                MessageDigest.getInstance("SHA-1")
+                    .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.ISO_8859_1)));
+    String text = headers.toString();
+    if (!text.startsWith("HTTP/1.1 101") || !text.contains(expected))
+      throw new IOException("Handshake refused:\n" + text.trim());
+    System.out.println("Connected to ws://" + host + ":" + port + "/");
+  }
+
+
+  /*****************************************************************************************************
+   * Writes a masked frame, as clients must.
+   *****************************************************************************************************/
+  private synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+    frame.write(0x80 | opcode);
+    if (payload.length < 126) {
+      frame.write(0x80 | payload.length);
+    } else if (payload.length < 65536) {
+      frame.write(0x80 | 126);
+      frame.write(payload.length >> 8);
+      frame.write(payload.length);
+    } else {
+      frame.write(0x80 | 127);
+      for (int shift = 56; shift >= 0; shift -= 8) frame.write((int) ((long) payload.length >> shift));
+    }
+    byte[] mask = new byte[4];
+    ThreadLocalRandom.current().nextBytes(mask);
+    frame.write(mask);
+    for (int i = 0; i < payload.length; i++) frame.write(payload[i] ^ mask[i & 3]);
+    out.write(frame.toByteArray());
+    out.flush();
+  }
+
+
+  /*****************************************************************************************************
+   * Body of the reader thread: prints the text messages, answers pings, and stops at the close frame.
+   *****************************************************************************************************/
+  private void readLoop() {
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      while (true) {
+        int first = in.readUnsignedByte();
+        int second = in.readUnsignedByte();
+        long length = second & 0x7F;
+        if (length == 126) length = in.readUnsignedShort();
+        else if (length == 127) length = in.readLong();
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        int opcode = first & 0x0F;
+        if (opcode == 0x8) {
+          int code = payload.length >= 2 ? (payload[0] & 0xFF) << 8 | (payload[1] & 0xFF) : 1005;
+          System.out.println("Closed by the server (" + code + ")");
+          return;
+        }
+        if (opcode == 0x9) {
+          sendFrame(0xA, payload);
+          continue;
+        }
+        if (opcode != 0x1 && opcode != 0x0) continue;
+        message.write(payload);
+        if ((first & 0x80) == 0) continue;
+        String text = message.toString(StandardCharsets.UTF_8);
+        message.reset();
+        System.out.println("< " + text);
+        received.add(text);
+      }
+    } catch (EOFException e) {
+      System.out.println("Connection closed.");
+    } catch (IOException e) {
+      if (!socket.isClosed()) System.out.println("Connection lost: " + e.getMessage());
+    }
+  }
+}